@@ -0,0 +1,157 @@
+package com.avos.avoscloud;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.avos.avospush.session.CommandPacket;
+import com.avos.avospush.session.ConversationAckPacket;
+import com.avos.avospush.session.SessionAckPacket;
+
+/**
+ * 合并收到消息后的 ack
+ *
+ * 重连之后服务器会连续下发大量离线消息（hasMore 为 true），逐条 ack 会产生大量很小的上行包。
+ * 这里按对话收集消息 id，在 ACK_WINDOW 之后或者攒够 MAX_BATCH_SIZE 条时合并成一个 ack 发出；
+ * 没有后续消息（hasMore 为 false）时立即发送，不影响普通消息的 ack 时延。
+ *
+ * 连接断开时调用 pause，未发送的 ack 保留在内存中，重新登录成功之后由 resume 发出。
+ */
+class AVAckAggregator {
+  static final long ACK_WINDOW = 200;
+  static final int MAX_BATCH_SIZE = 50;
+  // 没有 conversationId 的消息使用 SessionAckPacket
+  private static final String SESSION_ACK_KEY = "";
+
+  private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+
+  interface PacketSender {
+    void send(CommandPacket packet);
+  }
+
+  private static final PacketSender DEFAULT_SENDER = new PacketSender() {
+    @Override
+    public void send(CommandPacket packet) {
+      PushService.sendData(packet);
+    }
+  };
+
+  private final String peerId;
+  private final PacketSender sender;
+  private final Map<String, List<String>> pendingIds = new LinkedHashMap<String, List<String>>();
+  private Future flushFuture;
+  private boolean paused = false;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  AVAckAggregator(String peerId) {
+    this(peerId, DEFAULT_SENDER);
+  }
+
+  AVAckAggregator(String peerId, PacketSender sender) {
+    this.peerId = peerId;
+    this.sender = sender;
+  }
+
+  /**
+   * @param conversationId 为空时表示不属于任何对话的消息
+   * @param messageId
+   * @param hasMore        服务器是否还有后续的消息
+   */
+  void add(String conversationId, String messageId, boolean hasMore) {
+    if (AVUtils.isBlankString(messageId)) {
+      return;
+    }
+    String key = AVUtils.isBlankString(conversationId) ? SESSION_ACK_KEY : conversationId;
+    List<String> batch = null;
+    synchronized (this) {
+      List<String> ids = pendingIds.get(key);
+      if (null == ids) {
+        ids = new ArrayList<String>();
+        pendingIds.put(key, ids);
+      }
+      ids.add(messageId);
+      if (paused) {
+        return;
+      }
+      if (!hasMore || ids.size() >= MAX_BATCH_SIZE) {
+        batch = pendingIds.remove(key);
+      } else if (null == flushFuture) {
+        flushFuture = executor.schedule(flushTask, ACK_WINDOW, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (null != batch) {
+      send(key, batch);
+    }
+  }
+
+  /**
+   * 连接断开，之后的 ack 先不发送
+   */
+  synchronized void pause() {
+    paused = true;
+    if (null != flushFuture) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+  }
+
+  /**
+   * 重新登录成功，发出断开期间保留的 ack
+   */
+  void resume() {
+    synchronized (this) {
+      paused = false;
+    }
+    flush();
+  }
+
+  /**
+   * 立即发送所有未发送的 ack，暂停期间不发送
+   */
+  void flush() {
+    Map<String, List<String>> batches;
+    synchronized (this) {
+      if (null != flushFuture) {
+        flushFuture.cancel(false);
+        flushFuture = null;
+      }
+      if (paused || pendingIds.isEmpty()) {
+        return;
+      }
+      batches = new LinkedHashMap<String, List<String>>(pendingIds);
+      pendingIds.clear();
+    }
+    for (Map.Entry<String, List<String>> entry : batches.entrySet()) {
+      send(entry.getKey(), entry.getValue());
+    }
+  }
+
+  synchronized int getPendingCount() {
+    int count = 0;
+    for (List<String> ids : pendingIds.values()) {
+      count += ids.size();
+    }
+    return count;
+  }
+
+  private void send(String key, List<String> messageIds) {
+    if (SESSION_ACK_KEY.equals(key)) {
+      SessionAckPacket sap = new SessionAckPacket();
+      sap.setPeerId(peerId);
+      sap.setMessageIds(messageIds);
+      sender.send(sap);
+    } else {
+      sender.send(ConversationAckPacket.getConversationAckPacket(peerId, key, messageIds));
+    }
+  }
+}
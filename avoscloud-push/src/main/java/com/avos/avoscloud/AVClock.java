@@ -0,0 +1,15 @@
+package com.avos.avoscloud;
+
+/**
+ * 时间来源，测试时可以替换成手动拨动的时钟
+ */
+abstract class AVClock {
+  static final AVClock SYSTEM = new AVClock() {
+    @Override
+    long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  abstract long currentTimeMillis();
+}
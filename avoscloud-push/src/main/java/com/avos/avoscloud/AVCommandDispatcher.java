@@ -0,0 +1,204 @@
+package com.avos.avoscloud;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 长连接下行指令的分发
+ *
+ * websocket 的读线程只负责解析，指令按 key（一般是 peerId）放进各自的串行队列，在共享的线程池里执行。
+ * 同一个 key 的指令严格按到达顺序处理，不同 key 之间互不阻塞，慢的处理逻辑（比如写数据库）不会再卡住读线程。
+ * 可以通过 getQueueDepths 和 getHandlerSnapshots 查看各队列的积压数量和各类指令的处理耗时。
+ */
+public final class AVCommandDispatcher {
+  private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final int POOL_SIZE = Math.max(2, Math.min(CPU_COUNT, 4));
+  private static final long KEEP_ALIVE_TIME = 30L;
+  // 每个队列连续处理的指令数，处理完之后让出线程，避免一个繁忙的 peer 占满线程池
+  private static final int MAX_TASKS_PER_TURN = 16;
+
+  private static AVCommandDispatcher defaultDispatcher;
+
+  private final Executor executor;
+  private final Map<String, SerialQueue> queues = new HashMap<String, SerialQueue>();
+  private final ConcurrentMap<String, AVLatencyHistogram> histograms =
+      new ConcurrentHashMap<String, AVLatencyHistogram>();
+
+  AVCommandDispatcher(Executor executor) {
+    this.executor = executor;
+  }
+
+  static synchronized AVCommandDispatcher getDefault() {
+    if (null == defaultDispatcher) {
+      ThreadPoolExecutor threadPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+          KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+              return new Thread(runnable, "AVCommandDispatcher #" + count.getAndIncrement());
+            }
+          });
+      threadPool.allowCoreThreadTimeOut(true);
+      defaultDispatcher = new AVCommandDispatcher(threadPool);
+    }
+    return defaultDispatcher;
+  }
+
+  /**
+   * @return 每个 key 还未处理完的指令数量
+   */
+  public static Map<String, Integer> getQueueDepths() {
+    return getDefault().queueDepths();
+  }
+
+  /**
+   * @return 按指令类型统计的处理耗时，不包括排队的时间
+   */
+  public static Map<String, AVRequestMetrics.Snapshot> getHandlerSnapshots() {
+    return getDefault().handlerSnapshots();
+  }
+
+  /**
+   * @param key     串行队列的 key，同一个 key 的指令按调用顺序执行
+   * @param name    指令类型，用于统计耗时
+   * @param command
+   */
+  void dispatch(String key, String name, Runnable command) {
+    SerialQueue queue;
+    boolean shouldSchedule;
+    synchronized (queues) {
+      queue = queues.get(key);
+      if (null == queue) {
+        queue = new SerialQueue(key);
+        queues.put(key, queue);
+      }
+      queue.tasks.add(new Task(name, command));
+      shouldSchedule = !queue.scheduled;
+      queue.scheduled = true;
+    }
+    if (shouldSchedule) {
+      executor.execute(queue);
+    }
+  }
+
+  Map<String, Integer> queueDepths() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    synchronized (queues) {
+      for (SerialQueue queue : queues.values()) {
+        result.put(queue.key, queue.tasks.size() + (queue.running ? 1 : 0));
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  Map<String, AVRequestMetrics.Snapshot> handlerSnapshots() {
+    Map<String, AVRequestMetrics.Snapshot> result =
+        new TreeMap<String, AVRequestMetrics.Snapshot>();
+    for (Map.Entry<String, AVLatencyHistogram> entry : histograms.entrySet()) {
+      result.put(entry.getKey(), new AVRequestMetrics.Snapshot(entry.getKey(), entry.getValue()));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  private void recordLatency(String name, long millis, boolean error) {
+    AVLatencyHistogram histogram = histograms.get(name);
+    if (null == histogram) {
+      histogram = new AVLatencyHistogram();
+      AVLatencyHistogram existing = histograms.putIfAbsent(name, histogram);
+      if (null != existing) {
+        histogram = existing;
+      }
+    }
+    histogram.recordLatency(millis, error);
+  }
+
+  private static class Task {
+    final String name;
+    final Runnable command;
+
+    Task(String name, Runnable command) {
+      this.name = name;
+      this.command = command;
+    }
+  }
+
+  private class SerialQueue implements Runnable {
+    final String key;
+    final LinkedList<Task> tasks = new LinkedList<Task>();
+    boolean scheduled = false;
+    boolean running = false;
+
+    SerialQueue(String key) {
+      this.key = key;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+        Task task;
+        synchronized (queues) {
+          task = tasks.poll();
+          if (null == task) {
+            scheduled = false;
+            running = false;
+            queues.remove(key);
+            return;
+          }
+          running = true;
+        }
+        long start = System.nanoTime();
+        boolean error = false;
+        boolean returned = false;
+        try {
+          task.command.run();
+          returned = true;
+        } catch (RuntimeException e) {
+          error = true;
+          returned = true;
+          LogUtil.log.e("failed to process " + task.name + " command", e);
+        } finally {
+          recordLatency(task.name,
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error || !returned);
+          if (!returned) {
+            // 抛出了 Error，当前线程会退出，剩下的指令换一个线程继续处理
+            abort();
+          }
+        }
+      }
+      synchronized (queues) {
+        running = false;
+        if (tasks.isEmpty()) {
+          scheduled = false;
+          queues.remove(key);
+          return;
+        }
+      }
+      executor.execute(this);
+    }
+
+    private void abort() {
+      synchronized (queues) {
+        running = false;
+        if (tasks.isEmpty()) {
+          scheduled = false;
+          queues.remove(key);
+          return;
+        }
+      }
+      executor.execute(this);
+    }
+  }
+}
@@ -46,6 +46,7 @@ class AVNotificationManager {
   private Context context;
 
   private static AVNotificationManager notificationManager;
+  static int messageDepotCapacity = StaleMessageDepot.DEFAULT_CAPACITY;
 
   public synchronized static AVNotificationManager getInstance() {
     if (null == notificationManager) {
@@ -59,7 +60,7 @@ class AVNotificationManager {
     // Use application small icon by default.
     this.notificationIcon = context.getApplicationInfo().icon;
 
-    depot = new StaleMessageDepot(PUSH_MESSAGE_DEPOT);
+    depot = new StaleMessageDepot(PUSH_MESSAGE_DEPOT, messageDepotCapacity);
     readDataFromCache();
     if (AVOSCloud.isDebugLogEnabled()) {
       Log.d(LOGTAG, "Init AppManager Done, read data from cache: " + defaultPushCallback.size());
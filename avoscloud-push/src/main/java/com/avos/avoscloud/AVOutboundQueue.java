@@ -0,0 +1,248 @@
+package com.avos.avoscloud;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.avos.avospush.session.CommandPacket;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * 长连接的上行队列
+ *
+ * 指令先进入队列，由单独的线程序列化成 websocket 帧。底层 socket 还有数据没写完时先不写，
+ * 这段时间里进入队列的指令会在下一次一起编码到同一块缓冲区里，作为一次 write 交给 socket，
+ * 每次最多 maxBatchBytes 字节。每条指令仍然是一个独立的 websocket 帧，服务器的解析方式不变。
+ *
+ * 队列长度超过 highWaterMark 时通过 Listener 通知拥塞，降到一半以下时解除；连接断开或者队列已满时
+ * 无法发送的指令也会通知 Listener，而不是悄悄丢掉。
+ */
+class AVOutboundQueue {
+  static final int DEFAULT_MAX_PENDING_PACKETS = 1000;
+  static final int DEFAULT_MAX_BATCH_BYTES = 32 * 1024;
+  static final long BUSY_RETRY_DELAY = 10;
+  // FIN + opcode、长度（最长 9 字节）、mask key
+  private static final int MAX_FRAME_HEADER_LENGTH = 14;
+  private static final int OPCODE_BINARY_FINAL = 0x82;
+
+  private static final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+
+  static volatile int maxPendingPacketsSetting = DEFAULT_MAX_PENDING_PACKETS;
+  static volatile int maxBatchBytesSetting = DEFAULT_MAX_BATCH_BYTES;
+
+  interface Sink {
+    boolean isOpen();
+
+    /**
+     * @return 底层 socket 是否还有没写完的数据
+     */
+    boolean isBusy();
+
+    /**
+     * 连接已经不可用时抛出异常，这一批指令会通知给 Listener
+     */
+    void write(ByteBuffer frames);
+  }
+
+  interface Listener {
+    void onCongestionChanged(boolean congested);
+
+    void onPacketDropped(CommandPacket packet);
+  }
+
+  private final Sink sink;
+  private final Listener listener;
+  private final ScheduledExecutorService drainExecutor;
+  private final int maxPendingPackets;
+  private final int highWaterMark;
+  private final int maxBatchBytes;
+  private final LinkedList<CommandPacket> pendingPackets = new LinkedList<CommandPacket>();
+  private boolean drainScheduled = false;
+  private boolean congested = false;
+
+  // 以下字段只在 drainExecutor 的线程中访问
+  private final Random maskRandom = new Random();
+  private final byte[] maskKey = new byte[4];
+  private byte[] batchBuffer;
+
+  private final Runnable drainTask = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  AVOutboundQueue(Sink sink, Listener listener) {
+    this(sink, listener, executor, maxPendingPacketsSetting, maxBatchBytesSetting);
+  }
+
+  AVOutboundQueue(Sink sink, Listener listener, ScheduledExecutorService drainExecutor,
+                  int maxPendingPackets, int maxBatchBytes) {
+    this.sink = sink;
+    this.listener = listener;
+    this.drainExecutor = drainExecutor;
+    this.maxPendingPackets = maxPendingPackets;
+    this.highWaterMark = Math.max(1, maxPendingPackets / 4);
+    this.maxBatchBytes = maxBatchBytes;
+    this.batchBuffer = new byte[Math.min(maxBatchBytes, 4096) + MAX_FRAME_HEADER_LENGTH];
+  }
+
+  /**
+   * @return 连接不可用或者队列已满时返回 false，此时 packet 不会被发送
+   */
+  boolean offer(CommandPacket packet) {
+    boolean congestionChanged = false;
+    synchronized (this) {
+      if (!sink.isOpen() || pendingPackets.size() >= maxPendingPackets) {
+        return false;
+      }
+      pendingPackets.add(packet);
+      if (!congested && pendingPackets.size() >= highWaterMark) {
+        congested = true;
+        congestionChanged = true;
+      }
+      if (!drainScheduled) {
+        drainScheduled = true;
+        drainExecutor.execute(drainTask);
+      }
+    }
+    if (congestionChanged) {
+      listener.onCongestionChanged(true);
+    }
+    return true;
+  }
+
+  /**
+   * 丢弃所有未发送的指令，在连接断开时调用
+   */
+  void clear() {
+    List<CommandPacket> dropped;
+    boolean congestionChanged;
+    synchronized (this) {
+      dropped = new ArrayList<CommandPacket>(pendingPackets);
+      pendingPackets.clear();
+      congestionChanged = congested;
+      congested = false;
+    }
+    for (CommandPacket packet : dropped) {
+      listener.onPacketDropped(packet);
+    }
+    if (congestionChanged) {
+      listener.onCongestionChanged(false);
+    }
+  }
+
+  synchronized int size() {
+    return pendingPackets.size();
+  }
+
+  void drain() {
+    synchronized (this) {
+      if (pendingPackets.isEmpty()) {
+        drainScheduled = false;
+        return;
+      }
+      if (sink.isOpen() && sink.isBusy()) {
+        // socket 还在写上一批数据，稍后把这段时间内的指令一起写出
+        drainExecutor.schedule(drainTask, BUSY_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        return;
+      }
+    }
+    List<CommandPacket> batch = new ArrayList<CommandPacket>();
+    int length = 0;
+    boolean closed = false;
+    boolean congestionChanged = false;
+    while (length < maxBatchBytes) {
+      CommandPacket packet;
+      synchronized (this) {
+        // offer 之后连接可能已经断开或者开始关闭，剩下的指令不能再写
+        if (!sink.isOpen()) {
+          closed = true;
+          break;
+        }
+        packet = pendingPackets.poll();
+        if (congested && pendingPackets.size() < highWaterMark / 2) {
+          congested = false;
+          congestionChanged = true;
+        }
+      }
+      if (null == packet) {
+        break;
+      }
+      try {
+        length = appendFrame(packet.getGenericCommand(), length);
+        batch.add(packet);
+      } catch (Exception e) {
+        LogUtil.avlog.e("failed to encode packet " + packet.getCmd(), e);
+        listener.onPacketDropped(packet);
+      }
+    }
+    if (!closed && length > 0) {
+      try {
+        sink.write(ByteBuffer.wrap(Arrays.copyOf(batchBuffer, length)));
+      } catch (RuntimeException e) {
+        LogUtil.avlog.e("failed to write " + batch.size() + " packets", e);
+        closed = true;
+      }
+    }
+    if (congestionChanged) {
+      listener.onCongestionChanged(false);
+    }
+    if (closed) {
+      for (CommandPacket packet : batch) {
+        listener.onPacketDropped(packet);
+      }
+      clear();
+    }
+    synchronized (this) {
+      if (pendingPackets.isEmpty()) {
+        drainScheduled = false;
+      } else {
+        drainExecutor.execute(drainTask);
+      }
+    }
+  }
+
+  /**
+   * 把 command 编码成一个带掩码的 binary 帧，追加到 batchBuffer 的 offset 处
+   *
+   * @return 追加之后的长度
+   */
+  private int appendFrame(Messages.GenericCommand command, int offset) throws Exception {
+    int payloadLength = command.getSerializedSize();
+    int required = offset + MAX_FRAME_HEADER_LENGTH + payloadLength;
+    if (required > batchBuffer.length) {
+      batchBuffer = Arrays.copyOf(batchBuffer, Math.max(required, batchBuffer.length * 2));
+    }
+    int position = offset;
+    batchBuffer[position++] = (byte) OPCODE_BINARY_FINAL;
+    if (payloadLength <= 125) {
+      batchBuffer[position++] = (byte) (0x80 | payloadLength);
+    } else if (payloadLength <= 0xFFFF) {
+      batchBuffer[position++] = (byte) (0x80 | 126);
+      batchBuffer[position++] = (byte) (payloadLength >>> 8);
+      batchBuffer[position++] = (byte) payloadLength;
+    } else {
+      batchBuffer[position++] = (byte) (0x80 | 127);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        batchBuffer[position++] = (byte) ((long) payloadLength >>> shift);
+      }
+    }
+    maskRandom.nextBytes(maskKey);
+    System.arraycopy(maskKey, 0, batchBuffer, position, 4);
+    position += 4;
+    CodedOutputStream output = CodedOutputStream.newInstance(batchBuffer, position, payloadLength);
+    command.writeTo(output);
+    output.checkNoSpaceLeft();
+    for (int i = 0; i < payloadLength; i++) {
+      batchBuffer[position + i] ^= maskKey[i & 3];
+    }
+    return position + payloadLength;
+  }
+}
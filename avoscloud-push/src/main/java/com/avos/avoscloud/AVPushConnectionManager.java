@@ -7,9 +7,11 @@ import android.support.v4.content.LocalBroadcastManager;
 import com.avos.avoscloud.java_websocket.framing.CloseFrame;
 import com.avos.avospush.session.LiveQueryLoginPacket;
 import com.avos.avospush.push.AVPushRouter;
+import com.avos.avospush.push.AVWebSocketListener;
 import com.avos.avospush.session.CommandPacket;
 import com.avos.avospush.session.LoginPacket;
 import com.avos.avospush.session.MessagePatchModifiedPacket;
+import com.avos.avospush.session.PeerBasedCommandPacket;
 import com.avos.avospush.session.PushAckPacket;
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -40,6 +42,10 @@ class AVPushConnectionManager implements AVPushWebSocketClient.AVSocketListener
 
   private static String liveQuerySubscribeId = "";
 
+  private static final String DISPATCH_KEY_PUSH = "push";
+  private static final String DISPATCH_KEY_LIVE_QUERY = "livequery";
+  private final AVCommandDispatcher dispatcher = AVCommandDispatcher.getDefault();
+
   private AVPushConnectionManager(Context ctx) {
     router = new AVPushRouter(ctx, new AVPushRouter.RouterResponseListener() {
       @Override
@@ -141,8 +147,8 @@ class AVPushConnectionManager implements AVPushWebSocketClient.AVSocketListener
   }
 
   public void sendData(final CommandPacket packet) {
-    if (socketClient != null && socketClient.isOpen()) {
-      socketClient.send(packet);
+    if (socketClient == null || !socketClient.send(packet)) {
+      processPacketDropped(packet);
     }
   }
 
@@ -217,76 +223,101 @@ class AVPushConnectionManager implements AVPushWebSocketClient.AVSocketListener
     sendData(pap);
   }
 
+  /**
+   * 在 websocket 的读线程中解析指令，然后交给 AVCommandDispatcher 按 peerId 串行处理
+   */
   public void processCommand(ByteBuffer bytes) {
+    final Messages.GenericCommand command;
     try {
-      Messages.GenericCommand command = Messages.GenericCommand.parseFrom(bytes.array());
-      if (AVOSCloud.isDebugLogEnabled()) {
-        LogUtil.avlog.d("downlink : " + command.toString());
-      }
+      command = Messages.GenericCommand.parseFrom(bytes.array());
+    } catch (InvalidProtocolBufferException e) {
+      e.printStackTrace();
+      return;
+    }
+    if (AVOSCloud.isDebugLogEnabled()) {
+      LogUtil.avlog.d("downlink : " + command.toString());
+    }
 
-      String peerId = command.getPeerId();
-      Integer requestKey = command.hasI() ? command.getI() : null;
+    final int cmd = command.getCmd().getNumber();
+    String key;
+    if (cmd == Messages.CommandType.loggedin_VALUE) {
+      if (LiveQueryLoginPacket.SERVICE_LIVE_QUERY != command.getService()) {
+        return;
+      }
+      key = DISPATCH_KEY_LIVE_QUERY;
+    } else if (cmd == Messages.CommandType.data_VALUE) {
+      key = command.hasService() && LiveQueryLoginPacket.SERVICE_LIVE_QUERY == command.getService()
+          ? DISPATCH_KEY_LIVE_QUERY : DISPATCH_KEY_PUSH;
+    } else if (!peerIdEnabledSessions.isEmpty()) {
+      key = command.getPeerId();
+    } else {
+      return;
+    }
+    dispatcher.dispatch(key, command.getCmd().name(), new Runnable() {
+      @Override
+      public void run() {
+        processGenericCommand(command);
+      }
+    });
+  }
 
-      if (command.getCmd().getNumber() == Messages.CommandType.loggedin_VALUE) {
-        if (LiveQueryLoginPacket.SERVICE_LIVE_QUERY == command.getService()) {
-          processLoggedinCommand(requestKey);
+  private void processGenericCommand(Messages.GenericCommand command) {
+    String peerId = command.getPeerId();
+    Integer requestKey = command.hasI() ? command.getI() : null;
+
+    switch (command.getCmd().getNumber()) {
+      case Messages.CommandType.loggedin_VALUE:
+        processLoggedinCommand(requestKey);
+        break;
+      case Messages.CommandType.data_VALUE:
+        if (command.hasService()) {
+          final int service = command.getService();
+          if (LiveQueryLoginPacket.SERVICE_PUSH == service) {
+            processDataCommand(command.getDataMessage());
+          } else if (LiveQueryLoginPacket.SERVICE_LIVE_QUERY == service) {
+            processLiveQueryData(command.getDataMessage());
+          }
+        } else {
+          processDataCommand(command.getDataMessage());
         }
-      } else if (!peerIdEnabledSessions.isEmpty()
-          || command.getCmd().getNumber() == Messages.CommandType.data_VALUE) {
-        switch (command.getCmd().getNumber()) {
-          case Messages.CommandType.data_VALUE:
-            if (command.hasService()) {
-              final int service = command.getService();
-              if (LiveQueryLoginPacket.SERVICE_PUSH == service) {
-                processDataCommand(command.getDataMessage());
-              } else if (LiveQueryLoginPacket.SERVICE_LIVE_QUERY == service) {
-                processLiveQueryData(command.getDataMessage());
-              }
-            } else {
-              processDataCommand(command.getDataMessage());
-            }
-            break;
-          case Messages.CommandType.direct_VALUE:
-            processDirectCommand(peerId, command.getDirectMessage());
-            break;
-          case Messages.CommandType.session_VALUE:
-            processSessionCommand(peerId, command.getOp().name(), requestKey,
-                command.getSessionMessage());
-            break;
-          case Messages.CommandType.ack_VALUE:
-            processAckCommand(peerId, requestKey, command.getAckMessage());
-            break;
-          case Messages.CommandType.rcp_VALUE:
-            processRpcCommand(peerId, command.getRcpMessage());
-            break;
-          case Messages.CommandType.conv_VALUE:
-            processConvCommand(peerId, command.getOp().name(), requestKey,
-                command.getConvMessage());
-            break;
-          case Messages.CommandType.error_VALUE:
-            processErrorCommand(peerId, requestKey, command.getErrorMessage());
-            break;
-          case Messages.CommandType.logs_VALUE:
-            processLogsCommand(peerId, requestKey, command.getLogsMessage());
-            break;
-          case Messages.CommandType.unread_VALUE:
-            processUnreadCommand(peerId, command.getUnreadMessage());
-            break;
-          case Messages.CommandType.patch_VALUE:
-            if(command.getOp().equals(Messages.OpType.modify)) {
-              // modify 为服务器端主动推送的 patch 消息
-              processPatchCommand(peerId, true, requestKey, command.getPatchMessage());
-            } else if (command.getOp().equals(Messages.OpType.modified)) {
-              // modified 代表的是服务器端对于客户端请求的相应
-              processPatchCommand(peerId, false, requestKey, command.getPatchMessage());
-            }
-            break;
-          default:
-            break;
+        break;
+      case Messages.CommandType.direct_VALUE:
+        processDirectCommand(peerId, command.getDirectMessage());
+        break;
+      case Messages.CommandType.session_VALUE:
+        processSessionCommand(peerId, command.getOp().name(), requestKey,
+            command.getSessionMessage());
+        break;
+      case Messages.CommandType.ack_VALUE:
+        processAckCommand(peerId, requestKey, command.getAckMessage());
+        break;
+      case Messages.CommandType.rcp_VALUE:
+        processRpcCommand(peerId, command.getRcpMessage());
+        break;
+      case Messages.CommandType.conv_VALUE:
+        processConvCommand(peerId, command.getOp().name(), requestKey,
+            command.getConvMessage());
+        break;
+      case Messages.CommandType.error_VALUE:
+        processErrorCommand(peerId, requestKey, command.getErrorMessage());
+        break;
+      case Messages.CommandType.logs_VALUE:
+        processLogsCommand(peerId, requestKey, command.getLogsMessage());
+        break;
+      case Messages.CommandType.unread_VALUE:
+        processUnreadCommand(peerId, command.getUnreadMessage());
+        break;
+      case Messages.CommandType.patch_VALUE:
+        if(command.getOp().equals(Messages.OpType.modify)) {
+          // modify 为服务器端主动推送的 patch 消息
+          processPatchCommand(peerId, true, requestKey, command.getPatchMessage());
+        } else if (command.getOp().equals(Messages.OpType.modified)) {
+          // modified 代表的是服务器端对于客户端请求的相应
+          processPatchCommand(peerId, false, requestKey, command.getPatchMessage());
         }
-      }
-    } catch (InvalidProtocolBufferException e) {
-      e.printStackTrace();
+        break;
+      default:
+        break;
     }
   }
 
@@ -427,18 +458,59 @@ class AVPushConnectionManager implements AVPushWebSocketClient.AVSocketListener
 
   @Override
   public void processSessionsStatus(boolean closeEvent) {
-    for (AVSession session : peerIdEnabledSessions.values()) {
-      if (session.getWebSocketListener() != null) {
+    List<AVSession> sessions;
+    synchronized (peerIdEnabledSessions) {
+      sessions = new ArrayList<AVSession>(peerIdEnabledSessions.values());
+    }
+    for (final AVSession session : sessions) {
+      final AVWebSocketListener listener = session.getWebSocketListener();
+      if (listener != null) {
+        // 与该 session 的下行指令放在同一个队列里，保证连接状态和指令的先后顺序
         if (closeEvent) {
-          session.getWebSocketListener().onWebSocketClose();
+          dispatcher.dispatch(session.getSelfPeerId(), "close", new Runnable() {
+            @Override
+            public void run() {
+              listener.onWebSocketClose();
+            }
+          });
         } else {
-          session.getWebSocketListener().onWebSocketOpen();
+          dispatcher.dispatch(session.getSelfPeerId(), "open", new Runnable() {
+            @Override
+            public void run() {
+              listener.onWebSocketOpen();
+            }
+          });
         }
       }
     }
   }
 
 
+  @Override
+  public void processSendBackpressure(boolean congested) {
+    LogUtil.avlog.d("outbound queue " + (congested ? "congested" : "recovered"));
+    List<AVSession> sessions;
+    synchronized (peerIdEnabledSessions) {
+      sessions = new ArrayList<AVSession>(peerIdEnabledSessions.values());
+    }
+    for (AVSession session : sessions) {
+      session.setOutboundCongested(congested);
+    }
+  }
+
+  /**
+   * 没有发出去的指令交给对应的 session，让等待结果的请求立即失败
+   */
+  @Override
+  public void processPacketDropped(CommandPacket packet) {
+    if (packet instanceof PeerBasedCommandPacket) {
+      AVSession session = peerIdEnabledSessions.get(((PeerBasedCommandPacket) packet).getPeerId());
+      if (null != session) {
+        session.onPacketDropped(packet);
+      }
+    }
+  }
+
   @Override
   public void processRemoteServerNotAvailable() {
     router.fetchPushServer();
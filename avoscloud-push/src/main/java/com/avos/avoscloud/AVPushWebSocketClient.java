@@ -6,7 +6,10 @@ import android.os.Build;
 
 import com.avos.avoscloud.java_websocket.WebSocket;
 import com.avos.avoscloud.java_websocket.client.WebSocketClient;
+import com.avos.avoscloud.java_websocket.drafts.Draft;
 import com.avos.avoscloud.java_websocket.drafts.Draft_17;
+import com.avos.avoscloud.java_websocket.exceptions.InvalidFrameException;
+import com.avos.avoscloud.java_websocket.exceptions.WebsocketNotConnectedException;
 import com.avos.avoscloud.java_websocket.framing.CloseFrame;
 import com.avos.avoscloud.java_websocket.framing.Framedata;
 import com.avos.avoscloud.java_websocket.framing.FramedataImpl1;
@@ -30,7 +33,9 @@ public class AVPushWebSocketClient extends WebSocketClient {
 
   private HeartBeatPolicy heartBeatPolicy;
 
-  private final long RECONNECT_INTERVAL = 10 * 1000;
+  private AVReconnectBackoff reconnectBackoff = new AVReconnectBackoff();
+
+  private final AVOutboundQueue outboundQueue;
 
   Runnable reconnectTask = new Runnable() {
     @Override
@@ -44,7 +49,7 @@ public class AVPushWebSocketClient extends WebSocketClient {
 
   public AVPushWebSocketClient(URI serverURI, AVSocketListener listener,
                                final String subProtocol, boolean secEnabled) {
-    super(serverURI, new Draft_17(), new HashMap<String, String>() {
+    super(serverURI, new PushDraft(), new HashMap<String, String>() {
       {
         put(HEADER_SUB_PROTOCOL, subProtocol);
       }
@@ -57,6 +62,59 @@ public class AVPushWebSocketClient extends WebSocketClient {
       setSocket();
     }
     this.listener = listener;
+    outboundQueue = new AVOutboundQueue(new AVOutboundQueue.Sink() {
+      @Override
+      public boolean isOpen() {
+        return AVPushWebSocketClient.this.isOpen();
+      }
+
+      @Override
+      public boolean isBusy() {
+        return hasBufferedData();
+      }
+
+      @Override
+      public void write(ByteBuffer frames) {
+        // 多个帧合并成一个 buffer 交给写线程，只需要一次 write 和 flush
+        sendEncodedFrames(frames);
+      }
+    }, new AVOutboundQueue.Listener() {
+      @Override
+      public void onCongestionChanged(boolean congested) {
+        if (null != AVPushWebSocketClient.this.listener) {
+          AVPushWebSocketClient.this.listener.processSendBackpressure(congested);
+        }
+      }
+
+      @Override
+      public void onPacketDropped(CommandPacket packet) {
+        if (null != AVPushWebSocketClient.this.listener) {
+          AVPushWebSocketClient.this.listener.processPacketDropped(packet);
+        }
+      }
+    });
+  }
+
+  /**
+   * 设置上行队列的长度上限，超过之后的指令会直接失败
+   *
+   * @param maxPendingPackets 默认为 1000
+   */
+  public static void setMaxPendingPackets(int maxPendingPackets) {
+    if (maxPendingPackets > 0) {
+      AVOutboundQueue.maxPendingPacketsSetting = maxPendingPackets;
+    }
+  }
+
+  /**
+   * 设置每次合并写入 socket 的最大字节数
+   *
+   * @param maxBatchBytes 默认为 32KB
+   */
+  public static void setMaxBatchBytes(int maxBatchBytes) {
+    if (maxBatchBytes > 0) {
+      AVOutboundQueue.maxBatchBytesSetting = maxBatchBytes;
+    }
   }
 
   private void initHeartBeatPolicy() {
@@ -102,6 +160,7 @@ public class AVPushWebSocketClient extends WebSocketClient {
   @Override
   public void onOpen(ServerHandshake handshakedata) {
     this.cancelReconnect();
+    reconnectBackoff.reset();
     heartBeatPolicy.startHeartbeat();
     if (listener != null) {
       listener.loginCmd();
@@ -123,6 +182,7 @@ public class AVPushWebSocketClient extends WebSocketClient {
   @Override
   public void onClose(int code, String reason, boolean remote) {
     heartBeatPolicy.stopHeartbeat();
+    outboundQueue.clear();
     if (listener != null) {
       listener.processSessionsStatus(true);
     }
@@ -163,8 +223,16 @@ public class AVPushWebSocketClient extends WebSocketClient {
   }
 
   protected void scheduleReconnect() {
-    if (RECONNECT_INTERVAL > 0) {
-      AVOSCloud.handler.postDelayed(reconnectTask, RECONNECT_INTERVAL);
+    long delay = reconnectBackoff.nextDelay();
+    if (AVOSCloud.showInternalDebugLog()) {
+      LogUtil.avlog.d("reconnect in " + delay + "ms, attempts: " + reconnectBackoff.getAttempts());
+    }
+    AVOSCloud.handler.postDelayed(reconnectTask, delay);
+  }
+
+  void setReconnectBackoff(AVReconnectBackoff backoff) {
+    if (null != backoff) {
+      this.reconnectBackoff = backoff;
     }
   }
 
@@ -196,15 +264,24 @@ public class AVPushWebSocketClient extends WebSocketClient {
     this.sendFrame(frame);
   }
 
-  public void send(CommandPacket packet) {
+  /**
+   * @return 连接不可用或者上行队列已满时返回 false
+   */
+  public boolean send(CommandPacket packet) {
     if (AVOSCloud.isDebugLogEnabled()) {
       LogUtil.avlog.d("uplink : " + packet.getGenericCommand().toString());
     }
-    try {
-      send(packet.getGenericCommand().toByteArray());
-    } catch (Exception e) {
-      LogUtil.avlog.e(e.getMessage());
+    return outboundQueue.offer(packet);
+  }
+
+  /**
+   * 发送已经编码好的帧，连接已经断开或者正在关闭时抛出 WebsocketNotConnectedException
+   */
+  private void sendEncodedFrames(ByteBuffer frames) {
+    if (!isOpen()) {
+      throw new WebsocketNotConnectedException();
     }
+    sendFrame(new EncodedFrames(frames));
   }
 
   @Override
@@ -223,5 +300,66 @@ public class AVPushWebSocketClient extends WebSocketClient {
     void processRemoteServerNotAvailable();
 
     void processSessionsStatus(boolean closeEvent);
+
+    /**
+     * 上行队列积压过多或者恢复正常
+     */
+    void processSendBackpressure(boolean congested);
+
+    /**
+     * 没有发送出去的指令
+     */
+    void processPacketDropped(CommandPacket packet);
+  }
+
+  /**
+   * AVOutboundQueue 已经编码好的一批帧，由 PushDraft 原样写出
+   */
+  private static class EncodedFrames implements Framedata {
+    private final ByteBuffer frames;
+
+    EncodedFrames(ByteBuffer frames) {
+      this.frames = frames;
+    }
+
+    @Override
+    public boolean isFin() {
+      return true;
+    }
+
+    @Override
+    public boolean getTransfereMasked() {
+      return true;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.BINARY;
+    }
+
+    @Override
+    public ByteBuffer getPayloadData() {
+      return frames;
+    }
+
+    @Override
+    public void append(Framedata nextframe) throws InvalidFrameException {
+      throw new InvalidFrameException("encoded frames can not be appended");
+    }
+  }
+
+  private static class PushDraft extends Draft_17 {
+    @Override
+    public ByteBuffer createBinaryFrame(Framedata framedata) {
+      if (framedata instanceof EncodedFrames) {
+        return framedata.getPayloadData();
+      }
+      return super.createBinaryFrame(framedata);
+    }
+
+    @Override
+    public Draft copyInstance() {
+      return new PushDraft();
+    }
   }
 }
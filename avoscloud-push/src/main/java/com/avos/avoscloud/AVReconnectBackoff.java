@@ -0,0 +1,48 @@
+package com.avos.avoscloud;
+
+import java.util.Random;
+
+/**
+ * 断线重连的退避策略：指数增长的上限加 full jitter
+ *
+ * 第 n 次重连的延时在 [0, min(maxDelay, baseDelay * 2^n)] 中随机选取，服务器短暂故障之后大量客户端
+ * 不会在同一时刻一起重连。连接成功之后调用 reset。
+ */
+class AVReconnectBackoff {
+  static final long DEFAULT_BASE_DELAY = 1000;
+  static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+  // 2^MAX_EXPONENT 倍已经超过上限，再大就没有意义而且会溢出
+  private static final int MAX_EXPONENT = 20;
+
+  private final long baseDelay;
+  private final long maxDelay;
+  private final Random random;
+  private int attempts = 0;
+
+  AVReconnectBackoff() {
+    this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, new Random());
+  }
+
+  AVReconnectBackoff(long baseDelay, long maxDelay, Random random) {
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.random = random;
+  }
+
+  /**
+   * @return 本次重连前需要等待的毫秒数
+   */
+  synchronized long nextDelay() {
+    long ceiling = Math.min(maxDelay, baseDelay << Math.min(attempts, MAX_EXPONENT));
+    attempts++;
+    return (long) (random.nextDouble() * (ceiling + 1));
+  }
+
+  synchronized void reset() {
+    attempts = 0;
+  }
+
+  synchronized int getAttempts() {
+    return attempts;
+  }
+}
@@ -0,0 +1,190 @@
+package com.avos.avoscloud;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 进程内的请求/响应总线
+ *
+ * 发起请求前按 key（一般是 action + requestId）登记接收者，结果通过 deliver 直接交给对应的接收者，
+ * 不需要像 LocalBroadcastManager 那样注册 BroadcastReceiver 并逐个匹配 IntentFilter。
+ * 超时之后会通知接收者并移除登记，服务端一直没有返回结果时也不会泄漏。
+ */
+class AVResultBus<T> {
+  interface Receiver<T> {
+    void onResult(T result);
+
+    void onTimeout();
+  }
+
+  private static final int STATE_PENDING = 0;
+  private static final int STATE_DONE = 1;
+  private static final int STATE_TIMED_OUT = 2;
+  private static final int STATE_CANCELLED = 3;
+
+  private final Executor deliveryExecutor;
+  private final ScheduledExecutorService timer;
+  private final ConcurrentHashMap<String, PendingResult> pendingResults =
+      new ConcurrentHashMap<String, PendingResult>();
+
+  /**
+   * @param deliveryExecutor 调用 Receiver 的线程
+   * @param timer            用于超时的计时
+   */
+  AVResultBus(Executor deliveryExecutor, ScheduledExecutorService timer) {
+    this.deliveryExecutor = deliveryExecutor;
+    this.timer = timer;
+  }
+
+  /**
+   * @param timeoutMillis 小于等于 0 时不超时
+   * @return 可以用来等待结果或者取消登记
+   */
+  Future<T> register(String key, Receiver<T> receiver, long timeoutMillis) {
+    PendingResult pendingResult = new PendingResult(key, receiver);
+    PendingResult previous = pendingResults.put(key, pendingResult);
+    if (null != previous) {
+      previous.cancel(false);
+    }
+    if (timeoutMillis > 0) {
+      pendingResult.scheduleTimeout(timeoutMillis);
+    }
+    return pendingResult;
+  }
+
+  /**
+   * @return 没有对应的接收者时返回 false
+   */
+  boolean deliver(String key, T result) {
+    PendingResult pendingResult = pendingResults.remove(key);
+    return null != pendingResult && pendingResult.complete(result);
+  }
+
+  int size() {
+    return pendingResults.size();
+  }
+
+  private class PendingResult implements Future<T> {
+    private final String key;
+    private final Receiver<T> receiver;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private int state = STATE_PENDING;
+    private T result;
+    private Future timeoutFuture;
+
+    private final Runnable timeoutTask = new Runnable() {
+      @Override
+      public void run() {
+        timeout();
+      }
+    };
+
+    PendingResult(String key, Receiver<T> receiver) {
+      this.key = key;
+      this.receiver = receiver;
+    }
+
+    synchronized void scheduleTimeout(long timeoutMillis) {
+      if (state == STATE_PENDING) {
+        timeoutFuture = timer.schedule(timeoutTask, timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    boolean complete(final T value) {
+      if (!finish(STATE_DONE, value)) {
+        return false;
+      }
+      deliveryExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            receiver.onResult(value);
+          } catch (RuntimeException e) {
+            LogUtil.log.e("failed to deliver result " + key, e);
+          }
+        }
+      });
+      return true;
+    }
+
+    void timeout() {
+      pendingResults.remove(key, this);
+      if (!finish(STATE_TIMED_OUT, null)) {
+        return;
+      }
+      deliveryExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            receiver.onTimeout();
+          } catch (RuntimeException e) {
+            LogUtil.log.e("failed to deliver timeout " + key, e);
+          }
+        }
+      });
+    }
+
+    private boolean finish(int newState, T value) {
+      synchronized (this) {
+        if (state != STATE_PENDING) {
+          return false;
+        }
+        state = newState;
+        result = value;
+        if (null != timeoutFuture) {
+          timeoutFuture.cancel(false);
+          timeoutFuture = null;
+        }
+      }
+      latch.countDown();
+      return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      pendingResults.remove(key, this);
+      return finish(STATE_CANCELLED, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      return state != STATE_PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+      latch.await();
+      return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (!latch.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return report();
+    }
+
+    private synchronized T report() throws ExecutionException {
+      if (state == STATE_CANCELLED) {
+        throw new CancellationException();
+      } else if (state == STATE_TIMED_OUT) {
+        throw new ExecutionException(new TimeoutException("no result for " + key));
+      }
+      return result;
+    }
+  }
+}
@@ -15,6 +15,7 @@ import com.avos.avospush.session.ConversationControlPacket;
 import com.avos.avospush.session.ConversationQueryPacket;
 import com.avos.avospush.session.MessageReceiptCache;
 import com.avos.avospush.session.SessionControlPacket;
+import com.avos.avospush.session.StaleMessageDepot;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -36,6 +37,7 @@ public class AVSession {
   public static final String ERROR_INVALID_SESSION_ID = "Null id in session id list.";
 
   static int timeoutInSecs = 15;
+  static int messageDepotCapacity = StaleMessageDepot.DEFAULT_CAPACITY;
 
   /**
    * 用于 read 的多端同步
@@ -69,6 +71,8 @@ public class AVSession {
 
   PendingMessageCache<Message> pendingMessages;
   AVIMOperationQueue conversationOperationCache;
+  final AVAckAggregator ackAggregator;
+  private volatile boolean outboundCongested = false;
   private final ConcurrentHashMap<String, AVInternalConversation> sessionConversationCache =
       new ConcurrentHashMap<String, AVInternalConversation>();
 
@@ -101,6 +105,7 @@ public class AVSession {
     this.websocketListener = new AVSessionWebSocketListener(this);
     pendingMessages = new PendingMessageCache<Message>(selfId, Message.class);
     conversationOperationCache = new AVIMOperationQueue(selfId);
+    ackAggregator = new AVAckAggregator(selfId);
   }
 
   public void open(final AVIMClientParcel parcel, final int requestId) {
@@ -185,6 +190,8 @@ public class AVSession {
     // session的close操作需要做到即便是不成功的，本地也要认为成功了
 
     try {
+      // 连接正常时先把还没发出的 ack 发出去，避免服务器重复下发；连接已经断开时不会发送
+      ackAggregator.flush();
       // 都关掉了，我们需要去除Session记录
       AVSessionCacheHelper.getTagCacheInstance().removeSession(getSelfPeerId());
       AVSessionCacheHelper.IMSessionTokenCache.removeIMSessionToken(getSelfPeerId());
@@ -227,6 +234,41 @@ public class AVSession {
     lastServerAckReceived.set(lastAckReceivedTimestamp);
   }
 
+  void setOutboundCongested(boolean congested) {
+    outboundCongested = congested;
+  }
+
+  /**
+   * 长连接的上行队列是否积压过多，此时应当暂缓发送非必要的指令
+   */
+  public boolean isOutboundCongested() {
+    return outboundCongested;
+  }
+
+  /**
+   * 指令没有发送出去（连接不可用或者上行队列已满），让等待结果的请求立即失败，而不是等到超时
+   */
+  void onPacketDropped(CommandPacket packet) {
+    int requestId = packet.getRequestId();
+    if (requestId == CommandPacket.UNSUPPORTED_OPERATION) {
+      return;
+    }
+    // 已经收到结果或者超时的请求，Operation 已经被取走了
+    Operation op = conversationOperationCache.poll(requestId);
+    if (null == op) {
+      return;
+    }
+    pendingMessages.remove(String.valueOf(requestId));
+    if (op.operation == AVIMOperation.CLIENT_DISCONNECT.getCode()) {
+      // session 的 close 即便没有发出去，本地也要认为成功了
+      sessionListener.onSessionClose(context, this, requestId);
+      return;
+    }
+    BroadcastUtil.sendIMLocalBroadcast(op.sessionId, op.conversationId, requestId,
+        new AVException(AVException.CONNECTION_FAILED, "Connection Lost"),
+        AVIMOperation.getAVIMOperation(op.operation));
+  }
+
   protected void queryOnlinePeers(List<String> peerIds, int requestId) {
     SessionControlPacket scp =
       SessionControlPacket.genSessionCommand(this.selfId, peerIds,
@@ -338,6 +380,16 @@ public class AVSession {
     timeoutInSecs = timeout;
   }
 
+  /**
+   * 设置用于消息去重的 id 数量，对之后创建的 session 生效
+   * @param capacity
+   */
+  public static void setMessageDepotCapacity(int capacity) {
+    if (capacity > 0) {
+      messageDepotCapacity = capacity;
+    }
+  }
+
   long getLastNotifyTime() {
     if (lastNotifyTime <= 0) {
       lastNotifyTime = AVPersistenceUtils.sharedInstance().getPersistentSettingLong(selfId, LAST_NOTIFY_TIME, 0L);
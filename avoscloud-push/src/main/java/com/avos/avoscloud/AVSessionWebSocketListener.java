@@ -14,10 +14,8 @@ import com.avos.avoscloud.im.v2.Conversation;
 import com.avos.avoscloud.im.v2.Conversation.AVIMOperation;
 import com.avos.avospush.push.AVWebSocketListener;
 import com.avos.avospush.session.CommandPacket;
-import com.avos.avospush.session.ConversationAckPacket;
 import com.avos.avospush.session.ConversationControlPacket.ConversationControlOp;
 import com.avos.avospush.session.MessageReceiptCache;
-import com.avos.avospush.session.SessionAckPacket;
 import com.avos.avospush.session.SessionControlPacket;
 import com.avos.avospush.session.StaleMessageDepot;
 
@@ -29,7 +27,8 @@ class AVSessionWebSocketListener implements AVWebSocketListener {
 
   public AVSessionWebSocketListener(AVSession session) {
     this.session = session;
-    depot = new StaleMessageDepot(SESSION_MESSASGE_DEPOT + session.getSelfPeerId());
+    depot = new StaleMessageDepot(SESSION_MESSASGE_DEPOT + session.getSelfPeerId(),
+        AVSession.messageDepotCapacity);
   }
 
   private static final int CODE_SESSION_SIGNATURE_FAILURE = 4102;
@@ -124,6 +123,8 @@ class AVSessionWebSocketListener implements AVWebSocketListener {
 
   @Override
   public void onWebSocketClose() {
+    // socket 已经断开，ack 留到重新登录之后再发
+    session.ackAggregator.pause();
     if (!session.sessionPaused.getAndSet(true)) {
       try {
         session.sessionListener.onSessionPaused(AVOSCloud.applicationContext, session);
@@ -169,12 +170,7 @@ class AVSessionWebSocketListener implements AVWebSocketListener {
 
     try {
       if (!isTransient) {
-        if (!AVUtils.isBlankString(conversationId)) {
-          PushService.sendData(ConversationAckPacket.getConversationAckPacket(
-            session.getSelfPeerId(), conversationId, messageId));
-        } else {
-          PushService.sendData(genSessionAckPacket(messageId));
-        }
+        session.ackAggregator.add(conversationId, messageId, hasMore);
       }
 
       if (depot.putStableMessage(messageId) && !AVUtils.isBlankString(conversationId)) {
@@ -196,6 +192,8 @@ class AVSessionWebSocketListener implements AVWebSocketListener {
       try {
         session.sessionOpened.set(true);
         session.sessionResume.set(false);
+        // 登录成功之后再发出断开期间保留的 ack
+        session.ackAggregator.resume();
 
         if (!session.sessionPaused.getAndSet(false)) {
           int requestId = (null != requestKey ? requestKey : CommandPacket.UNSUPPORTED_OPERATION);
@@ -383,16 +381,6 @@ class AVSessionWebSocketListener implements AVWebSocketListener {
     }
   }
 
-  private SessionAckPacket genSessionAckPacket(String messageId) {
-    SessionAckPacket sap = new SessionAckPacket();
-    sap.setPeerId(session.getSelfPeerId());
-    if (!AVUtils.isBlankString(messageId)) {
-      sap.setMessageId(messageId);
-    }
-
-    return sap;
-  }
-
   @Override
   public void onError(Integer requestKey, Messages.ErrorCommand errorCommand) {
     if (null != requestKey && requestKey != CommandPacket.UNSUPPORTED_OPERATION) {
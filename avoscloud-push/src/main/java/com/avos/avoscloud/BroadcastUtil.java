@@ -1,15 +1,61 @@
 package com.avos.avoscloud;
 
+import android.content.BroadcastReceiver;
 import android.content.Intent;
 import android.os.Bundle;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.avos.avoscloud.im.v2.Conversation;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
 /**
  * Created by lbt05 on 7/17/15.
  */
 public class BroadcastUtil {
+  // 在 AVIMOperationQueue 的超时之外再留出的时间，只用于服务端一直没有返回结果的情况
+  private static final long IM_RESULT_TIMEOUT_GRACE = 30 * 1000;
+
+  private static final AVResultBus<Intent> imResultBus = new AVResultBus<Intent>(
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          // 与 LocalBroadcastManager 一样在主线程回调
+          if (!AVOSCloud.handler.post(command)) {
+            LogUtil.log.e("Post runnable to handler failed.");
+          }
+        }
+      }, new ScheduledThreadPoolExecutor(1));
+
+  /**
+   * 在进程内直接接收 IM 操作的结果，代替在 LocalBroadcastManager 上注册 receiver
+   *
+   * @param action   operation.getOperation() + requestId
+   * @param receiver 收到结果或者超时后被调用一次
+   * @return 可以用来等待结果或者取消
+   */
+  public static Future<Intent> registerIMResultReceiver(final String action,
+                                                        final BroadcastReceiver receiver) {
+    return imResultBus.register(action, new AVResultBus.Receiver<Intent>() {
+      @Override
+      public void onResult(Intent result) {
+        receiver.onReceive(AVOSCloud.applicationContext, result);
+      }
+
+      @Override
+      public void onTimeout() {
+        AVException exception = new AVException(AVException.TIMEOUT, "Timeout Exception");
+        Intent intent = new Intent(action);
+        intent.putExtra(Conversation.callbackExceptionKey, exception);
+        // 查询类的 receiver 从 callbackData 中读取错误
+        intent.putExtra(Conversation.callbackData, exception);
+        receiver.onReceive(AVOSCloud.applicationContext, intent);
+      }
+    }, AVSession.timeoutInSecs * 1000L + IM_RESULT_TIMEOUT_GRACE);
+  }
+
   public static void sendIMLocalBroadcast(String clientId, String conversationId, int requestId, Conversation.AVIMOperation operation) {
     sendIMLocalBroadcast(clientId, conversationId, requestId, null, null, operation);
   }
@@ -26,7 +72,8 @@ public class BroadcastUtil {
     if (isOperationValid(operation)) {
       String keyHeader = operation.getOperation();
 
-      Intent callbackIntent = new Intent(keyHeader + requestId);
+      String action = keyHeader + requestId;
+      Intent callbackIntent = new Intent(action);
 
       callbackIntent.putExtra(Conversation.callbackClientKey, clientId);
       if (!AVUtils.isBlankString(conversationId)) {
@@ -40,7 +87,9 @@ public class BroadcastUtil {
       if (null != bundle) {
         callbackIntent.putExtras(bundle);
       }
-      LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).sendBroadcast(callbackIntent);
+      if (!imResultBus.deliver(action, callbackIntent)) {
+        LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).sendBroadcast(callbackIntent);
+      }
     }
   }
 
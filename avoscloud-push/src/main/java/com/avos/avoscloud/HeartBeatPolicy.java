@@ -6,8 +6,11 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Created by wli on 2017/6/7.
+ *
+ * 自适应的心跳：连续 HEALTHY_PONGS_TO_GROW 次按时收到 pong 之后把间隔加长 HEART_BEAT_STEP，
+ * 超时之后把间隔减半，间隔始终在 [MIN_HEART_BEAT_INTERVAL, MAX_HEART_BEAT_INTERVAL] 之间。
+ * 网络稳定时可以减少唤醒 radio 的次数，遇到会提前回收连接的 NAT 时又能很快退回较短的间隔。
  */
-
 abstract class HeartBeatPolicy {
 
   /**
@@ -15,51 +18,126 @@ abstract class HeartBeatPolicy {
    */
   private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
+  /**
+   * 初始心跳设置为 180s
+   */
+  static final long DEFAULT_HEART_BEAT_INTERVAL = 180 * 1000;
+  static final long MIN_HEART_BEAT_INTERVAL = 60 * 1000;
+  static final long MAX_HEART_BEAT_INTERVAL = 480 * 1000;
+  static final long HEART_BEAT_STEP = 30 * 1000;
+  static final int HEALTHY_PONGS_TO_GROW = 3;
+
+  private final AVClock clock;
+
   private Future healthFuture;
 
   /**
-   * 最近收到 ping 的时间
+   * 最近收到 pong 的时间
    */
   private long lastPongTS;
 
   /**
-   * 心跳设置为 180s
+   * 最近发送 ping 的时间
    */
-  private final long HEART_BEAT_INTERNAL = 180 * 1000;
+  private long lastPingTS;
+
+  private long heartBeatInterval = DEFAULT_HEART_BEAT_INTERVAL;
+
+  private int healthyPongs = 0;
 
   /**
-   * 超时时长设置为两个心跳
+   * 每次 startHeartbeat 都会加一，旧的定时任务据此判断自己是否已经失效
    */
-  private final long HEALTHY_THRESHOLD = HEART_BEAT_INTERNAL * 2;
+  private int generation = 0;
+
+  private class HealthMonitor implements Runnable {
+    private final int monitorGeneration;
+
+    HealthMonitor(int monitorGeneration) {
+      this.monitorGeneration = monitorGeneration;
+    }
 
-  private Runnable healthMonitor = new Runnable() {
     @Override
     public void run() {
-      if (System.currentTimeMillis() - lastPongTS > HEALTHY_THRESHOLD) {
-        onTimeOut();
-      } else {
-        sendPing();
+      synchronized (HeartBeatPolicy.this) {
+        if (monitorGeneration != generation || null == healthFuture) {
+          return;
+        }
+      }
+      long delay = checkHealth();
+      synchronized (HeartBeatPolicy.this) {
+        if (delay > 0 && monitorGeneration == generation && null != healthFuture) {
+          healthFuture = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
       }
     }
-  };
+  }
+
+  HeartBeatPolicy() {
+    this(AVClock.SYSTEM);
+  }
+
+  HeartBeatPolicy(AVClock clock) {
+    this.clock = clock;
+  }
 
   synchronized void onPong() {
-    lastPongTS = System.currentTimeMillis();
+    lastPongTS = clock.currentTimeMillis();
   }
 
   synchronized void startHeartbeat() {
     stopHeartbeat();
-    lastPongTS = System.currentTimeMillis();
-    healthFuture = executor.scheduleAtFixedRate(healthMonitor, HEART_BEAT_INTERNAL, HEART_BEAT_INTERNAL,
+    lastPongTS = clock.currentTimeMillis();
+    lastPingTS = 0;
+    generation++;
+    healthFuture = executor.schedule(new HealthMonitor(generation), heartBeatInterval,
       TimeUnit.MILLISECONDS);
   }
 
-   synchronized void stopHeartbeat() {
+  synchronized void stopHeartbeat() {
     if (null != healthFuture) {
       healthFuture.cancel(true);
+      healthFuture = null;
     }
   }
 
+  /**
+   * 检查连接状态并调整心跳间隔
+   *
+   * @return 下一次检查的延时，连接超时时返回 0
+   */
+  long checkHealth() {
+    boolean timeout;
+    synchronized (this) {
+      long now = clock.currentTimeMillis();
+      // 超时时长为两个心跳
+      timeout = now - lastPongTS > heartBeatInterval * 2;
+      if (timeout) {
+        healthyPongs = 0;
+        heartBeatInterval = Math.max(MIN_HEART_BEAT_INTERVAL, heartBeatInterval / 2);
+      } else {
+        if (lastPingTS > 0 && lastPongTS >= lastPingTS) {
+          healthyPongs++;
+          if (healthyPongs >= HEALTHY_PONGS_TO_GROW) {
+            healthyPongs = 0;
+            heartBeatInterval = Math.min(MAX_HEART_BEAT_INTERVAL, heartBeatInterval + HEART_BEAT_STEP);
+          }
+        }
+        lastPingTS = now;
+      }
+    }
+    if (timeout) {
+      onTimeOut();
+      return 0;
+    }
+    sendPing();
+    return getHeartBeatInterval();
+  }
+
+  synchronized long getHeartBeatInterval() {
+    return heartBeatInterval;
+  }
+
   public abstract void onTimeOut();
 
   public abstract void sendPing();
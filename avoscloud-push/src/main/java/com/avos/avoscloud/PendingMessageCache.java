@@ -46,6 +46,17 @@ class PendingMessageCache<E extends HasId> {
     return messages.poll();
   }
 
+  /**
+   * 与 poll(msgId) 不同，找不到时返回 null
+   */
+  E remove(String msgId) {
+    E returnValue = AVUtils.isBlankString(msgId) ? null : msgMapping.remove(msgId);
+    if (null != returnValue) {
+      messages.remove(returnValue);
+    }
+    return returnValue;
+  }
+
   public void clear() {
     messages.clear();
     msgMapping.clear();
@@ -572,6 +572,16 @@ public class PushService extends Service {
     PushService.isAutoWakeUp = isAutoWakeUp;
   }
 
+  /**
+   * 设置用于推送消息去重的 id 数量，需要在 PushService 启动之前调用
+   * @param capacity 默认为 50
+   */
+  public static void setMessageDepotCapacity(int capacity) {
+    if (capacity > 0) {
+      AVNotificationManager.messageDepotCapacity = capacity;
+    }
+  }
+
   private static Handler _installationSaveHandler = new Handler(Looper.getMainLooper()) {
 
     public void handleMessage(Message m) {
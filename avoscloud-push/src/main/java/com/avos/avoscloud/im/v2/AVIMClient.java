@@ -9,8 +9,6 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.BroadcastReceiver;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.v4.content.LocalBroadcastManager;
 
 import com.alibaba.fastjson.JSON;
 import com.avos.avoscloud.AVException;
@@ -19,6 +17,7 @@ import com.avos.avoscloud.AVOSCloud;
 import com.avos.avoscloud.AVSession;
 import com.avos.avoscloud.AVUser;
 import com.avos.avoscloud.AVUtils;
+import com.avos.avoscloud.BroadcastUtil;
 import com.avos.avoscloud.IntentUtil;
 import com.avos.avoscloud.PushService;
 import com.avos.avoscloud.SignatureFactory;
@@ -26,6 +25,7 @@ import com.avos.avoscloud.im.v2.Conversation.AVIMOperation;
 import com.avos.avoscloud.im.v2.callback.AVIMClientCallback;
 import com.avos.avoscloud.im.v2.callback.AVIMClientStatusCallback;
 import com.avos.avoscloud.im.v2.callback.AVIMConversationCreatedCallback;
+import com.avos.avoscloud.im.v2.callback.AVIMMessagesPrefetchCallback;
 import com.avos.avoscloud.im.v2.callback.AVIMOnlineClientsCallback;
 
 /**
@@ -42,11 +42,12 @@ public class AVIMClient {
   private String sessionToken;
   static ConcurrentHashMap<String, AVIMClient> clients =
       new ConcurrentHashMap<String, AVIMClient>();
-  ConcurrentHashMap<String, AVIMConversation> conversationCache =
-      new ConcurrentHashMap<String, AVIMConversation>();
+  AVIMConversationCache conversationCache =
+      new AVIMConversationCache(conversationCacheSize);
   boolean isConversationSync = false;
 
   private static boolean isAutoOpen = true;
+  private static int conversationCacheSize = AVIMConversationCache.DEFAULT_CAPACITY;
 
   public SignatureFactory getSignatureFactory() {
     return AVSession.getSignatureFactory();
@@ -75,6 +76,16 @@ public class AVIMClient {
     AVSession.setTimeoutInSecs(timeoutInSecs);
   }
 
+  /**
+   * 设置每个 AVIMClient 用于消息去重的最近消息 id 数量，默认为 50
+   * 需要在 open 之前调用
+   *
+   * @param capacity
+   */
+  public static void setMessageDepotCapacity(int capacity) {
+    AVSession.setMessageDepotCapacity(capacity);
+  }
+
   /**
    * 设置实时通信是否要在 App 重新启动后自动登录
    * @param isAuto
@@ -83,6 +94,18 @@ public class AVIMClient {
     isAutoOpen = isAuto;
   }
 
+  /**
+   * 设置每个 AVIMClient 在内存中最多保留的 conversation 数量，默认为 256
+   * 超出数量的 conversation 不再被应用引用之后会被回收，需要时再从本地缓存中读取
+   * @param size
+   */
+  public static void setConversationCacheSize(int size) {
+    conversationCacheSize = Math.max(1, size);
+    for (AVIMClient client : clients.values()) {
+      client.conversationCache.setCapacity(conversationCacheSize);
+    }
+  }
+
   /**
    * 实时通信是否要在 App 重新启动后自动登录
    */
@@ -366,7 +389,12 @@ public class AVIMClient {
     if (conversation != null) {
       return conversation;
     } else {
-      conversation = new AVIMConversation(this, conversationId);
+      if (conversationCache.isStored(conversationId)) {
+        conversation = storage.getConversation(conversationId);
+      }
+      if (null == conversation) {
+        conversation = new AVIMConversation(this, conversationId);
+      }
       AVIMConversation elderConversation =
           conversationCache.putIfAbsent(conversationId, conversation);
       return elderConversation == null ? conversation : elderConversation;
@@ -374,6 +402,52 @@ public class AVIMClient {
   }
 
 
+  /**
+   * 一次性从本地缓存中读取多个对话的未读消息数和最后一条消息，用于展示对话列表
+   *
+   * 调用之后这些对话的 getUnreadMessagesCount 和 getLastMessage 直接返回读取到的值，
+   * 不需要为每个对话单独查询本地缓存
+   *
+   * @param conversations
+   */
+  public void loadConversationSummaries(List<AVIMConversation> conversations) {
+    if (!messageQueryCacheEnabled || null == conversations || conversations.isEmpty()) {
+      return;
+    }
+    List<String> conversationIds = new ArrayList<String>(conversations.size());
+    for (AVIMConversation conversation : conversations) {
+      conversationIds.add(conversation.getConversationId());
+    }
+    Map<String, AVIMMessageStorage.ConversationSummary> summaries =
+        storage.getConversationSummaries(conversationIds);
+    for (AVIMConversation conversation : conversations) {
+      AVIMMessageStorage.ConversationSummary summary =
+          summaries.get(conversation.getConversationId());
+      if (null != summary) {
+        conversation.applySummary(summary.unreadCount, summary.lastMessage);
+      }
+    }
+  }
+
+  /**
+   * 批量拉取多个对话的最新消息并写入本地缓存，一般在重新连接之后为当前可见的对话调用
+   *
+   * 请求会同时发出（最多 4 个并发），每个对话返回后立即写入本地缓存并回调 onConversationPrefetched，
+   * 之后调用 queryMessages 可以直接从本地缓存中读取
+   *
+   * @param conversationIds 需要拉取的对话
+   * @param limit 每个对话拉取的消息数量
+   * @param callback
+   */
+  public void prefetchMessages(List<String> conversationIds, int limit,
+      AVIMMessagesPrefetchCallback callback) {
+    if (null == conversationIds) {
+      conversationIds = new ArrayList<String>();
+    }
+    new AVIMMessagePrefetcher(this, conversationIds, limit,
+        AVIMMessagePrefetcher.DEFAULT_MAX_CONCURRENT, callback).start();
+  }
+
   /**
    * 获取AVIMConversationQuery对象，以此来查询conversation
    * @deprecated 由于历史原因，AVIMConversationQuery 只能检索 _Conversation 表中 attr 列中的属性，
@@ -521,8 +595,7 @@ public class AVIMClient {
     int requestId = AVUtils.getNextIMRequestId();
 
     if (receiver != null) {
-      LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).registerReceiver(receiver,
-        new IntentFilter(operation.getOperation() + requestId));
+      BroadcastUtil.registerIMResultReceiver(operation.getOperation() + requestId, receiver);
     }
     Intent i = new Intent(AVOSCloud.applicationContext, PushService.class);
     i.setAction(Conversation.AV_CONVERSATION_INTENT_ACTION);
@@ -539,8 +612,7 @@ public class AVIMClient {
     int requestId = AVUtils.getNextIMRequestId();
 
     if (receiver != null) {
-      LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).registerReceiver(receiver,
-          new IntentFilter(operation.getOperation() + requestId));
+      BroadcastUtil.registerIMResultReceiver(operation.getOperation() + requestId, receiver);
     }
     Intent i = new Intent(AVOSCloud.applicationContext, PushService.class);
     i.setAction(Conversation.AV_CONVERSATION_INTENT_ACTION);
@@ -568,13 +640,11 @@ public class AVIMClient {
   }
 
   /**
-   * 同步 sqlite 中数据到 conversationCache，只需要同步一次就可以
+   * 同步 sqlite 中 conversation 的 id 到 conversationCache，只需要同步一次就可以
+   * conversation 的完整数据在第一次访问时才从 sqlite 中解析
    */
   private void syncConversationCache() {
-    List<AVIMConversation> cachedConversations = storage.getAllCachedConversations();
-    for (AVIMConversation conversation : cachedConversations) {
-      conversationCache.put(conversation.getConversationId(), conversation);
-    }
+    conversationCache.loadStoredIds(storage.getConversationIds());
     isConversationSync = true;
   }
 
@@ -1,8 +1,6 @@
 package com.avos.avoscloud.im.v2;
 
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.support.v4.content.LocalBroadcastManager;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
@@ -11,6 +9,7 @@ import com.avos.avoscloud.AVException;
 import com.avos.avoscloud.AVOSCloud;
 import com.avos.avoscloud.AVObject;
 import com.avos.avoscloud.AVUtils;
+import com.avos.avoscloud.BroadcastUtil;
 import com.avos.avoscloud.IntentUtil;
 import com.avos.avoscloud.LogUtil;
 import com.avos.avoscloud.PushService;
@@ -261,6 +260,13 @@ public class AVIMConversation {
     });
   }
 
+  /**
+   * 从服务器端拉取最新消息，不写入本地缓存
+   */
+  void queryLatestMessagesFromServer(int limit, AVIMMessagesQueryCallback callback) {
+    queryMessagesFromServer(null, 0, limit, null, 0, callback);
+  }
+
   /**
    * 从本地缓存中拉取消息
    * @param limit
@@ -337,7 +343,7 @@ public class AVIMConversation {
       // 如果本地的缓存的量都不够的情况下，应该要去服务器查询，以免第一次查询的时候出现limit跟返回值不一致让用户认为聊天记录已经到头的问题
       if (cacheMessageCount >= limit) {
         final AVIMMessage latestMessage =
-            storage.getLatestMessageWithBreakpoint(conversationId, false);
+            storage.getLatestMessageKeyWithBreakpoint(conversationId, false);
 
         if (latestMessage != null) {
           toMsgId = latestMessage.getMessageId();
@@ -424,7 +430,7 @@ public class AVIMConversation {
               long startTS = timestamp;
               int requestLimit = limit;
               if (indicatorMessage != null && isIndicateMessageBreakPoint) {
-                AVIMMessage nextMessage = storage.getNextMessage(indicatorMessage);
+                AVIMMessage nextMessage = storage.getNextMessageKey(indicatorMessage);
                 if (nextMessage != null) {
                   startMsgId = nextMessage.getMessageId();
                   startTS = nextMessage.getTimestamp();
@@ -888,6 +894,16 @@ public class AVIMConversation {
 
   void increaseUnreadCount(int num) {
     unreadMessagesCount = getUnreadMessagesCount() + num;
+    storage.updateConversationUreadCount(conversationId, unreadMessagesCount);
+  }
+
+  /**
+   * 使用本地缓存中的摘要更新未读数和最后一条消息，之后 getLastMessage 不再单独查询本地缓存
+   */
+  void applySummary(int unreadCount, AVIMMessage lastMessage) {
+    unreadMessagesCount = unreadCount;
+    setLastMessage(lastMessage);
+    isSyncLastMessage = true;
   }
 
   void updateUnreadCountAndMessage(AVIMMessage lastMessage, int unreadCount) {
@@ -922,6 +938,9 @@ public class AVIMConversation {
         params.put(Conversation.PARAM_MESSAGE_QUERY_TIMESTAMP, lastMessage.getTimestamp());
       }
       this.sendCMDToPushService(JSON.toJSONString(params), AVIMOperation.CONVERSATION_READ, null, null);
+      // 已读回执发出之后本地的未读数也要清零，否则重新加载时又会显示之前的未读数
+      unreadMessagesCount = 0;
+      storage.updateConversationUreadCount(conversationId, 0);
     }
   }
 
@@ -1100,9 +1119,8 @@ public class AVIMConversation {
     i.putExtra(Conversation.INTENT_KEY_CONVERSATION, this.conversationId);
     i.putExtra(Conversation.INTENT_KEY_REQUESTID, requestId);
     i.putExtra(Conversation.INTENT_KEY_OPERATION, operation.getCode());
-    AVOSCloud.applicationContext.startService(IntentUtil.setupIntentFlags(i));
     if (callback != null) {
-      LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).registerReceiver(
+      BroadcastUtil.registerIMResultReceiver(operation.getOperation() + requestId,
         new AVIMBaseBroadcastReceiver(callback) {
           @Override
           public void execute(Intent intent, Throwable error) {
@@ -1117,8 +1135,9 @@ public class AVIMConversation {
               callback.internalDone(new AVException(error));
             }
           }
-        }, new IntentFilter(operation.getOperation() + requestId));
+        });
     }
+    AVOSCloud.applicationContext.startService(IntentUtil.setupIntentFlags(i));
   }
 
   private void onMessageRecalled(PushServiceParcel pushServiceParcel, long patchTime, AVCallback callback) {
@@ -1185,9 +1204,8 @@ public class AVIMConversation {
     i.putExtra(Conversation.INTENT_KEY_OPERATION, operation.getCode());
     i.putExtra(Conversation.INTENT_KEY_REQUESTID, requestId);
 
-    AVOSCloud.applicationContext.startService(IntentUtil.setupIntentFlags(i));
     if (callback != null) {
-      LocalBroadcastManager.getInstance(AVOSCloud.applicationContext).registerReceiver(
+      BroadcastUtil.registerIMResultReceiver(operation.getOperation() + requestId,
           new AVIMBaseBroadcastReceiver(callback) {
             @Override
             public void execute(Intent intent, Throwable error) {
@@ -1276,8 +1294,9 @@ public class AVIMConversation {
               }
               callback.internalDone(null, AVIMException.wrapperAVException(error));
             }
-          }, new IntentFilter(operation.getOperation() + requestId));
+          });
     }
+    AVOSCloud.applicationContext.startService(IntentUtil.setupIntentFlags(i));
   }
 
   /**
@@ -0,0 +1,151 @@
+package com.avos.avoscloud.im.v2;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AVIMClient 内存中的 conversation 缓存
+ *
+ * 最近访问的 conversation 保存在有容量上限的 LRU 中，被淘汰的 conversation 只保留弱引用：
+ * 应用还持有它的时候 getConversation 依然返回同一个实例，不再被引用之后交给 GC 回收，
+ * 下次访问时再从 sqlite 中单独解析这一行。
+ *
+ * 启动时只加载 sqlite 中 conversation 的 id，用来判断 sqlite 中是否有这个 conversation，
+ * 避免一次性解析所有 conversation 的 attributes、members 和 lastMessage。
+ */
+class AVIMConversationCache {
+  static final int DEFAULT_CAPACITY = 256;
+
+  private final LinkedHashMap<String, AVIMConversation> recentConversations;
+  private final HashMap<String, ConversationReference> evictedConversations =
+      new HashMap<String, ConversationReference>();
+  private final ReferenceQueue<AVIMConversation> referenceQueue =
+      new ReferenceQueue<AVIMConversation>();
+  private final HashSet<String> storedIds = new HashSet<String>();
+  private int capacity;
+
+  AVIMConversationCache(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.recentConversations = new LinkedHashMap<String, AVIMConversation>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, AVIMConversation> eldest) {
+        if (size() > AVIMConversationCache.this.capacity) {
+          evict(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  synchronized AVIMConversation get(String conversationId) {
+    AVIMConversation conversation = recentConversations.get(conversationId);
+    if (null != conversation) {
+      return conversation;
+    }
+    purgeCollectedReferences();
+    ConversationReference reference = evictedConversations.remove(conversationId);
+    if (null != reference) {
+      conversation = reference.get();
+      if (null != conversation) {
+        recentConversations.put(conversationId, conversation);
+      }
+    }
+    return conversation;
+  }
+
+  synchronized void put(String conversationId, AVIMConversation conversation) {
+    evictedConversations.remove(conversationId);
+    recentConversations.put(conversationId, conversation);
+    remember(conversationId);
+  }
+
+  /**
+   * @return 已经缓存的 conversation，没有的话返回 null 并缓存新的 conversation
+   */
+  synchronized AVIMConversation putIfAbsent(String conversationId, AVIMConversation conversation) {
+    AVIMConversation elder = get(conversationId);
+    if (null != elder) {
+      return elder;
+    }
+    put(conversationId, conversation);
+    return null;
+  }
+
+  synchronized void remove(String conversationId) {
+    recentConversations.remove(conversationId);
+    evictedConversations.remove(conversationId);
+    storedIds.remove(conversationId);
+  }
+
+  synchronized void clear() {
+    recentConversations.clear();
+    evictedConversations.clear();
+    storedIds.clear();
+  }
+
+  /**
+   * 加载 sqlite 中的 conversation id
+   */
+  synchronized void loadStoredIds(Collection<String> conversationIds) {
+    storedIds.addAll(conversationIds);
+  }
+
+  /**
+   * @return 为 true 时 sqlite 中可能有这个 conversation，需要的时候再从 sqlite 中解析
+   */
+  synchronized boolean isStored(String conversationId) {
+    return storedIds.contains(conversationId);
+  }
+
+  synchronized void setCapacity(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    while (recentConversations.size() > this.capacity) {
+      Map.Entry<String, AVIMConversation> eldest = recentConversations.entrySet().iterator().next();
+      recentConversations.remove(eldest.getKey());
+      evict(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  /**
+   * @return LRU 中的 conversation 数量，不包括只保留弱引用的
+   */
+  synchronized int size() {
+    return recentConversations.size();
+  }
+
+  private void remember(String conversationId) {
+    // 放进缓存的 conversation 可能已经写入了 sqlite，被回收之后需要能再解析出来
+    storedIds.add(conversationId);
+  }
+
+  private void evict(String conversationId, AVIMConversation conversation) {
+    purgeCollectedReferences();
+    evictedConversations.put(conversationId,
+        new ConversationReference(conversationId, conversation, referenceQueue));
+  }
+
+  private void purgeCollectedReferences() {
+    ConversationReference reference;
+    while ((reference = (ConversationReference) referenceQueue.poll()) != null) {
+      if (evictedConversations.get(reference.conversationId) == reference) {
+        evictedConversations.remove(reference.conversationId);
+      }
+    }
+  }
+
+  private static class ConversationReference extends WeakReference<AVIMConversation> {
+    final String conversationId;
+
+    ConversationReference(String conversationId, AVIMConversation conversation,
+        ReferenceQueue<AVIMConversation> queue) {
+      super(conversation, queue);
+      this.conversationId = conversationId;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.LogUtil;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并 conversation 表中计数类字段的更新
+ *
+ * 每收到一条消息或者回执都会更新 unread、lm、readAt 等字段，这里按 conversation 合并同一段时间内的更新，
+ * 只保留每个字段最后的值，在 FLUSH_WINDOW 之后或者攒够 MAX_PENDING 个 conversation 时在一个事务中写入。
+ */
+class AVIMConversationUpdateBuffer {
+  static final long FLUSH_WINDOW = 300;
+  static final int MAX_PENDING = 64;
+
+  private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+
+  /**
+   * 一个 conversation 待写入的字段，为 null 的字段不需要更新
+   */
+  static class Update {
+    final String conversationId;
+    Long readAt;
+    Long deliveredAt;
+    Long unreadCount;
+    Long lastMessageAt;
+
+    Update(String conversationId) {
+      this.conversationId = conversationId;
+    }
+  }
+
+  interface Writer {
+    void write(Collection<Update> updates);
+  }
+
+  private final Writer writer;
+  private final Map<String, Update> pendingUpdates = new LinkedHashMap<String, Update>();
+  private final Object writeLock = new Object();
+  private Future flushFuture;
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  AVIMConversationUpdateBuffer(Writer writer) {
+    this.writer = writer;
+  }
+
+  void updateTimes(String conversationId, long readAt, long deliveredAt) {
+    synchronized (this) {
+      Update update = getUpdate(conversationId);
+      update.readAt = readAt;
+      update.deliveredAt = deliveredAt;
+    }
+    scheduleFlush();
+  }
+
+  void updateUnreadCount(String conversationId, long unreadCount) {
+    synchronized (this) {
+      getUpdate(conversationId).unreadCount = unreadCount;
+    }
+    scheduleFlush();
+  }
+
+  void updateLastMessageAt(String conversationId, long lastMessageAt) {
+    synchronized (this) {
+      getUpdate(conversationId).lastMessageAt = lastMessageAt;
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * 立即写入所有未写入的更新，读取 conversation 表之前调用
+   */
+  void flush() {
+    // 两个线程同时 flush 时，先取出的一批必须先写入，否则旧的值会覆盖新的值
+    synchronized (writeLock) {
+      Collection<Update> updates;
+      synchronized (this) {
+        if (null != flushFuture) {
+          flushFuture.cancel(false);
+          flushFuture = null;
+        }
+        if (pendingUpdates.isEmpty()) {
+          return;
+        }
+        updates = new ArrayList<Update>(pendingUpdates.values());
+        pendingUpdates.clear();
+      }
+      try {
+        writer.write(updates);
+      } catch (RuntimeException e) {
+        LogUtil.log.e("failed to update conversations", e);
+      }
+    }
+  }
+
+  /**
+   * conversation 被删除时丢弃它未写入的更新
+   */
+  synchronized void discard(String conversationId) {
+    pendingUpdates.remove(conversationId);
+  }
+
+  synchronized void clear() {
+    pendingUpdates.clear();
+    if (null != flushFuture) {
+      flushFuture.cancel(false);
+      flushFuture = null;
+    }
+  }
+
+  synchronized int getPendingCount() {
+    return pendingUpdates.size();
+  }
+
+  private Update getUpdate(String conversationId) {
+    Update update = pendingUpdates.get(conversationId);
+    if (null == update) {
+      update = new Update(conversationId);
+      pendingUpdates.put(conversationId, update);
+    }
+    return update;
+  }
+
+  private void scheduleFlush() {
+    boolean flushNow = false;
+    synchronized (this) {
+      if (pendingUpdates.size() >= MAX_PENDING) {
+        flushNow = true;
+      } else if (null == flushFuture) {
+        flushFuture = executor.schedule(flushTask, FLUSH_WINDOW, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (flushNow) {
+      flush();
+    }
+  }
+}
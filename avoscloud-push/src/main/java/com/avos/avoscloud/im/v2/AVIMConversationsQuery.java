@@ -8,14 +8,11 @@ import android.support.v4.content.LocalBroadcastManager;
 import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
-import com.avos.avoscloud.AVCacheManager;
-import com.avos.avoscloud.AVErrorUtils;
 import com.avos.avoscloud.AVException;
 import com.avos.avoscloud.AVGeoPoint;
 import com.avos.avoscloud.AVOSCloud;
 import com.avos.avoscloud.AVQuery;
 import com.avos.avoscloud.AVUtils;
-import com.avos.avoscloud.GenericObjectCallback;
 import com.avos.avoscloud.ObjectValueFilter;
 import com.avos.avoscloud.QueryOperation;
 import com.avos.avoscloud.im.v2.callback.AVIMConversationQueryCallback;
@@ -475,25 +472,19 @@ public class AVIMConversationsQuery {
     switch (policy) {
       case CACHE_THEN_NETWORK:
       case CACHE_ELSE_NETWORK:
-        AVCacheManager.sharedInstance().get(queryParamsString, maxAge, null,
-          new CacheConversationQueryCallback(client, this, callback) {
-            @Override
-            public void onFailure(Throwable error, String content) {
-              queryFromNetwork(callback, queryParamsString);
-            }
-          });
+        if (!queryFromCache(callback, queryParamsString, false)) {
+          queryFromNetwork(callback, queryParamsString);
+        }
         break;
       case NETWORK_ELSE_CACHE:
         if (AVUtils.isConnected(AVOSCloud.applicationContext)) {
           queryFromNetwork(callback, queryParamsString);
         } else {
-          AVCacheManager.sharedInstance().get(queryParamsString, maxAge, null,
-            new CacheConversationQueryCallback(client, this, callback));
+          queryFromCache(callback, queryParamsString, true);
         }
         break;
       case CACHE_ONLY:
-        AVCacheManager.sharedInstance().get(queryParamsString, maxAge, null,
-          new CacheConversationQueryCallback(client, this, callback));
+        queryFromCache(callback, queryParamsString, true);
         break;
       case NETWORK_ONLY:
       case IGNORE_CACHE:
@@ -502,6 +493,38 @@ public class AVIMConversationsQuery {
     }
   }
 
+  /**
+   * 从本地数据库中读取缓存的查询结果
+   *
+   * @param reportMiss 为 true 时没有缓存也会回调 CACHE_MISS
+   * @return 是否已经回调
+   */
+  private boolean queryFromCache(AVIMConversationQueryCallback callback,
+                                 String queryParamsString, boolean reportMiss) {
+    List<AVIMConversation> conversations;
+    try {
+      conversations = client.storage.getCachedConversationQueryResult(
+        AVUtils.md5(queryParamsString), maxAge);
+    } catch (Exception e) {
+      if (callback != null) {
+        callback.internalDone(null, new AVException(e));
+      }
+      return true;
+    }
+    if (null == conversations && !reportMiss) {
+      return false;
+    }
+    if (callback != null) {
+      if (null == conversations) {
+        callback.internalDone(null, new AVException(AVException.CACHE_MISS,
+          AVException.cacheMissingErrorString));
+      } else {
+        callback.internalDone(conversations, null);
+      }
+    }
+    return true;
+  }
+
   private void queryFromNetwork(final AVIMConversationQueryCallback callback,
                                 final String queryParamsString) {
     if (!AVUtils.isConnected(AVOSCloud.applicationContext)) {
@@ -558,16 +581,7 @@ public class AVIMConversationsQuery {
   }
 
   private void cacheQueryResult(String queryParamsStr, List<AVIMConversation> conversations) {
-    List<String> conversationList = new LinkedList<String>();
-    AVIMMessageStorage storage = null;
-    for (AVIMConversation conversation : conversations) {
-      conversationList.add(conversation.getConversationId());
-      storage = conversation.storage;
-    }
-    if (storage != null) {
-      storage.insertConversations(conversations);
-    }
-    AVCacheManager.sharedInstance().save(queryParamsStr, JSON.toJSONString(conversationList), null);
+    client.storage.cacheConversationQueryResult(AVUtils.md5(queryParamsStr), conversations);
   }
 
   private List<AVIMConversation> parseQueryResult(JSONArray content) {
@@ -583,44 +597,6 @@ public class AVIMConversationsQuery {
     return conversations;
   }
 
-  static class CacheConversationQueryCallback extends GenericObjectCallback {
-    AVIMConversationQueryCallback callback;
-    AVIMClient client;
-
-    public CacheConversationQueryCallback(AVIMClient client, AVIMConversationsQuery query,
-                                          AVIMConversationQueryCallback callback) {
-      this.callback = callback;
-      this.client = client;
-    }
-
-    @Override
-    public void onSuccess(String content, AVException e) {
-      if (!AVUtils.isBlankString(content)) {
-        try {
-          List<String> conversationList = JSON.parseObject(content, List.class);
-          List<AVIMConversation> conversations =
-            client.storage.getCachedConversations(conversationList);
-          if (conversations == null || conversations.size() < conversationList.size()) {
-            this.onFailure(AVErrorUtils.createException(AVException.CACHE_MISS,
-              AVException.cacheMissingErrorString), null);
-            return;
-          } else {
-            callback.internalDone(conversations, null);
-          }
-        } catch (Exception e1) {
-          callback.internalDone(null, new AVException(e1));
-        }
-      } else {
-        callback.internalDone(new LinkedList<AVIMConversation>(), null);
-      }
-    }
-
-    @Override
-    public void onFailure(Throwable error, String content) {
-      callback.internalDone(null, new AVException(error));
-    }
-  }
-
   /**
    * 设置 AVIMConversationsQuery 的查询策略
    *
@@ -0,0 +1,120 @@
+package com.avos.avoscloud.im.v2;
+
+import com.alibaba.fastjson.JSONReader;
+import com.alibaba.fastjson.parser.JSONScanner;
+import com.alibaba.fastjson.parser.ParserConfig;
+import com.alibaba.fastjson.serializer.JSONSerializer;
+import com.alibaba.fastjson.serializer.SerializeWriter;
+import com.alibaba.fastjson.util.TypeUtils;
+import com.avos.avoscloud.AVOSCloud;
+import com.avos.avoscloud.LogUtil;
+import com.avos.avospush.util.FieldAttribute;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * AVIMTypedMessage 子类的内容编解码器
+ *
+ * 每个消息类只在第一次使用时查找一次 AVIMMessageField 字段，之后直接在 SerializeWriter 上写出 json，
+ * 解析时用 JSONReader 逐个读取字段并转换成字段的类型，不再先生成整个 Map 再反复序列化。
+ */
+class AVIMMessageFieldCodec {
+  static final String KEY_MESSAGE_TYPE = "_lctype";
+
+  private final Binder[] binders;
+  private final Map<String, Binder> bindersByName;
+
+  AVIMMessageFieldCodec(Collection<FieldAttribute> fieldAttributes) {
+    binders = new Binder[fieldAttributes.size()];
+    bindersByName = new HashMap<String, Binder>(fieldAttributes.size() * 2);
+    int i = 0;
+    for (FieldAttribute fieldAttribute : fieldAttributes) {
+      Binder binder = new Binder(i, fieldAttribute);
+      binders[i++] = binder;
+      bindersByName.put(binder.name, binder);
+    }
+  }
+
+  String encode(AVIMTypedMessage message, int messageType) {
+    SerializeWriter out = new SerializeWriter();
+    try {
+      JSONSerializer serializer = new JSONSerializer(out);
+      out.write('{');
+      out.writeFieldName(KEY_MESSAGE_TYPE);
+      out.writeInt(messageType);
+      for (Binder binder : binders) {
+        Object value = binder.attribute.get(message);
+        // 与 JSONObject 的默认行为一致，不输出 null
+        if (null != value) {
+          out.write(',');
+          out.writeFieldName(binder.name);
+          serializer.write(value);
+        }
+      }
+      out.write('}');
+      return out.toString();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * 内容中没有的字段会被设为 null，基本类型的字段保持不变
+   */
+  void decode(AVIMTypedMessage message, String content) {
+    boolean[] assigned = new boolean[binders.length];
+    JSONReader reader = new JSONReader(new JSONScanner(content));
+    try {
+      reader.startObject();
+      while (reader.hasNext()) {
+        String key = reader.readString();
+        Object value = reader.readObject();
+        Binder binder = bindersByName.get(key);
+        if (null != binder) {
+          binder.attribute.set(message, binder.convert(value));
+          assigned[binder.index] = true;
+        }
+      }
+      reader.endObject();
+    } finally {
+      reader.close();
+    }
+    for (Binder binder : binders) {
+      if (!assigned[binder.index] && !binder.primitive) {
+        binder.attribute.set(message, null);
+      }
+    }
+  }
+
+  private static class Binder {
+    final int index;
+    final String name;
+    final FieldAttribute attribute;
+    final Class<?> type;
+    final boolean primitive;
+
+    Binder(int index, FieldAttribute attribute) {
+      this.index = index;
+      this.name = attribute.getAliaName();
+      this.attribute = attribute;
+      this.type = attribute.getFieldType();
+      this.primitive = null != type && type.isPrimitive();
+    }
+
+    Object convert(Object value) {
+      if (null == value || null == type || type.isInstance(value)) {
+        return value;
+      }
+      try {
+        return TypeUtils.cast(value, type, ParserConfig.getGlobalInstance());
+      } catch (Exception e) {
+        if (AVOSCloud.isDebugLogEnabled()) {
+          LogUtil.avlog.d("failed to convert field " + name + " to " + type.getName());
+        }
+        return value;
+      }
+    }
+  }
+}
@@ -2,8 +2,6 @@ package com.avos.avoscloud.im.v2;
 
 import android.util.SparseArray;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
 import com.avos.avoscloud.AVOSCloud;
 import com.avos.avoscloud.AVUtils;
 import com.avos.avoscloud.LogUtil;
@@ -17,15 +15,22 @@ import com.avos.avoscloud.im.v2.messages.AVIMTextMessage;
 import com.avos.avoscloud.im.v2.messages.AVIMVideoMessage;
 
 import java.lang.annotation.IncompleteAnnotationException;
-import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class AVIMMessageManager {
+  private static final String TYPE_KEY = "\"_lctype\"";
   static SparseArray<Class<? extends AVIMTypedMessage>> messageTypesRepository =
       new SparseArray<Class<? extends AVIMTypedMessage>>();
+  // 这些内置的消息类在访问字段之前会自己解析内容，可以延迟解析；子类和自定义的消息类仍然立即解析
+  private static final Set<Class<? extends AVIMTypedMessage>> lazyDecodingTypes =
+      new HashSet<Class<? extends AVIMTypedMessage>>(Arrays.<Class<? extends AVIMTypedMessage>>asList(
+          AVIMTextMessage.class, AVIMFileMessage.class, AVIMImageMessage.class,
+          AVIMAudioMessage.class, AVIMVideoMessage.class, AVIMLocationMessage.class,
+          AVIMRecalledMessage.class));
   static AVIMMessageHandler defaultMessageHandler;
   static ConcurrentHashMap<Class<? extends AVIMMessage>, Set<MessageHandler>> messageHandlerRepository =
       new ConcurrentHashMap<Class<? extends AVIMMessage>, Set<MessageHandler>>();
@@ -56,9 +61,7 @@ public class AVIMMessageManager {
 
     messageTypesRepository.put(messageTypeValue, messageType);
     try {
-      Method initializeMethod = messageType.getDeclaredMethod("computeFieldAttribute", Class.class);
-      initializeMethod.setAccessible(true);
-      initializeMethod.invoke(null, messageType);
+      AVIMTypedMessage.getFieldCodec(messageType);
     } catch (Exception e) {
       if (AVOSCloud.showInternalDebugLog()) {
         LogUtil.avlog.d("failed to initialize message Fields");
@@ -223,12 +226,16 @@ public class AVIMMessageManager {
       Class<? extends AVIMTypedMessage> clazz = messageTypesRepository.get(messageType);
       if (clazz != null) {
         try {
-          AVIMMessage typedMessage = clazz.newInstance();
+          AVIMTypedMessage typedMessage = clazz.newInstance();
           typedMessage.setConversationId(message.getConversationId());
           typedMessage.setFrom(message.getFrom());
           typedMessage.setReceiptTimestamp(message.getReceiptTimestamp());
           typedMessage.setTimestamp(message.getTimestamp());
-          typedMessage.setContent(message.getContent());
+          if (lazyDecodingTypes.contains(clazz)) {
+            typedMessage.setContentLazily(message.getContent());
+          } else {
+            typedMessage.setContent(message.getContent());
+          }
           typedMessage.setMessageId(message.getMessageId());
           typedMessage.setMessageStatus(message.getMessageStatus());
           typedMessage.setMessageIOType(message.getMessageIOType());
@@ -240,16 +247,93 @@ public class AVIMMessageManager {
     return message;
   }
 
-  private static int getMessageType(String messageContent) {
-    if (!AVUtils.isBlankContent(messageContent)) {
-      try {
-        JSONObject object = JSON.parseObject(messageContent);
-        int type = object.getInteger("_lctype");
-        return type;
-      } catch (Exception e) {
-        LogUtil.avlog.e("Parsing json data error, " + messageContent, e);
+  /**
+   * 只扫描最外层的 _lctype，不解析整个 json
+   *
+   * @return 不是 json 对象或者没有 _lctype 时返回 0
+   */
+  static int getMessageType(String messageContent) {
+    if (AVUtils.isBlankContent(messageContent)) {
+      return 0;
+    }
+    int length = messageContent.length();
+    int depth = 0;
+    int i = skipWhitespace(messageContent, 0);
+    if (i >= length || messageContent.charAt(i) != '{') {
+      return 0;
+    }
+    while (i < length) {
+      char c = messageContent.charAt(i);
+      if (c == '"') {
+        int end = skipString(messageContent, i);
+        if (end < 0) {
+          return 0;
+        }
+        if (depth == 1 && messageContent.regionMatches(i, TYPE_KEY, 0, TYPE_KEY.length())
+            && end == i + TYPE_KEY.length()) {
+          int colon = skipWhitespace(messageContent, end);
+          if (colon < length && messageContent.charAt(colon) == ':') {
+            return parseTypeValue(messageContent, skipWhitespace(messageContent, colon + 1));
+          }
+        }
+        i = end;
+        continue;
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        depth--;
+        if (depth == 0) {
+          return 0;
+        }
       }
+      i++;
     }
     return 0;
   }
+
+  private static int skipWhitespace(String content, int index) {
+    while (index < content.length() && Character.isWhitespace(content.charAt(index))) {
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * @return 字符串结束引号之后的位置，字符串不完整时返回 -1
+   */
+  private static int skipString(String content, int start) {
+    for (int i = start + 1; i < content.length(); i++) {
+      char c = content.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '"') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  private static int parseTypeValue(String content, int start) {
+    int i = start;
+    boolean quoted = i < content.length() && content.charAt(i) == '"';
+    if (quoted) {
+      i++;
+    }
+    boolean negative = i < content.length() && content.charAt(i) == '-';
+    if (negative) {
+      i++;
+    }
+    long value = 0;
+    int digits = 0;
+    while (i < content.length() && Character.isDigit(content.charAt(i)) && digits < 10) {
+      value = value * 10 + (content.charAt(i) - '0');
+      digits++;
+      i++;
+    }
+    if (digits == 0 || value > Integer.MAX_VALUE) {
+      return 0;
+    }
+    return (int) (negative ? -value : value);
+  }
+
 }
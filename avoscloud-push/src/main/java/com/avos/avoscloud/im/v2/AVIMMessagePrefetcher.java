@@ -0,0 +1,137 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.LogUtil;
+import com.avos.avoscloud.im.v2.callback.AVIMMessagesPrefetchCallback;
+import com.avos.avoscloud.im.v2.callback.AVIMMessagesQueryCallback;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量拉取多个对话的最新消息
+ *
+ * 同时最多有 maxConcurrent 个 logs 请求在 websocket 上等待返回，一个请求返回后立即发出下一个，
+ * 不需要像逐个调用 queryMessages 那样等上一个对话返回再请求下一个。
+ * 每个对话返回后立即在一个事务中写入本地缓存并回调这个对话的结果，所有对话都返回之后再回调汇总的结果。
+ */
+class AVIMMessagePrefetcher {
+  static final int DEFAULT_MAX_CONCURRENT = 4;
+
+  /**
+   * 发出单个对话的 logs 请求，测试时可以替换
+   */
+  interface Fetcher {
+    void fetch(String conversationId, int limit, AVIMMessagesQueryCallback callback);
+  }
+
+  private final AVIMClient client;
+  private final Fetcher fetcher;
+  private final int limit;
+  private final int maxConcurrent;
+  private final AVIMMessagesPrefetchCallback callback;
+  private final LinkedList<String> pendingIds;
+  private final Map<String, List<AVIMMessage>> results =
+      new LinkedHashMap<String, List<AVIMMessage>>();
+  private final Map<String, AVIMException> errors = new LinkedHashMap<String, AVIMException>();
+  private int runningCount = 0;
+  private boolean finished = false;
+
+  AVIMMessagePrefetcher(final AVIMClient client, Collection<String> conversationIds, int limit,
+      int maxConcurrent, AVIMMessagesPrefetchCallback callback) {
+    this(client, conversationIds, limit, maxConcurrent, callback, new Fetcher() {
+      @Override
+      public void fetch(String conversationId, int limit, AVIMMessagesQueryCallback callback) {
+        client.getConversation(conversationId).queryLatestMessagesFromServer(limit, callback);
+      }
+    });
+  }
+
+  AVIMMessagePrefetcher(AVIMClient client, Collection<String> conversationIds, int limit,
+      int maxConcurrent, AVIMMessagesPrefetchCallback callback, Fetcher fetcher) {
+    this.client = client;
+    this.pendingIds = new LinkedList<String>(new LinkedHashSet<String>(conversationIds));
+    this.limit = limit;
+    this.maxConcurrent = Math.max(1, maxConcurrent);
+    this.callback = callback;
+    this.fetcher = fetcher;
+  }
+
+  void start() {
+    fetchNext();
+  }
+
+  private void fetchNext() {
+    List<String> ids = new ArrayList<String>();
+    boolean shouldFinish = false;
+    synchronized (this) {
+      while (runningCount < maxConcurrent && !pendingIds.isEmpty()) {
+        ids.add(pendingIds.poll());
+        runningCount++;
+      }
+      if (!finished && runningCount == 0) {
+        finished = true;
+        shouldFinish = true;
+      }
+    }
+    if (shouldFinish) {
+      finish();
+      return;
+    }
+    for (final String conversationId : ids) {
+      fetcher.fetch(conversationId, limit, new AVIMMessagesQueryCallback() {
+        @Override
+        public void done(List<AVIMMessage> messages, AVIMException e) {
+          onFetched(conversationId, messages, e);
+        }
+      });
+    }
+  }
+
+  private void onFetched(String conversationId, List<AVIMMessage> messages, AVIMException e) {
+    List<AVIMMessage> sortedMessages = null;
+    if (null == e) {
+      sortedMessages = null == messages ? new ArrayList<AVIMMessage>()
+          : new ArrayList<AVIMMessage>(messages);
+      Collections.sort(sortedMessages, AVIMConversation.messageComparator);
+      cacheMessages(conversationId, sortedMessages);
+    }
+    synchronized (this) {
+      runningCount--;
+      if (null == e) {
+        results.put(conversationId, sortedMessages);
+      } else {
+        errors.put(conversationId, e);
+      }
+    }
+    if (null != callback) {
+      callback.onConversationPrefetched(conversationId, sortedMessages, e);
+    }
+    fetchNext();
+  }
+
+  private void cacheMessages(String conversationId, List<AVIMMessage> messages) {
+    if (!AVIMClient.messageQueryCacheEnabled || messages.isEmpty()) {
+      return;
+    }
+    try {
+      client.storage.insertContinuousMessages(Collections.singletonMap(conversationId, messages));
+    } catch (Exception e) {
+      LogUtil.log.e("failed to cache prefetched messages", e);
+    }
+    client.getConversation(conversationId).setLastMessage(messages.get(messages.size() - 1));
+  }
+
+  private void finish() {
+    if (null == callback) {
+      return;
+    }
+    AVIMException firstError = errors.isEmpty() ? null : errors.values().iterator().next();
+    callback.internalDone(results, firstError);
+  }
+}
@@ -7,6 +7,7 @@ import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -17,11 +18,14 @@ import com.avos.avoscloud.LogUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -32,7 +36,7 @@ class AVIMMessageStorage {
   static final String DB_NAME_PREFIX = "com.avos.avoscloud.im.v2.";
   static final String MESSAGE_TABLE = "messages";
   static final String MESSAGE_INDEX = "message_index";
-  static final int DB_VERSION = 7;
+  static final int DB_VERSION = 9;
   static final String COLUMN_MESSAGE_ID = "message_id";
   static final String COLUMN_TIMESTAMP = "timestamp";
   static final String COLUMN_CONVERSATION_ID = "conversation_id";
@@ -60,6 +64,22 @@ class AVIMMessageStorage {
   static final String COLUMN_CONVERSATION_READAT = "readAt";
   static final String COLUMN_CONVRESATION_DELIVEREDAT = "deliveredAt";
 
+  static final String CONVERSATION_QUERY_TABLE = "conversation_queries";
+  static final String CONVERSATION_QUERY_INDEX = "conversation_query_index";
+  static final String COLUMN_QUERY_KEY = "query_key";
+  static final String COLUMN_QUERY_POSITION = "position";
+  static final String COLUMN_QUERY_CACHEDAT = "cachedAt";
+  // 每个对话的最后一条消息，和 conversations 表中的未读数一起，展示对话列表时一次查询就可以得到
+  static final String CONVERSATION_SUMMARY_TABLE = "conversation_summaries";
+  static final String COLUMN_LAST_MESSAGE_ID = "last_message_id";
+  static final String COLUMN_SUMMARY_CONVERSATION_ID = "summary_conversation_id";
+  static final String COLUMN_SUMMARY_UNREAD_COUNT = "summary_unread_count";
+
+  // 超过这个时间的查询结果在下次写入时清理
+  static final long CONVERSATION_QUERY_RETENTION = 24 * 60 * 60 * 1000;
+  // 每个查询结果都有一行 position 为 -1 的记录，用来区分结果为空和没有缓存
+  static final int CONVERSATION_QUERY_HEADER_POSITION = -1;
+
   static final String NUMBERIC = "NUMBERIC";
   static final String INTEGER = "INTEGER";
   static final String BLOB = "BLOB";
@@ -89,8 +109,69 @@ class AVIMMessageStorage {
 
     static final String ORDER_BY_TIMESTAMP_ASC_THEN_MESSAGE_ID_ASC =
         COLUMN_TIMESTAMP + " , " + COLUMN_MESSAGE_ID;
+
+    static final String INSERT_MESSAGE_IGNORE = "INSERT OR IGNORE INTO " + MESSAGE_TABLE + " ("
+        + COLUMN_CONVERSATION_ID + ", " + COLUMN_MESSAGE_ID + ", " + COLUMN_TIMESTAMP + ", "
+        + COLUMN_FROM_PEER_ID + ", " + COLUMN_PAYLOAD + ", " + COLUMN_MESSAGE_DELIVEREDAT + ", "
+        + COLUMN_MESSAGE_READAT + ", " + COLUMN_MESSAGE_UPDATEAT + ", " + COLUMN_STATUS + ", "
+        + COLUMN_BREAKPOINT + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // 已经存在的消息只在服务器的版本更新时覆盖内容，断点和本地的状态保持不变
+    static final String UPDATE_MESSAGE_CONTENT_IF_NEWER = "UPDATE " + MESSAGE_TABLE + " SET "
+        + COLUMN_PAYLOAD + " = ?, " + COLUMN_MESSAGE_UPDATEAT + " = ? WHERE "
+        + COLUMN_CONVERSATION_ID + " = ? and " + COLUMN_MESSAGE_ID + " = ? and ("
+        + COLUMN_MESSAGE_UPDATEAT + " is null or " + COLUMN_MESSAGE_UPDATEAT + " < ?)";
+
+    static final String INSERT_CONVERSATION_QUERY = "INSERT OR REPLACE INTO "
+        + CONVERSATION_QUERY_TABLE + " (" + COLUMN_QUERY_KEY + ", " + COLUMN_QUERY_POSITION + ", "
+        + COLUMN_CONVERSATION_ID + ", " + COLUMN_QUERY_CACHEDAT + ") VALUES (?, ?, ?, ?)";
+
+    // 本地已经没有的 conversation 对应的列为 null
+    static final String SELECT_CONVERSATION_QUERY_RESULT = "SELECT q." + COLUMN_QUERY_POSITION
+        + ", c.* FROM "
+        + CONVERSATION_QUERY_TABLE + " q LEFT JOIN " + CONVERSATION_TABLE + " c ON c."
+        + COLUMN_CONVERSATION_ID + " = q." + COLUMN_CONVERSATION_ID + " WHERE q."
+        + COLUMN_QUERY_KEY + " = ? and q." + COLUMN_QUERY_CACHEDAT + " >= ? ORDER BY q."
+        + COLUMN_QUERY_POSITION;
+
+    static final String INSERT_CONVERSATION_SUMMARY_IGNORE = "INSERT OR IGNORE INTO "
+        + CONVERSATION_SUMMARY_TABLE + " (" + COLUMN_CONVERSATION_ID + ") VALUES (?)";
+
+    static final String UPDATE_CONVERSATION_SUMMARY_LAST_MESSAGE = "UPDATE "
+        + CONVERSATION_SUMMARY_TABLE + " SET " + COLUMN_LAST_MESSAGE_ID + " = (SELECT "
+        + COLUMN_MESSAGE_ID + " FROM " + MESSAGE_TABLE + " WHERE " + COLUMN_CONVERSATION_ID
+        + " = ?1 ORDER BY " + ORDER_BY_TIMESTAMP_DESC_THEN_MESSAGE_ID_DESC + " LIMIT 1) WHERE "
+        + COLUMN_CONVERSATION_ID + " = ?1";
+
+    // 未读数只保存在 conversations 表中。后面需要拼接 conversation id 的占位符
+    static final String SELECT_CONVERSATION_SUMMARIES = "SELECT s." + COLUMN_CONVERSATION_ID
+        + " AS " + COLUMN_SUMMARY_CONVERSATION_ID + ", ifnull(c." + COLUMN_UNREAD_COUNT + ", 0) AS "
+        + COLUMN_SUMMARY_UNREAD_COUNT + ", m.* FROM " + CONVERSATION_SUMMARY_TABLE + " s LEFT JOIN "
+        + CONVERSATION_TABLE + " c ON c." + COLUMN_CONVERSATION_ID + " = s."
+        + COLUMN_CONVERSATION_ID + " LEFT JOIN " + MESSAGE_TABLE + " m ON m." + COLUMN_CONVERSATION_ID + " = s." + COLUMN_CONVERSATION_ID
+        + " and m." + COLUMN_MESSAGE_ID + " = s." + COLUMN_LAST_MESSAGE_ID + " WHERE s."
+        + COLUMN_CONVERSATION_ID + " in ";
+
+    static final String DELETE_CONVERSATION_QUERIES_CONTAINING = "DELETE FROM "
+        + CONVERSATION_QUERY_TABLE + " WHERE " + COLUMN_QUERY_KEY + " in (SELECT "
+        + COLUMN_QUERY_KEY + " FROM " + CONVERSATION_QUERY_TABLE + " WHERE "
+        + COLUMN_CONVERSATION_ID + " = ?)";
+
+    // 参数为 null 的字段保持原来的值
+    static final String UPDATE_CONVERSATION_COUNTERS = "UPDATE " + CONVERSATION_TABLE + " SET "
+        + COLUMN_CONVERSATION_READAT + " = coalesce(?, " + COLUMN_CONVERSATION_READAT + "), "
+        + COLUMN_CONVRESATION_DELIVEREDAT + " = coalesce(?, " + COLUMN_CONVRESATION_DELIVEREDAT
+        + "), " + COLUMN_UNREAD_COUNT + " = coalesce(?, " + COLUMN_UNREAD_COUNT + "), "
+        + COLUMN_LM + " = coalesce(?, " + COLUMN_LM + ") WHERE " + COLUMN_CONVERSATION_ID + " = ?";
   }
 
+  // 只需要定位消息时不读取 payload
+  static final String[] MESSAGE_KEY_PROJECTION =
+      new String[] {COLUMN_CONVERSATION_ID, COLUMN_MESSAGE_ID, COLUMN_TIMESTAMP,
+          COLUMN_FROM_PEER_ID};
+
+  static final String[] CONVERSATION_ID_PROJECTION = new String[] {COLUMN_CONVERSATION_ID};
+
   private DBHelper dbHelper;
   private static ConcurrentHashMap<String, AVIMMessageStorage> storages =
       new ConcurrentHashMap<String, AVIMMessageStorage>();
@@ -133,6 +214,36 @@ class AVIMMessageStorage {
         + COLUMN_LASTMESSAGE + " TEXT,"
         + "PRIMARY KEY(" + COLUMN_CONVERSATION_ID + "))";
 
+    static final String CONVERSATION_QUERY_CREATE_SQL = "CREATE TABLE IF NOT EXISTS "
+        + CONVERSATION_QUERY_TABLE + " ("
+        + COLUMN_QUERY_KEY + " VARCHAR(32) NOT NULL,"
+        + COLUMN_QUERY_POSITION + " INTEGER NOT NULL,"
+        + COLUMN_CONVERSATION_ID + " VARCHAR(32) NOT NULL,"
+        + COLUMN_QUERY_CACHEDAT + " NUMBERIC,"
+        + "PRIMARY KEY(" + COLUMN_QUERY_KEY + "," + COLUMN_QUERY_POSITION + "))";
+
+    static final String CONVERSATION_SUMMARY_CREATE_SQL = "CREATE TABLE IF NOT EXISTS "
+        + CONVERSATION_SUMMARY_TABLE + " ("
+        + COLUMN_CONVERSATION_ID + " VARCHAR(32) NOT NULL,"
+        + COLUMN_LAST_MESSAGE_ID + " VARCHAR(32),"
+        + "PRIMARY KEY(" + COLUMN_CONVERSATION_ID + "))";
+
+    // 升级时根据已有的消息和 conversation 生成摘要
+    static final String CONVERSATION_SUMMARY_FILL_FROM_MESSAGES_SQL = "INSERT OR IGNORE INTO "
+        + CONVERSATION_SUMMARY_TABLE + " (" + COLUMN_CONVERSATION_ID + ", "
+        + COLUMN_LAST_MESSAGE_ID + ") SELECT m." + COLUMN_CONVERSATION_ID + ", (SELECT "
+        + COLUMN_MESSAGE_ID + " FROM " + MESSAGE_TABLE + " n WHERE n." + COLUMN_CONVERSATION_ID
+        + " = m." + COLUMN_CONVERSATION_ID + " ORDER BY " + SQL.ORDER_BY_TIMESTAMP_DESC_THEN_MESSAGE_ID_DESC
+        + " LIMIT 1) FROM " + MESSAGE_TABLE + " m GROUP BY m." + COLUMN_CONVERSATION_ID;
+
+    static final String CONVERSATION_SUMMARY_FILL_FROM_CONVERSATIONS_SQL = "INSERT OR IGNORE INTO "
+        + CONVERSATION_SUMMARY_TABLE + " (" + COLUMN_CONVERSATION_ID + ") SELECT "
+        + COLUMN_CONVERSATION_ID + " FROM " + CONVERSATION_TABLE;
+
+    static final String CONVERSATION_QUERY_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS " + CONVERSATION_QUERY_INDEX + " on "
+            + CONVERSATION_QUERY_TABLE + " (" + COLUMN_CONVERSATION_ID + ") ";
+
     public DBHelper(Context context, String clientId) {
       super(context, getDatabasePath(clientId), null, DB_VERSION);
     }
@@ -151,6 +262,9 @@ class AVIMMessageStorage {
       sqLiteDatabase.execSQL(MESSAGE_CREATE_SQL);
       sqLiteDatabase.execSQL(MESSAGE_UNIQUE_INDEX_SQL);
       sqLiteDatabase.execSQL(CONVERSATION_CREATE_SQL);
+      sqLiteDatabase.execSQL(CONVERSATION_QUERY_CREATE_SQL);
+      sqLiteDatabase.execSQL(CONVERSATION_QUERY_INDEX_SQL);
+      sqLiteDatabase.execSQL(CONVERSATION_SUMMARY_CREATE_SQL);
     }
 
     @Override
@@ -177,6 +291,14 @@ class AVIMMessageStorage {
       }
       if (oldVersion == 6) {
         upgradeToVersion7(sqLiteDatabase);
+        oldVersion += 1;
+      }
+      if (oldVersion == 7) {
+        upgradeToVersion8(sqLiteDatabase);
+        oldVersion += 1;
+      }
+      if (oldVersion == 8) {
+        upgradeToVersion9(sqLiteDatabase);
       }
     }
 
@@ -232,6 +354,17 @@ class AVIMMessageStorage {
       }
     }
 
+    private void upgradeToVersion8(SQLiteDatabase db) {
+      db.execSQL(CONVERSATION_QUERY_CREATE_SQL);
+      db.execSQL(CONVERSATION_QUERY_INDEX_SQL);
+    }
+
+    private void upgradeToVersion9(SQLiteDatabase db) {
+      db.execSQL(CONVERSATION_SUMMARY_CREATE_SQL);
+      db.execSQL(CONVERSATION_SUMMARY_FILL_FROM_MESSAGES_SQL);
+      db.execSQL(CONVERSATION_SUMMARY_FILL_FROM_CONVERSATIONS_SQL);
+    }
+
     private static boolean columnExists(SQLiteDatabase db, String table, String column) {
       try {
         Cursor cursor = db.query(table, null, null, null, null, null, null);
@@ -243,6 +376,13 @@ class AVIMMessageStorage {
   }
 
   String clientId;
+  private final AVIMConversationUpdateBuffer conversationUpdates =
+      new AVIMConversationUpdateBuffer(new AVIMConversationUpdateBuffer.Writer() {
+        @Override
+        public void write(Collection<AVIMConversationUpdateBuffer.Update> updates) {
+          writeConversationUpdates(updates);
+        }
+      });
 
   private AVIMMessageStorage(Context context, String clientId) {
     dbHelper = new DBHelper(context, clientId);
@@ -301,47 +441,103 @@ class AVIMMessageStorage {
       values.put(COLUMN_STATUS, message.getMessageStatus().getStatusCode());
       values.put(COLUMN_BREAKPOINT, 0);
       values.put(COLUMN_DEDUPLICATED_TOKEN, message.uniqueToken);
-      db.insertWithOnConflict(MESSAGE_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+      if (db.insertWithOnConflict(MESSAGE_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE) > -1) {
+        refreshConversationSummaries(db, Collections.singleton(message.getConversationId()));
+      }
     }
   }
 
   private synchronized int insertMessages(List<AVIMMessage> messages, boolean breakpoint) {
+    return insertMessages(messages, breakpoint, false);
+  }
+
+  /**
+   * 在同一个事务里用预编译的语句批量写入
+   *
+   * @param upsert 为 true 时已经存在的消息会用更新的内容覆盖
+   * @return 新插入的消息数量
+   */
+  private synchronized int insertMessages(List<AVIMMessage> messages, boolean breakpoint,
+      boolean upsert) {
+    if (messages.isEmpty()) {
+      return 0;
+    }
     SQLiteDatabase db = dbHelper.getWritableDatabase();
-    db.beginTransaction();
     int insertCount = 0;
-    for (AVIMMessage message : messages) {
-      ContentValues values = new ContentValues();
-      values.put(COLUMN_CONVERSATION_ID, message.getConversationId());
-      values.put(COLUMN_MESSAGE_ID, message.getMessageId());
-      values.put(COLUMN_TIMESTAMP, message.getTimestamp());
-      values.put(COLUMN_FROM_PEER_ID, message.getFrom());
-      values.put(COLUMN_PAYLOAD, message.getContent().getBytes());
-      values.put(COLUMN_MESSAGE_DELIVEREDAT, message.getDeliveredAt());
-      values.put(COLUMN_MESSAGE_READAT, message.getReadAt());
-      values.put(COLUMN_MESSAGE_UPDATEAT, message.getUpdateAt());
-      values.put(COLUMN_STATUS, message.getMessageStatus().getStatusCode());
-      values.put(COLUMN_BREAKPOINT, breakpoint ? 1 : 0);
-
-      try {
-        long itemId =
-            db.insertWithOnConflict(MESSAGE_TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-        boolean insert = itemId > -1;
-        if (insert) {
-          insertCount++;
-        }
-      } catch (SQLException e) {
-        if (AVOSCloud.isDebugLogEnabled()) {
-          e.printStackTrace();
+    db.beginTransaction();
+    SQLiteStatement insertStatement = null;
+    SQLiteStatement updateStatement = null;
+    try {
+      insertStatement = db.compileStatement(SQL.INSERT_MESSAGE_IGNORE);
+      if (upsert) {
+        updateStatement = db.compileStatement(SQL.UPDATE_MESSAGE_CONTENT_IF_NEWER);
+      }
+      for (AVIMMessage message : messages) {
+        try {
+          bindMessage(insertStatement, message, breakpoint);
+          boolean insert = insertStatement.executeInsert() > -1;
+          if (insert) {
+            insertCount++;
+          } else if (upsert) {
+            bindString(updateStatement, 1, message.getContent());
+            updateStatement.bindLong(2, message.getUpdateAt());
+            bindString(updateStatement, 3, message.getConversationId());
+            bindString(updateStatement, 4, message.getMessageId());
+            updateStatement.bindLong(5, message.getUpdateAt());
+            updateStatement.execute();
+          }
+        } catch (SQLException e) {
+          if (AVOSCloud.isDebugLogEnabled()) {
+            e.printStackTrace();
+          }
         }
       }
+      Set<String> conversationIds = new HashSet<String>();
+      for (AVIMMessage message : messages) {
+        conversationIds.add(message.getConversationId());
+      }
+      refreshConversationSummaries(db, conversationIds);
+      db.setTransactionSuccessful();
+    } finally {
+      if (null != insertStatement) {
+        insertStatement.close();
+      }
+      if (null != updateStatement) {
+        updateStatement.close();
+      }
+      db.endTransaction();
     }
-    db.setTransactionSuccessful();
-    db.endTransaction();
     return insertCount;
   }
 
+  private static void bindMessage(SQLiteStatement statement, AVIMMessage message,
+      boolean breakpoint) {
+    statement.clearBindings();
+    bindString(statement, 1, message.getConversationId());
+    bindString(statement, 2, message.getMessageId());
+    statement.bindLong(3, message.getTimestamp());
+    bindString(statement, 4, message.getFrom());
+    statement.bindBlob(5, message.getContent().getBytes());
+    statement.bindLong(6, message.getDeliveredAt());
+    statement.bindLong(7, message.getReadAt());
+    statement.bindLong(8, message.getUpdateAt());
+    statement.bindLong(9, message.getMessageStatus().getStatusCode());
+    statement.bindLong(10, breakpoint ? 1 : 0);
+  }
+
+  private static void bindString(SQLiteStatement statement, int index, String value) {
+    if (null == value) {
+      statement.bindNull(index);
+    } else {
+      statement.bindString(index, value);
+    }
+  }
+
   /**
    * 顺序由调用者保证，需要按照时间升序排列
+   *
+   * 除第一条之外，本地已经存在的消息如果 updateAt 比服务器返回的旧，会用服务器返回的内容和 updateAt 覆盖，
+   * 这样被修改或者撤回过的消息不会一直是旧版本；第一条消息和之前一样，已经存在时保持不变
    * @param messages
    * @param conversationId
    */
@@ -351,19 +547,38 @@ class AVIMMessageStorage {
     List<AVIMMessage> tailMessages = messages.subList(1, messages.size());
     AVIMMessage lastMessage = messages.get(messages.size() - 1);
     if (!containMessage(lastMessage)) {
-      AVIMMessage eldestMessage = getNextMessage(lastMessage);
+      AVIMMessage eldestMessage = getNextMessageKey(lastMessage);
       if (eldestMessage != null) {
         updateBreakpoints(Arrays.asList(eldestMessage), true, conversationId);
       }
     }
     if (!tailMessages.isEmpty()) {
-      insertMessages(tailMessages, false);
+      // 服务器返回的消息可能已经被修改或者撤回过，覆盖本地的旧版本
+      insertMessages(tailMessages, false, true);
       // remove breakpoints
       updateBreakpoints(tailMessages, false, conversationId);
     }
     insertMessage(firstMessage, true);
   }
 
+  /**
+   * 在一个事务中写入多个对话的连续消息
+   *
+   * @param messages 对话 id 及其按时间从早到晚排列的消息
+   */
+  synchronized void insertContinuousMessages(Map<String, List<AVIMMessage>> messages) {
+    SQLiteDatabase db = dbHelper.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (Map.Entry<String, List<AVIMMessage>> entry : messages.entrySet()) {
+        insertContinuousMessages(entry.getValue(), entry.getKey());
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public boolean containMessage(AVIMMessage message) {
     SQLiteDatabase db = dbHelper.getReadableDatabase();
     Cursor cursor = db.query(MESSAGE_TABLE, new String[] {},
@@ -417,6 +632,8 @@ class AVIMMessageStorage {
     long itemId =
         db.update(MESSAGE_TABLE, values, getWhereClause(COLUMN_MESSAGE_ID),
             new String[] {originalId});
+    // 消息 id 和时间戳都可能变化
+    refreshConversationSummaries(db, Collections.singleton(message.getConversationId()));
     return itemId > -1;
   }
 
@@ -434,27 +651,35 @@ class AVIMMessageStorage {
     SQLiteDatabase db = dbHelper.getWritableDatabase();
     for (AVIMMessage message : messages) {
       String messageId = message.getMessageId();
-      AVIMMessage nextMessage = getNextMessage(message);
+      AVIMMessage nextMessage = getNextMessageKey(message);
       if (nextMessage != null) {
         updateBreakpoints(Arrays.asList(message), true, conversationId);
       }
       db.delete(MESSAGE_TABLE, getWhereClause(COLUMN_MESSAGE_ID),
           new String[] {messageId});
     }
+    refreshConversationSummaries(db, Collections.singleton(conversationId));
   }
 
   public synchronized void deleteConversationData(String conversationId) {
+    conversationUpdates.discard(conversationId);
     SQLiteDatabase db = dbHelper.getWritableDatabase();
     db.delete(MESSAGE_TABLE, getWhereClause(COLUMN_CONVERSATION_ID),
         new String[] {conversationId});
     db.delete(CONVERSATION_TABLE, getWhereClause(COLUMN_CONVERSATION_ID),
         new String[] {conversationId});
+    db.execSQL(SQL.DELETE_CONVERSATION_QUERIES_CONTAINING, new Object[] {conversationId});
+    db.delete(CONVERSATION_SUMMARY_TABLE, getWhereClause(COLUMN_CONVERSATION_ID),
+        new String[] {conversationId});
   }
 
   public synchronized void deleteClientData() {
+    conversationUpdates.clear();
     SQLiteDatabase db = dbHelper.getWritableDatabase();
     db.delete(MESSAGE_TABLE, null, null);
     db.delete(CONVERSATION_TABLE, null, null);
+    db.delete(CONVERSATION_QUERY_TABLE, null, null);
+    db.delete(CONVERSATION_SUMMARY_TABLE, null, null);
   }
 
   /**
@@ -478,8 +703,9 @@ class AVIMMessageStorage {
       AVIMMessage message = null;
       boolean breakpoint = false;
       if (cursor.moveToFirst()) {
-        message = createMessageFromCursor(cursor);
-        breakpoint = cursor.getInt(cursor.getColumnIndex(COLUMN_BREAKPOINT)) != 0;
+        MessageColumns columns = new MessageColumns(cursor);
+        message = createMessageFromCursor(cursor, columns);
+        breakpoint = cursor.getInt(columns.breakpoint) != 0;
       }
       cursor.close();
       callback.done(message, breakpoint);
@@ -519,7 +745,7 @@ class AVIMMessageStorage {
   }
 
   public long getMessageCount(String conversationId) {
-    AVIMMessage lastBreakPointMessage = this.getLatestMessageWithBreakpoint(conversationId, true);
+    AVIMMessage lastBreakPointMessage = getLatestMessageKeyWithBreakpoint(conversationId, true);
     SQLiteDatabase db = dbHelper.getReadableDatabase();
 
     long messageCount = 0;
@@ -533,8 +759,7 @@ class AVIMMessageStorage {
           "select count(*) from " + MESSAGE_TABLE + " where "
               + COLUMN_CONVERSATION_ID + " = ? and (" + COLUMN_TIMESTAMP + " > ? or ( "
               + COLUMN_TIMESTAMP + " = ? and "
-              + COLUMN_MESSAGE_ID + " >= ? )) order by "
-              + SQL.ORDER_BY_TIMESTAMP_DESC_THEN_MESSAGE_ID_DESC,
+              + COLUMN_MESSAGE_ID + " >= ? ))",
           new String[] {conversationId, String.valueOf(lastBreakPointMessage.timestamp),
               String.valueOf(lastBreakPointMessage.timestamp),
               lastBreakPointMessage.messageId});
@@ -542,17 +767,46 @@ class AVIMMessageStorage {
     return messageCount;
   }
 
-  private AVIMMessage createMessageFromCursor(Cursor cursor) {
-    String mid = cursor.getString(cursor.getColumnIndex(COLUMN_MESSAGE_ID));
-    long timestamp = cursor.getLong(cursor.getColumnIndex(COLUMN_TIMESTAMP));
-    String cid = cursor.getString(cursor.getColumnIndex(COLUMN_CONVERSATION_ID));
-    String from = cursor.getString(cursor.getColumnIndex(COLUMN_FROM_PEER_ID));
-    long deliveredAt = cursor.getLong(cursor.getColumnIndex(COLUMN_MESSAGE_DELIVEREDAT));
-    long readAt = cursor.getLong(cursor.getColumnIndex(COLUMN_MESSAGE_READAT));
-    long updateAt = cursor.getLong(cursor.getColumnIndex(COLUMN_MESSAGE_UPDATEAT));
-    byte[] payload = cursor.getBlob(cursor.getColumnIndex(COLUMN_PAYLOAD));
+  /**
+   * 每个 cursor 只查一次列的位置，不在结果中的列为 -1
+   */
+  static class MessageColumns {
+    final int messageId;
+    final int timestamp;
+    final int conversationId;
+    final int from;
+    final int deliveredAt;
+    final int readAt;
+    final int updateAt;
+    final int payload;
+    final int status;
+    final int breakpoint;
+
+    MessageColumns(Cursor cursor) {
+      messageId = cursor.getColumnIndex(COLUMN_MESSAGE_ID);
+      timestamp = cursor.getColumnIndex(COLUMN_TIMESTAMP);
+      conversationId = cursor.getColumnIndex(COLUMN_CONVERSATION_ID);
+      from = cursor.getColumnIndex(COLUMN_FROM_PEER_ID);
+      deliveredAt = cursor.getColumnIndex(COLUMN_MESSAGE_DELIVEREDAT);
+      readAt = cursor.getColumnIndex(COLUMN_MESSAGE_READAT);
+      updateAt = cursor.getColumnIndex(COLUMN_MESSAGE_UPDATEAT);
+      payload = cursor.getColumnIndex(COLUMN_PAYLOAD);
+      status = cursor.getColumnIndex(COLUMN_STATUS);
+      breakpoint = cursor.getColumnIndex(COLUMN_BREAKPOINT);
+    }
+  }
+
+  private AVIMMessage createMessageFromCursor(Cursor cursor, MessageColumns columns) {
+    String mid = cursor.getString(columns.messageId);
+    long timestamp = cursor.getLong(columns.timestamp);
+    String cid = cursor.getString(columns.conversationId);
+    String from = cursor.getString(columns.from);
+    long deliveredAt = cursor.getLong(columns.deliveredAt);
+    long readAt = cursor.getLong(columns.readAt);
+    long updateAt = cursor.getLong(columns.updateAt);
+    byte[] payload = cursor.getBlob(columns.payload);
     String content = new String(payload);
-    int status = cursor.getInt(cursor.getColumnIndex(COLUMN_STATUS));
+    int status = cursor.getInt(columns.status);
 
     AVIMMessage message = new AVIMMessage(cid, from, timestamp, deliveredAt, readAt);
     message.setMessageId(mid);
@@ -562,16 +816,27 @@ class AVIMMessageStorage {
     return AVIMMessageManager.parseTypedMessage(message);
   }
 
+  /**
+   * 只包含 conversationId、messageId、timestamp 和 from 的消息，不能用来展示
+   */
+  private static AVIMMessage createMessageKeyFromCursor(Cursor cursor, MessageColumns columns) {
+    AVIMMessage message = new AVIMMessage(cursor.getString(columns.conversationId),
+        cursor.getString(columns.from), cursor.getLong(columns.timestamp), 0L, 0L);
+    message.setMessageId(cursor.getString(columns.messageId));
+    return message;
+  }
+
   private void processMessages(Cursor cursor, StorageQueryCallback callback) {
     List<AVIMMessage> messages = Collections.EMPTY_LIST;
     List<Boolean> breakpoints = Collections.EMPTY_LIST;
     if (cursor.moveToFirst()) {
-      messages = new ArrayList<AVIMMessage>();
-      breakpoints = new ArrayList<Boolean>();
+      MessageColumns columns = new MessageColumns(cursor);
+      messages = new ArrayList<AVIMMessage>(cursor.getCount());
+      breakpoints = new ArrayList<Boolean>(cursor.getCount());
       while (!cursor.isAfterLast()) {
-        AVIMMessage message = createMessageFromCursor(cursor);
+        AVIMMessage message = createMessageFromCursor(cursor, columns);
         messages.add(message);
-        boolean breakpoint = cursor.getInt(cursor.getColumnIndex(COLUMN_BREAKPOINT)) != 0;
+        boolean breakpoint = cursor.getInt(columns.breakpoint) != 0;
         breakpoints.add(breakpoint);
         cursor.moveToNext();
       }
@@ -581,22 +846,110 @@ class AVIMMessageStorage {
   }
 
   protected AVIMMessage getNextMessage(AVIMMessage currentMessage) {
+    return queryNextMessage(currentMessage, null);
+  }
+
+  /**
+   * 与 getNextMessage 相同，但只读取定位消息需要的列
+   */
+  AVIMMessage getNextMessageKey(AVIMMessage currentMessage) {
+    return queryNextMessage(currentMessage, MESSAGE_KEY_PROJECTION);
+  }
+
+  private AVIMMessage queryNextMessage(AVIMMessage currentMessage, String[] projection) {
     SQLiteDatabase db = dbHelper.getReadableDatabase();
     Cursor cursor =
         db.query(
             MESSAGE_TABLE,
-            null,
+            projection,
             SQL.TIMESTAMP_MORE_OR_TIMESTAMP_EQUAL_BUT_MESSAGE_ID_MORE_AND_CONVERSATION_ID,
             new String[] {Long.toString(currentMessage.getTimestamp()),
                 Long.toString(currentMessage.getTimestamp()),
                 currentMessage.getMessageId(), currentMessage.getConversationId()}, null, null,
             SQL.ORDER_BY_TIMESTAMP_ASC_THEN_MESSAGE_ID_ASC, "1");
-    AVIMMessage message = null;
-    if (cursor.moveToFirst()) {
-      message = createMessageFromCursor(cursor);
+    return readSingleMessage(cursor, projection != null);
+  }
+
+  /**
+   * 对话的未读数和最后一条消息
+   */
+  static class ConversationSummary {
+    final int unreadCount;
+    final AVIMMessage lastMessage;
+
+    ConversationSummary(int unreadCount, AVIMMessage lastMessage) {
+      this.unreadCount = unreadCount;
+      this.lastMessage = lastMessage;
+    }
+  }
+
+  /**
+   * 一次查询读取多个对话的未读数和最后一条消息
+   *
+   * @return 本地没有记录的对话不在结果中
+   */
+  Map<String, ConversationSummary> getConversationSummaries(List<String> conversationIds) {
+    conversationUpdates.flush();
+    Map<String, ConversationSummary> summaries = new HashMap<String, ConversationSummary>();
+    SQLiteDatabase db = dbHelper.getReadableDatabase();
+    // sqlite max ? variable size = 999
+    int batchSize = 900;
+    for (int start = 0; start < conversationIds.size(); start += batchSize) {
+      List<String> batch =
+          conversationIds.subList(start, Math.min(start + batchSize, conversationIds.size()));
+      String placeholders = TextUtils.join(",", Collections.nCopies(batch.size(), "?"));
+      Cursor cursor = db.rawQuery(SQL.SELECT_CONVERSATION_SUMMARIES + "(" + placeholders + ")",
+          batch.toArray(new String[batch.size()]));
+      try {
+        int conversationIdIndex = cursor.getColumnIndex(COLUMN_SUMMARY_CONVERSATION_ID);
+        int unreadCountIndex = cursor.getColumnIndex(COLUMN_SUMMARY_UNREAD_COUNT);
+        MessageColumns columns = new MessageColumns(cursor);
+        while (cursor.moveToNext()) {
+          AVIMMessage lastMessage = cursor.isNull(columns.messageId) ? null
+              : createMessageFromCursor(cursor, columns);
+          summaries.put(cursor.getString(conversationIdIndex),
+              new ConversationSummary(cursor.getInt(unreadCountIndex), lastMessage));
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return summaries;
+  }
+
+  /**
+   * 消息写入、修改 id 或者删除之后重新指向对话最新的消息
+   */
+  private void refreshConversationSummaries(SQLiteDatabase db, Collection<String> conversationIds) {
+    SQLiteStatement insertStatement = db.compileStatement(SQL.INSERT_CONVERSATION_SUMMARY_IGNORE);
+    SQLiteStatement updateStatement =
+        db.compileStatement(SQL.UPDATE_CONVERSATION_SUMMARY_LAST_MESSAGE);
+    try {
+      for (String conversationId : conversationIds) {
+        bindString(insertStatement, 1, conversationId);
+        insertStatement.execute();
+        bindString(updateStatement, 1, conversationId);
+        updateStatement.execute();
+      }
+    } finally {
+      insertStatement.close();
+      updateStatement.close();
+    }
+  }
+
+  /**
+   * 缓存的对话即使还没有消息也要有摘要，这样可以查到它的未读数
+   */
+  private void ensureConversationSummaries(SQLiteDatabase db, Collection<String> conversationIds) {
+    SQLiteStatement insertStatement = db.compileStatement(SQL.INSERT_CONVERSATION_SUMMARY_IGNORE);
+    try {
+      for (String conversationId : conversationIds) {
+        bindString(insertStatement, 1, conversationId);
+        insertStatement.execute();
+      }
+    } finally {
+      insertStatement.close();
     }
-    cursor.close();
-    return message;
   }
 
   AVIMMessage getLatestMessage(String conversationId) {
@@ -604,23 +957,36 @@ class AVIMMessageStorage {
     Cursor cursor = db.query(MESSAGE_TABLE, null, getWhereClause(COLUMN_CONVERSATION_ID),
       new String[] {conversationId}, null, null,
       SQL.ORDER_BY_TIMESTAMP_DESC_THEN_MESSAGE_ID_DESC, "1");
-    AVIMMessage message = null;
-    if (cursor.moveToFirst()) {
-      message = createMessageFromCursor(cursor);
-    }
-    cursor.close();
-    return message;
+    return readSingleMessage(cursor, false);
   }
 
   AVIMMessage getLatestMessageWithBreakpoint(String conversationId, boolean breakpoint) {
+    return queryLatestMessageWithBreakpoint(conversationId, breakpoint, null);
+  }
+
+  /**
+   * 与 getLatestMessageWithBreakpoint 相同，但只读取定位消息需要的列
+   */
+  AVIMMessage getLatestMessageKeyWithBreakpoint(String conversationId, boolean breakpoint) {
+    return queryLatestMessageWithBreakpoint(conversationId, breakpoint, MESSAGE_KEY_PROJECTION);
+  }
+
+  private AVIMMessage queryLatestMessageWithBreakpoint(String conversationId, boolean breakpoint,
+      String[] projection) {
     SQLiteDatabase db = dbHelper.getReadableDatabase();
-    Cursor cursor = db.query(MESSAGE_TABLE, null,
+    Cursor cursor = db.query(MESSAGE_TABLE, projection,
         getWhereClause(COLUMN_CONVERSATION_ID, COLUMN_BREAKPOINT),
         new String[] {conversationId, breakpoint ? "1" : "0"}, null, null,
         SQL.ORDER_BY_TIMESTAMP_DESC_THEN_MESSAGE_ID_DESC, "1");
+    return readSingleMessage(cursor, projection != null);
+  }
+
+  private AVIMMessage readSingleMessage(Cursor cursor, boolean keyOnly) {
     AVIMMessage message = null;
     if (cursor.moveToFirst()) {
-      message = createMessageFromCursor(cursor);
+      MessageColumns columns = new MessageColumns(cursor);
+      message = keyOnly ? createMessageKeyFromCursor(cursor, columns)
+          : createMessageFromCursor(cursor, columns);
     }
     cursor.close();
     return message;
@@ -634,10 +1000,26 @@ class AVIMMessageStorage {
     void done(AVIMMessage message, boolean breakpoint);
   }
 
+  /**
+   * 写入本地修改过的 conversation，conversation 的成员和属性变化之后缓存的查询结果不再可靠，会被全部清除
+   */
   public void insertConversations(List<AVIMConversation> conversations) {
+    conversationUpdates.flush();
     SQLiteDatabase db = dbHelper.getWritableDatabase();
     db.beginTransaction();
+    try {
+      insertConversationRows(db, conversations);
+      db.delete(CONVERSATION_QUERY_TABLE, null, null);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void insertConversationRows(SQLiteDatabase db, List<AVIMConversation> conversations) {
+    List<String> conversationIds = new ArrayList<String>(conversations.size());
     for (AVIMConversation conversation : conversations) {
+      conversationIds.add(conversation.getConversationId());
       ContentValues values = new ContentValues();
       values.put(COLUMN_ATTRIBUTE, JSON.toJSONString(conversation.attributes));
       values.put(COLUMN_INSTANCEDATA, JSON.toJSONString(conversation.instanceData));
@@ -665,49 +1047,145 @@ class AVIMMessageStorage {
       values.put(COLUMN_CONVERSATION_ID, conversation.getConversationId());
       db.insertWithOnConflict(CONVERSATION_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
     }
-    db.setTransactionSuccessful();
-    db.endTransaction();
+    ensureConversationSummaries(db, conversationIds);
   }
 
-  boolean updateConversationTimes(AVIMConversation conversation) {
-    if (getConversation(conversation.getConversationId()) != null) {
-      SQLiteDatabase db = dbHelper.getWritableDatabase();
-      ContentValues values = new ContentValues();
-      values.put(COLUMN_CONVERSATION_READAT, conversation.getLastReadAt());
-      values.put(COLUMN_CONVRESATION_DELIVEREDAT, conversation.getLastDeliveredAt());
-      long dbId = db.update(CONVERSATION_TABLE, values, getWhereClause(COLUMN_CONVERSATION_ID),
-        new String[] {conversation.getConversationId()});
-      return dbId != -1;
+  /**
+   * 缓存 conversation 查询的结果，conversation 写入 conversation 表，查询结果按顺序记录 conversation id
+   *
+   * @param queryKey 查询条件对应的 key
+   */
+  void cacheConversationQueryResult(String queryKey, List<AVIMConversation> conversations) {
+    conversationUpdates.flush();
+    long now = System.currentTimeMillis();
+    SQLiteDatabase db = dbHelper.getWritableDatabase();
+    db.beginTransaction();
+    SQLiteStatement statement = null;
+    try {
+      insertConversationRows(db, conversations);
+      db.delete(CONVERSATION_QUERY_TABLE, COLUMN_QUERY_KEY + " = ? or " + COLUMN_QUERY_CACHEDAT
+          + " < ?", new String[] {queryKey, String.valueOf(now - CONVERSATION_QUERY_RETENTION)});
+      statement = db.compileStatement(SQL.INSERT_CONVERSATION_QUERY);
+      bindString(statement, 1, queryKey);
+      statement.bindLong(2, CONVERSATION_QUERY_HEADER_POSITION);
+      bindString(statement, 3, "");
+      statement.bindLong(4, now);
+      statement.execute();
+      int position = 0;
+      for (AVIMConversation conversation : conversations) {
+        statement.clearBindings();
+        bindString(statement, 1, queryKey);
+        statement.bindLong(2, position++);
+        bindString(statement, 3, conversation.getConversationId());
+        statement.bindLong(4, now);
+        statement.execute();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      if (null != statement) {
+        statement.close();
+      }
+      db.endTransaction();
     }
-    return false;
   }
 
-  boolean updateConversationUreadCount(String conversationId, long unreadCount) {
-    if (getConversation(conversationId) != null) {
-      SQLiteDatabase db = dbHelper.getWritableDatabase();
-      ContentValues values = new ContentValues();
-      values.put(COLUMN_UNREAD_COUNT, unreadCount);
-      long dbId = db.update(CONVERSATION_TABLE, values, getWhereClause(COLUMN_CONVERSATION_ID),
-        new String[] {conversationId});
-      return dbId != -1;
+  /**
+   * @param maxAge 缓存的有效时间，小于等于 0 时不过期
+   * @return 没有缓存、缓存已经过期或者其中的 conversation 本地已经没有时返回 null，缓存的结果为空时返回空列表
+   */
+  List<AVIMConversation> getCachedConversationQueryResult(String queryKey, long maxAge) {
+    conversationUpdates.flush();
+    long cachedAfter = maxAge > 0 ? System.currentTimeMillis() - maxAge : 0;
+    SQLiteDatabase db = dbHelper.getReadableDatabase();
+    Cursor cursor = db.rawQuery(SQL.SELECT_CONVERSATION_QUERY_RESULT,
+        new String[] {queryKey, String.valueOf(cachedAfter)});
+    List<AVIMConversation> conversations = new ArrayList<AVIMConversation>(cursor.getCount());
+    boolean cached = false;
+    try {
+      int positionIndex = cursor.getColumnIndex(COLUMN_QUERY_POSITION);
+      int conversationIdIndex = cursor.getColumnIndex(COLUMN_CONVERSATION_ID);
+      while (cursor.moveToNext()) {
+        if (cursor.getInt(positionIndex) == CONVERSATION_QUERY_HEADER_POSITION) {
+          cached = true;
+          continue;
+        }
+        if (cursor.isNull(conversationIdIndex)) {
+          return null;
+        }
+        conversations.add(parseConversationFromCursor(cursor));
+      }
+    } finally {
+      cursor.close();
     }
-    return false;
+    return cached ? conversations : null;
+  }
+
+  /**
+   * 已读、已送达时间、未读数和 lm 的更新先合并在内存中，稍后在一个事务中写入，
+   * 读取 conversation 表之前会先写入这些更新
+   */
+  boolean updateConversationTimes(AVIMConversation conversation) {
+    conversationUpdates.updateTimes(conversation.getConversationId(),
+        conversation.getLastReadAt(), conversation.getLastDeliveredAt());
+    return true;
+  }
+
+  boolean updateConversationUreadCount(String conversationId, long unreadCount) {
+    conversationUpdates.updateUnreadCount(conversationId, unreadCount);
+    return true;
   }
 
   public boolean updateConversationLastMessageAt(AVIMConversation conversation) {
-    if (getConversation(conversation.getConversationId()) != null
-        && conversation.getLastMessageAt() != null) {
-      SQLiteDatabase db = dbHelper.getWritableDatabase();
-      ContentValues values = new ContentValues();
-      values.put(COLUMN_LM, conversation.getLastMessageAt().getTime());
-      long dbId = db.update(CONVERSATION_TABLE, values, getWhereClause(COLUMN_CONVERSATION_ID),
-          new String[] {conversation.getConversationId()});
-      return dbId != -1;
+    if (conversation.getLastMessageAt() != null) {
+      conversationUpdates.updateLastMessageAt(conversation.getConversationId(),
+          conversation.getLastMessageAt().getTime());
+      return true;
     }
     return false;
   }
 
+  /**
+   * 立即写入还没有写入的 conversation 更新
+   */
+  void flushConversationUpdates() {
+    conversationUpdates.flush();
+  }
+
+  private void writeConversationUpdates(Collection<AVIMConversationUpdateBuffer.Update> updates) {
+    SQLiteDatabase db = dbHelper.getWritableDatabase();
+    db.beginTransaction();
+    SQLiteStatement statement = null;
+    try {
+      // 本地没有缓存的 conversation 不会被更新，不需要先查询是否存在
+      statement = db.compileStatement(SQL.UPDATE_CONVERSATION_COUNTERS);
+      for (AVIMConversationUpdateBuffer.Update update : updates) {
+        statement.clearBindings();
+        bindLong(statement, 1, update.readAt);
+        bindLong(statement, 2, update.deliveredAt);
+        bindLong(statement, 3, update.unreadCount);
+        bindLong(statement, 4, update.lastMessageAt);
+        bindString(statement, 5, update.conversationId);
+        statement.execute();
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      if (null != statement) {
+        statement.close();
+      }
+      db.endTransaction();
+    }
+  }
+
+  private static void bindLong(SQLiteStatement statement, int index, Long value) {
+    if (null == value) {
+      statement.bindNull(index);
+    } else {
+      statement.bindLong(index, value);
+    }
+  }
+
   public List<AVIMConversation> getAllCachedConversations() {
+    conversationUpdates.flush();
     SQLiteDatabase db = dbHelper.getReadableDatabase();
     Cursor cursor =
         db.query(CONVERSATION_TABLE, null, COLUMN_EXPIREAT + " > ?",
@@ -723,6 +1201,24 @@ class AVIMMessageStorage {
     return conversations;
   }
 
+  /**
+   * 只读取 conversation 的 id，不解析其他列
+   */
+  List<String> getConversationIds() {
+    conversationUpdates.flush();
+    SQLiteDatabase db = dbHelper.getReadableDatabase();
+    Cursor cursor =
+        db.query(CONVERSATION_TABLE, CONVERSATION_ID_PROJECTION, COLUMN_EXPIREAT + " > ?",
+            new String[] {String.valueOf(System.currentTimeMillis())}, null, null, null,
+            null);
+    List<String> conversationIds = new ArrayList<String>(cursor.getCount());
+    while (cursor.moveToNext()) {
+      conversationIds.add(cursor.getString(0));
+    }
+    cursor.close();
+    return conversationIds;
+  }
+
   private AVIMConversation parseConversationFromCursor(Cursor cursor) {
     String conversationId = cursor.getString(cursor.getColumnIndex(COLUMN_CONVERSATION_ID));
     String createdAt = cursor.getString(cursor.getColumnIndex(COLUMN_CREATEDAT));
@@ -774,6 +1270,7 @@ class AVIMMessageStorage {
   }
 
   public AVIMConversation getConversation(String conversationId) {
+    conversationUpdates.flush();
     SQLiteDatabase db = dbHelper.getReadableDatabase();
     Cursor cursor =
         db.query(CONVERSATION_TABLE, null, getWhereClause(COLUMN_CONVERSATION_ID) + " and "
@@ -791,6 +1288,7 @@ class AVIMMessageStorage {
   }
 
   public List<AVIMConversation> getCachedConversations(List<String> conversationIds) {
+    conversationUpdates.flush();
     SQLiteDatabase db = dbHelper.getReadableDatabase();
     Cursor cursor =
         db.rawQuery("SELECT * FROM " + CONVERSATION_TABLE + " WHERE " + COLUMN_CONVERSATION_ID
@@ -806,8 +1304,10 @@ class AVIMMessageStorage {
   }
 
   public void deleteConversation(String conversationId) {
+    conversationUpdates.discard(conversationId);
     SQLiteDatabase db = dbHelper.getWritableDatabase();
     db.delete(CONVERSATION_TABLE, getWhereClause(COLUMN_CONVERSATION_ID),
         new String[] {conversationId});
+    db.execSQL(SQL.DELETE_CONVERSATION_QUERIES_CONTAINING, new Object[] {conversationId});
   }
 }
@@ -2,8 +2,8 @@ package com.avos.avoscloud.im.v2;
 
 import android.util.Pair;
 
-import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
+import com.avos.avoscloud.LogUtil;
 import com.avos.avospush.util.FieldAttribute;
 
 import java.lang.reflect.Field;
@@ -13,7 +13,6 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AVIMTypedMessage extends AVIMMessage {
@@ -24,8 +23,11 @@ public abstract class AVIMTypedMessage extends AVIMMessage {
   private static final String KEY_MESSAGE_CONTENT = "msg";
 
   private int messageType;
-  static ConcurrentHashMap<Class<? extends AVIMTypedMessage>, Map<String, FieldAttribute>> fieldCache =
-      new ConcurrentHashMap<Class<? extends AVIMTypedMessage>, Map<String, FieldAttribute>>();
+  // 延迟绑定的原始内容，第一次访问字段时才解析
+  private volatile String pendingContent;
+  private boolean decoding = false;
+  static ConcurrentHashMap<Class<? extends AVIMTypedMessage>, AVIMMessageFieldCodec> codecCache =
+      new ConcurrentHashMap<Class<? extends AVIMTypedMessage>, AVIMMessageFieldCodec>();
 
   public AVIMTypedMessage() {
     super();
@@ -45,37 +47,77 @@ public abstract class AVIMTypedMessage extends AVIMMessage {
     this.messageType = messageType;
   }
 
+  /**
+   * 还没有解析过的消息返回服务器下发的原始内容，不会重新序列化，字段的顺序和格式与服务器保持一致；
+   * 解析之后返回根据字段重新序列化的内容
+   *
+   * @return
+   */
   @Override
   public final String getContent() {
-    JSONObject json = new JSONObject();
-    json.put("_lctype", this.getMessageType());
-    if (!fieldCache.contains(this.getClass())) {
-      computeFieldAttribute(this.getClass());
+    String content = pendingContent;
+    if (null != content) {
+      // 还没有解析过，字段不可能被修改，直接返回原始内容
+      return content;
     }
-    Map<String, FieldAttribute> classFieldAttributesMap = fieldCache.get(this.getClass());
-    for (FieldAttribute fieldAttribute : classFieldAttributesMap.values()) {
-      Object fieldValue = fieldAttribute.get(this);
-      json.put(fieldAttribute.getAliaName(), fieldValue);
-    }
-    return json.toJSONString();
+    return getFieldCodec(this.getClass()).encode(this, this.getMessageType());
   }
 
   @Override
   public final void setContent(String content) {
-    Map<String, Object> contentMap = JSONObject.parseObject(content, Map.class);
-    if (!fieldCache.contains(this.getClass())) {
-      computeFieldAttribute(this.getClass());
+    pendingContent = null;
+    bindContent(content);
+  }
+
+  /**
+   * 只保存原始内容，字段在 ensureContentDecoded 时才绑定
+   */
+  void setContentLazily(String content) {
+    pendingContent = content;
+  }
+
+  /**
+   * 支持延迟解析的消息类需要在读写 AVIMMessageField 字段之前调用
+   */
+  protected final void ensureContentDecoded() {
+    if (null == pendingContent) {
+      return;
     }
-    Map<String, FieldAttribute> classFieldAttributesMap = fieldCache.get(this.getClass());
-    for (FieldAttribute fieldAttribute : classFieldAttributesMap.values()) {
-      Object value = contentMap.get(fieldAttribute.getAliaName());
-      if (value instanceof Map && fieldAttribute.getFieldType() != null) {
-        value = JSON.parseObject(JSON.toJSONString(value), fieldAttribute.getFieldType());
+    synchronized (this) {
+      String content = pendingContent;
+      // 绑定过程中会调用 setter，这里不能重入
+      if (null != content && !decoding) {
+        decoding = true;
+        try {
+          bindContent(content);
+        } catch (Exception e) {
+          // 解析失败时以已经绑定的字段为准，不再重试，否则每次访问都会重新解析并覆盖 setter 写入的值
+          LogUtil.avlog.e("failed to decode message content " + getMessageId(), e);
+        } finally {
+          pendingContent = null;
+          decoding = false;
+        }
       }
-      fieldAttribute.set(this, value);
     }
   }
 
+  boolean isContentDecoded() {
+    return null == pendingContent;
+  }
+
+  private void bindContent(String content) {
+    getFieldCodec(this.getClass()).decode(this, content);
+  }
+
+  static AVIMMessageFieldCodec getFieldCodec(Class<? extends AVIMTypedMessage> clazz) {
+    AVIMMessageFieldCodec codec = codecCache.get(clazz);
+    if (null == codec) {
+      computeFieldAttribute(clazz);
+      codec = codecCache.get(clazz);
+    }
+    return codec;
+  }
+
   protected static void computeFieldAttribute(Class clazz) {
     HashMap<String, FieldAttribute> fieldAttributeMap = new HashMap<String, FieldAttribute>();
     Class tmpClazz = clazz;
@@ -211,7 +253,7 @@ public abstract class AVIMTypedMessage extends AVIMMessage {
         }
       }
     }
-    fieldCache.put(clazz, fieldAttributeMap);
+    codecCache.put(clazz, new AVIMMessageFieldCodec(fieldAttributeMap.values()));
   }
 
   private static Field getField(Class<?> clazz, String fieldName) {
@@ -0,0 +1,38 @@
+package com.avos.avoscloud.im.v2.callback;
+
+import com.avos.avoscloud.AVCallback;
+import com.avos.avoscloud.AVException;
+import com.avos.avoscloud.im.v2.AVIMException;
+import com.avos.avoscloud.im.v2.AVIMMessage;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量拉取多个对话消息记录的回调
+ */
+public abstract class AVIMMessagesPrefetchCallback extends AVCallback<Map<String, List<AVIMMessage>>> {
+
+  /**
+   * 单个对话拉取完成，成功时消息已经写入本地缓存
+   *
+   * @param conversationId
+   * @param messages       按时间从早到晚排列，失败时为 null
+   * @param e
+   */
+  public void onConversationPrefetched(String conversationId, List<AVIMMessage> messages,
+      AVIMException e) {}
+
+  /**
+   * 所有对话都已经处理完毕
+   *
+   * @param messages 拉取成功的对话及其消息
+   * @param e        有对话拉取失败时为其中第一个错误
+   */
+  public abstract void done(Map<String, List<AVIMMessage>> messages, AVIMException e);
+
+  @Override
+  protected final void internalDone0(Map<String, List<AVIMMessage>> returnValue, AVException e) {
+    done(returnValue, AVIMException.wrapperAVException(e));
+  }
+}
@@ -43,6 +43,7 @@ public class AVIMAudioMessage extends AVIMFileMessage {
    */
   @Override
   public Map<String, Object> getFileMetaData() {
+    ensureContentDecoded();
     if (file == null) {
       file = new HashMap<String, Object>();
     }
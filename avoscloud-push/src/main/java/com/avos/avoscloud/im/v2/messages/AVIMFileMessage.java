@@ -55,6 +55,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
   }
 
   public Map<String, Object> getFile() {
+    ensureContentDecoded();
     return file;
   }
 
@@ -64,6 +65,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
    * @return
    */
   public String getLocalFilePath() {
+    ensureContentDecoded();
     return (null != localFile && localFile.exists() ? localFile.getPath() : null);
   }
 
@@ -73,6 +75,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
    * @return
    */
   public AVFile getAVFile() {
+    ensureContentDecoded();
     if (actualFile != null) {
       return actualFile;
     } else if (file.containsKey(FILE_URL)) {
@@ -90,6 +93,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
   }
 
   protected void setFile(Map<String, Object> file) {
+    ensureContentDecoded();
     this.file = file;
     Map<String, Object> metaData = (Map<String, Object>) file.get(FILE_META);
     actualFile = new AVFile(null, (String) file.get(FILE_URL), metaData);
@@ -106,6 +110,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
    * @return
    */
   public String getFileUrl() {
+    ensureContentDecoded();
     if (file != null) {
       return (String) file.get(FILE_URL);
     } else {
@@ -119,6 +124,7 @@ public class AVIMFileMessage extends AVIMTypedMessage {
    * @return
    */
   public Map<String, Object> getFileMetaData() {
+    ensureContentDecoded();
     if (file == null) {
       file = new HashMap<String, Object>();
     }
@@ -146,6 +152,8 @@ public class AVIMFileMessage extends AVIMTypedMessage {
   }
 
   protected void upload(final SaveCallback callback) {
+    // 收到的或者从缓存中读取的消息，actualFile 在解析内容时才设置
+    ensureContentDecoded();
     if (actualFile != null) {
       actualFile.saveInBackground(new SaveCallback() {
         @Override
@@ -172,23 +180,28 @@ public class AVIMFileMessage extends AVIMTypedMessage {
   }
 
   public String getText() {
+    ensureContentDecoded();
     return this.text;
   }
 
   public void setText(String text) {
+    ensureContentDecoded();
     this.text = text;
   }
 
   public Map<String, Object> getAttrs() {
+    ensureContentDecoded();
     return this.attrs;
   }
 
   public void setAttrs(Map<String, Object> attr) {
+    ensureContentDecoded();
     this.attrs = attr;
   }
 
   protected void fulFillFileInfo(final SaveCallback callback) {
     // fulfill the file info map with AVFile
+    ensureContentDecoded();
     if (actualFile != null) {
       file = getFile() == null ? new HashMap<String, Object>() : getFile();
       file.put(OBJECT_ID, actualFile.getObjectId());
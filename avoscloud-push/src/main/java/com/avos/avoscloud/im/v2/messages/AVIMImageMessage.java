@@ -46,6 +46,7 @@ public class AVIMImageMessage extends AVIMFileMessage {
    */
   @Override
   public Map<String, Object> getFileMetaData() {
+    ensureContentDecoded();
     if (file == null) {
       file = new HashMap<String, Object>();
     }
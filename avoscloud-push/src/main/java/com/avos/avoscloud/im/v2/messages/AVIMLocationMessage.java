@@ -26,26 +26,32 @@ public class AVIMLocationMessage extends AVIMTypedMessage {
   Map<String, Object> attrs;
 
   public String getText() {
+    ensureContentDecoded();
     return this.text;
   }
 
   public void setText(String text) {
+    ensureContentDecoded();
     this.text = text;
   }
 
   public Map<String, Object> getAttrs() {
+    ensureContentDecoded();
     return this.attrs;
   }
 
   public void setAttrs(Map<String, Object> attr) {
+    ensureContentDecoded();
     this.attrs = attr;
   }
 
   public AVGeoPoint getLocation() {
+    ensureContentDecoded();
     return location;
   }
 
   public void setLocation(AVGeoPoint location) {
+    ensureContentDecoded();
     this.location = location;
   }
 
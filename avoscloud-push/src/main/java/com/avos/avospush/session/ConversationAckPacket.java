@@ -15,6 +15,7 @@ public class ConversationAckPacket extends PeerBasedCommandPacket {
 
   String conversationId;
   String messageId;
+  List<String> messageIds;
   Long largestTimeStamp;
 
   public String getConversationId() {
@@ -33,6 +34,18 @@ public class ConversationAckPacket extends PeerBasedCommandPacket {
     this.messageId = messageId;
   }
 
+  public List<String> getMessageIds() {
+    return messageIds;
+  }
+
+  /**
+   * 一次 ack 多条消息
+   * @param messageIds
+   */
+  public void setMessageIds(List<String> messageIds) {
+    this.messageIds = messageIds;
+  }
+
   /**
    * 设置需要 ack 的 timestamps
    * @param largestTimeStamp
@@ -53,6 +66,9 @@ public class ConversationAckPacket extends PeerBasedCommandPacket {
     if (!TextUtils.isEmpty(messageId)) {
       builder.setMid(messageId);
     }
+    if (null != messageIds && !messageIds.isEmpty()) {
+      builder.addAllIds(messageIds);
+    }
     if (null != largestTimeStamp) {
       builder.setTots(largestTimeStamp);
     }
@@ -71,6 +87,25 @@ public class ConversationAckPacket extends PeerBasedCommandPacket {
     return cap;
   }
 
+  /**
+   * 合并多条消息的 ack，只有一条时与单条消息的 ack 相同
+   * @param peerId
+   * @param conversationId
+   * @param messageIds
+   * @return
+   */
+  public static ConversationAckPacket getConversationAckPacket(String peerId,
+      String conversationId, List<String> messageIds) {
+    if (messageIds.size() == 1) {
+      return getConversationAckPacket(peerId, conversationId, messageIds.get(0));
+    }
+    ConversationAckPacket cap = new ConversationAckPacket();
+    cap.setPeerId(peerId);
+    cap.setConversationId(conversationId);
+    cap.setMessageIds(messageIds);
+    return cap;
+  }
+
   /**
    * 根据 timestamps 获取 ack 的 Packet
    * 用于离线消息仅返回 count 时通知 server 该 timestamps 以前的消息均已收到
@@ -1,8 +1,13 @@
 package com.avos.avospush.session;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -15,163 +20,309 @@ import com.avos.avoscloud.AVPersistenceUtils;
 import com.avos.avoscloud.AVUtils;
 import com.avos.avoscloud.LogUtil;
 
+/**
+ * 持久化的队列
+ *
+ * 每次修改只在追加日志中写入一条记录，短时间内的多次修改合并成一次写入，见 MessageQueueLog
+ */
 public class MessageQueue<E> implements Queue<E> {
 
-  Queue<E> messages;
+  private final ConcurrentLinkedQueue<Entry<E>> entries = new ConcurrentLinkedQueue<Entry<E>>();
   private final String queueKey;
   private static final String MESSAGE_ZONE = "com.avoscloud.chat.message";
   private static final String QUEUE_KEY = "com.avoscloud.chat.message.queue";
+  private static final String QUEUE_LOG_DIR = "MessageQueue";
+  private static final long FLUSH_DELAY_MILLIS = 100;
   private final Class<E> type;
+  private final MessageQueueLog queueLog;
+  private long nextSeq = 1;
+  private List<String> pendingRecords = new ArrayList<String>();
+  private boolean flushScheduled = false;
   static HandlerThread serializeThread = new HandlerThread("com.avos.avoscloud.push.messagequeue");
   static {
     serializeThread.start();
   }
   static Handler serializeHanlder = new Handler(serializeThread.getLooper());
 
+  private static class Entry<E> {
+    final long seq;
+    final E value;
+
+    Entry(long seq, E value) {
+      this.seq = seq;
+      this.value = value;
+    }
+  }
+
   public MessageQueue(String peerId, Class<E> type) {
-    messages = new ConcurrentLinkedQueue<E>();
     this.type = type;
     queueKey = QUEUE_KEY + "." + peerId;
-    LinkedList<E> storedMessages = restoreMessageQueue();
-    if (storedMessages != null && storedMessages.size() > 0) {
-      messages.addAll(storedMessages);
-    }
+    File logDir = new File(AVPersistenceUtils.getPaasDocumentDir(), QUEUE_LOG_DIR);
+    queueLog = new MessageQueueLog(new File(logDir, AVUtils.md5(queueKey) + ".log"));
+    restoreMessageQueue();
   }
 
   @Override
-  public boolean addAll(Collection<? extends E> collection) {
-    boolean result = messages.addAll(collection);
-    this.storeMessageQueue();
+  public synchronized boolean addAll(Collection<? extends E> collection) {
+    boolean result = false;
+    for (E e : collection) {
+      result |= offer(e);
+    }
     return result;
   }
 
   @Override
-  public void clear() {
-    messages.clear();
-    this.storeMessageQueue();
+  public synchronized void clear() {
+    entries.clear();
+    storeRecord(MessageQueueLog.clearRecord());
   }
 
   @Override
   public boolean contains(Object object) {
-    return messages.contains(object);
+    for (Entry<E> entry : entries) {
+      if (equals(object, entry.value)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
   public boolean containsAll(Collection<?> collection) {
-    return messages.containsAll(collection);
+    for (Object object : collection) {
+      if (!contains(object)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public boolean isEmpty() {
-    return messages.isEmpty();
+    return entries.isEmpty();
   }
 
   @Override
   public Iterator<E> iterator() {
-    return messages.iterator();
+    final Iterator<Entry<E>> iterator = entries.iterator();
+    return new Iterator<E>() {
+      private Entry<E> current;
+
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public E next() {
+        current = iterator.next();
+        return current.value;
+      }
+
+      @Override
+      public void remove() {
+        synchronized (MessageQueue.this) {
+          iterator.remove();
+          storeRecord(MessageQueueLog.removeRecord(current.seq));
+        }
+      }
+    };
   }
 
   @Override
-  public boolean remove(Object object) {
-    boolean result = messages.remove(object);
-    this.storeMessageQueue();
-    return result;
+  public synchronized boolean remove(Object object) {
+    for (Entry<E> entry : entries) {
+      if (equals(object, entry.value)) {
+        return removeEntry(entry);
+      }
+    }
+    return false;
   }
 
   @Override
-  public boolean removeAll(Collection<?> collection) {
-    boolean result = messages.removeAll(collection);
-    this.storeMessageQueue();
+  public synchronized boolean removeAll(Collection<?> collection) {
+    boolean result = false;
+    for (Entry<E> entry : entries) {
+      if (collection.contains(entry.value)) {
+        result |= removeEntry(entry);
+      }
+    }
     return result;
   }
 
   @Override
-  public boolean retainAll(Collection<?> collection) {
-    boolean result = messages.retainAll(collection);
-    this.storeMessageQueue();
+  public synchronized boolean retainAll(Collection<?> collection) {
+    boolean result = false;
+    for (Entry<E> entry : entries) {
+      if (!collection.contains(entry.value)) {
+        result |= removeEntry(entry);
+      }
+    }
     return result;
   }
 
   @Override
   public int size() {
-    return messages.size();
+    return entries.size();
   }
 
   @Override
   public Object[] toArray() {
-    return messages.toArray();
+    return values().toArray();
   }
 
   @Override
   public <T> T[] toArray(T[] array) {
-    return messages.toArray(array);
+    return values().toArray(array);
   }
 
   @Override
   public boolean add(E e) {
-    boolean result = messages.add(e);
-    this.storeMessageQueue();
-    return result;
+    return offer(e);
   }
 
   @Override
-  public boolean offer(E e) {
-    boolean result = messages.offer(e);
-    this.storeMessageQueue();
-    return result;
+  public synchronized boolean offer(E e) {
+    Entry<E> entry = new Entry<E>(nextSeq++, e);
+    entries.offer(entry);
+    storeRecord(MessageQueueLog.addRecord(entry.seq, serialize(e)));
+    return true;
   }
 
   @Override
-  public E remove() {
-    E result = messages.remove();
-    this.storeMessageQueue();
+  public synchronized E remove() {
+    E result = poll();
+    if (result == null && entries.isEmpty()) {
+      throw new NoSuchElementException();
+    }
     return result;
   }
 
   @Override
-  public E poll() {
-    E result = messages.poll();
-    this.storeMessageQueue();
-    return result;
+  public synchronized E poll() {
+    Entry<E> entry = entries.poll();
+    if (entry == null) {
+      return null;
+    }
+    storeRecord(MessageQueueLog.removeRecord(entry.seq));
+    return entry.value;
   }
 
   @Override
   public E element() {
-    E result = messages.element();
-    this.storeMessageQueue();
+    E result = peek();
+    if (result == null && entries.isEmpty()) {
+      throw new NoSuchElementException();
+    }
     return result;
   }
 
   @Override
   public E peek() {
-    return messages.peek();
+    Entry<E> entry = entries.peek();
+    return entry == null ? null : entry.value;
   }
 
-  private void storeMessageQueue() {
-    // 异步序列化，保证效率
-    serializeHanlder.post(new Runnable() {
+  private static boolean equals(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
 
-      @Override
-      public void run() {
-        String queueString =
-            JSON.toJSONString(messages, SerializerFeature.SkipTransientField,
-                SerializerFeature.WriteClassName, SerializerFeature.QuoteFieldNames,
-                SerializerFeature.WriteNullNumberAsZero, SerializerFeature.WriteNullBooleanAsFalse);
-        AVPersistenceUtils.sharedInstance().savePersistentSettingString(MESSAGE_ZONE, queueKey,
-            queueString);
+  private List<E> values() {
+    List<E> values = new ArrayList<E>();
+    for (Entry<E> entry : entries) {
+      values.add(entry.value);
+    }
+    return values;
+  }
+
+  private boolean removeEntry(Entry<E> entry) {
+    if (entries.remove(entry)) {
+      storeRecord(MessageQueueLog.removeRecord(entry.seq));
+      return true;
+    }
+    return false;
+  }
+
+  private static String serialize(Object value) {
+    return JSON.toJSONString(value, SerializerFeature.SkipTransientField,
+        SerializerFeature.WriteClassName, SerializerFeature.QuoteFieldNames,
+        SerializerFeature.WriteNullNumberAsZero, SerializerFeature.WriteNullBooleanAsFalse);
+  }
+
+  private List<String> snapshotRecords() {
+    List<String> records = new ArrayList<String>();
+    for (Entry<E> entry : entries) {
+      records.add(MessageQueueLog.addRecord(entry.seq, serialize(entry.value)));
+    }
+    return records;
+  }
+
+  private void storeRecord(String record) {
+    pendingRecords.add(record);
+    if (!flushScheduled) {
+      flushScheduled = true;
+      // 异步写入，合并短时间内的多次修改
+      serializeHanlder.postDelayed(flushTask, FLUSH_DELAY_MILLIS);
+    }
+  }
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
 
+  void flush() {
+    List<String> records;
+    List<String> snapshot = null;
+    synchronized (this) {
+      flushScheduled = false;
+      records = pendingRecords;
+      pendingRecords = new ArrayList<String>();
+      if (queueLog.isCorrupted()
+          || queueLog.needsCompaction(entries.size() + records.size())) {
+        snapshot = snapshotRecords();
       }
-    });
+    }
+    if (snapshot != null) {
+      queueLog.rewrite(snapshot);
+    } else {
+      queueLog.append(records);
+    }
+  }
+
+  private synchronized void restoreMessageQueue() {
+    Map<Long, E> storedMessages;
+    if (queueLog.exists()) {
+      storedMessages = queueLog.replay(type);
+    } else {
+      storedMessages = restoreLegacyMessageQueue();
+    }
+    for (Map.Entry<Long, E> stored : storedMessages.entrySet()) {
+      entries.add(new Entry<E>(stored.getKey(), stored.getValue()));
+      nextSeq = Math.max(nextSeq, stored.getKey() + 1);
+    }
+    if (!queueLog.exists() && !storedMessages.isEmpty() || queueLog.isCorrupted()) {
+      queueLog.rewrite(snapshotRecords());
+      AVPersistenceUtils.sharedInstance().removePersistentSettingString(MESSAGE_ZONE, queueKey);
+    }
   }
 
-  private synchronized LinkedList<E> restoreMessageQueue() {
-    LinkedList<E> storedMessages = new LinkedList<E>();
+  /**
+   * 读取以前整体保存在 SharedPreferences 中的队列
+   */
+  private Map<Long, E> restoreLegacyMessageQueue() {
+    Map<Long, E> storedMessages = new LinkedHashMap<Long, E>();
     String queueString =
         AVPersistenceUtils.sharedInstance()
             .getPersistentSettingString(MESSAGE_ZONE, queueKey, null);
     if (!AVUtils.isBlankString(queueString)) {
       try {
-        storedMessages.addAll(JSON.parseArray(queueString, type));
+        long seq = 1;
+        for (E message : JSON.parseArray(queueString, type)) {
+          storedMessages.put(seq++, message);
+        }
       } catch (Exception e) {
         // clean it since there's parse exception
         AVPersistenceUtils.sharedInstance().removePersistentSettingString(MESSAGE_ZONE, queueKey);
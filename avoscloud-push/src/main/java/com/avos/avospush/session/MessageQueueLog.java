@@ -0,0 +1,168 @@
+package com.avos.avospush.session;
+
+import com.alibaba.fastjson.JSON;
+import com.avos.avoscloud.AVUtils;
+import com.avos.avoscloud.LogUtil;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * MessageQueue 的追加日志
+ *
+ * 每行一条记录：
+ * <pre>
+ * A seq json   加入一个元素
+ * R seq        移除一个元素
+ * C            清空
+ * </pre>
+ * 恢复时按顺序重放，记录数远多于剩余元素时用当前的元素重写整个文件。
+ */
+class MessageQueueLog {
+  static final int COMPACT_THRESHOLD = 256;
+  private static final String UTF8 = "UTF-8";
+
+  private final File file;
+  private int recordCount = 0;
+  private boolean corrupted = false;
+
+  MessageQueueLog(File file) {
+    this.file = file;
+  }
+
+  boolean exists() {
+    return file.exists();
+  }
+
+  static String addRecord(long seq, String json) {
+    return "A " + seq + " " + json;
+  }
+
+  static String removeRecord(long seq) {
+    return "R " + seq;
+  }
+
+  static String clearRecord() {
+    return "C";
+  }
+
+  /**
+   * @return 按加入顺序排列的 seq 与元素，文件末尾不完整的记录会被忽略
+   */
+  synchronized <E> LinkedHashMap<Long, E> replay(Class<E> type) {
+    LinkedHashMap<Long, E> entries = new LinkedHashMap<Long, E>();
+    recordCount = 0;
+    corrupted = false;
+    if (!file.exists()) {
+      return entries;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (AVUtils.isBlankString(line)) {
+          continue;
+        }
+        recordCount++;
+        char op = line.charAt(0);
+        if (op == 'C') {
+          entries.clear();
+          continue;
+        }
+        int seqEnd = line.indexOf(' ', 2);
+        if (op == 'A' && seqEnd > 2) {
+          long seq = Long.parseLong(line.substring(2, seqEnd));
+          entries.put(seq, JSON.parseObject(line.substring(seqEnd + 1), type));
+        } else if (op == 'R') {
+          entries.remove(Long.parseLong(line.substring(2).trim()));
+        } else {
+          throw new IllegalStateException("unknown record");
+        }
+      }
+    } catch (Exception e) {
+      // 进程在写入过程中被杀掉时最后一条记录可能不完整，需要重写文件，否则之后追加的记录会接在这条记录后面
+      corrupted = true;
+      LogUtil.log.e("failed to replay message queue log " + file.getName() + ": " + e.getMessage());
+    } finally {
+      closeQuietly(reader);
+    }
+    return entries;
+  }
+
+  synchronized void append(List<String> records) {
+    if (records.isEmpty()) {
+      return;
+    }
+    if (write(file, records, true)) {
+      recordCount += records.size();
+    } else {
+      corrupted = true;
+    }
+  }
+
+  /**
+   * 用当前的记录替换整个文件
+   */
+  synchronized void rewrite(List<String> records) {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    if (write(tmpFile, records, false) && tmpFile.renameTo(file)) {
+      recordCount = records.size();
+      corrupted = false;
+    } else {
+      tmpFile.delete();
+    }
+  }
+
+  synchronized boolean needsCompaction(int liveCount) {
+    return recordCount > COMPACT_THRESHOLD && recordCount > liveCount * 2;
+  }
+
+  synchronized boolean isCorrupted() {
+    return corrupted;
+  }
+
+  synchronized int getRecordCount() {
+    return recordCount;
+  }
+
+  private static boolean write(File target, List<String> records, boolean append) {
+    StringBuilder builder = new StringBuilder();
+    for (String record : records) {
+      builder.append(record).append('\n');
+    }
+    FileOutputStream outputStream = null;
+    try {
+      File parent = target.getParentFile();
+      if (parent != null && !parent.exists()) {
+        parent.mkdirs();
+      }
+      outputStream = new FileOutputStream(target, append);
+      outputStream.write(builder.toString().getBytes(UTF8));
+      outputStream.getFD().sync();
+      return true;
+    } catch (IOException e) {
+      LogUtil.log.e("failed to write message queue log " + target.getName(), e);
+      return false;
+    } finally {
+      closeQuietly(outputStream);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+}
@@ -24,6 +24,10 @@ public class SessionAckPacket extends PeerBasedCommandPacket {
     ids.add(id);
   }
 
+  public void setMessageIds(List<String> messageIds) {
+    ids = messageIds;
+  }
+
   @Override
   protected Messages.GenericCommand.Builder getGenericCommandBuilder() {
     Messages.GenericCommand.Builder builder = super.getGenericCommandBuilder();
@@ -1,17 +1,67 @@
 package com.avos.avospush.session;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
 import com.avos.avoscloud.AVUtils;
 
+/**
+ * 记录最近收到的消息 id，用于去重
+ *
+ * 内存中的 id 保存在固定大小的环形缓冲区里，messageIds 是同样内容的索引，查重和淘汰都是 O(1) 的。
+ * messageDepot 按同样的顺序持久化这些 id，只在启动时读取一次。
+ */
 public class StaleMessageDepot {
-  MessageQueue<String> messageDepot;
-  private static final int MAXLENGTH = 50;
+  public static final int DEFAULT_CAPACITY = 50;
+
+  final Queue<String> messageDepot;
+  private final Set<String> messageIds;
+  private final String[] ring;
+  // 最早的 id 在 ring 中的位置
+  private int head = 0;
+  private int count = 0;
 
   public StaleMessageDepot(String depotName) {
-    this.messageDepot = new MessageQueue<String>(depotName, String.class);
+    this(depotName, DEFAULT_CAPACITY);
   }
 
   /**
-   * 
+   * @param depotName
+   * @param capacity 最多保存的消息 id 数量
+   */
+  public StaleMessageDepot(String depotName, int capacity) {
+    this(new MessageQueue<String>(depotName, String.class), capacity);
+  }
+
+  StaleMessageDepot(Queue<String> messageDepot, int capacity) {
+    this.messageDepot = messageDepot;
+    this.ring = new String[capacity > 0 ? capacity : DEFAULT_CAPACITY];
+    this.messageIds = new HashSet<String>(ring.length * 2);
+    List<String> storedIds = new ArrayList<String>(messageDepot);
+    // 容量变小之后只保留最近的 id
+    for (int i = 0; i < storedIds.size() - ring.length; i++) {
+      messageDepot.poll();
+    }
+    for (int i = Math.max(0, storedIds.size() - ring.length); i < storedIds.size(); i++) {
+      String messageId = storedIds.get(i);
+      if (messageIds.add(messageId)) {
+        ring[count++] = messageId;
+      }
+    }
+    if (count < Math.min(storedIds.size(), ring.length)) {
+      // 持久化的 id 有重复时重写一遍，保证和 ring 的顺序一一对应
+      messageDepot.clear();
+      for (int i = 0; i < count; i++) {
+        messageDepot.offer(ring[i]);
+      }
+    }
+  }
+
+  /**
+   *
    * @param messageId
    * @return false if message arrived before. true
    */
@@ -19,13 +69,23 @@ public class StaleMessageDepot {
     if (AVUtils.isBlankString(messageId)) {
       return true;
     }
-    boolean isContains = messageDepot.contains(messageId);
-    if (!isContains) {
-      messageDepot.offer(messageId);
-      while (messageDepot.size() > MAXLENGTH) {
-        messageDepot.poll();
-      }
+    if (!messageIds.add(messageId)) {
+      return false;
+    }
+    if (count == ring.length) {
+      messageIds.remove(ring[head]);
+      messageDepot.poll();
+      ring[head] = messageId;
+      head = (head + 1) % ring.length;
+    } else {
+      ring[(head + count) % ring.length] = messageId;
+      count++;
     }
-    return !isContains;
+    messageDepot.offer(messageId);
+    return true;
+  }
+
+  synchronized int size() {
+    return count;
   }
 }
@@ -0,0 +1,116 @@
+package com.avos.avoscloud;
+
+import com.avos.avospush.session.CommandPacket;
+import com.avos.avospush.session.ConversationAckPacket;
+import com.avos.avospush.session.SessionAckPacket;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVAckAggregatorTest {
+
+  private static class RecordingSender implements AVAckAggregator.PacketSender {
+    final List<CommandPacket> packets = new ArrayList<CommandPacket>();
+
+    @Override
+    public synchronized void send(CommandPacket packet) {
+      packets.add(packet);
+    }
+
+    synchronized List<CommandPacket> getPackets() {
+      return new ArrayList<CommandPacket>(packets);
+    }
+  }
+
+  @Test
+  public void testAckImmediatelyWithoutMore() {
+    RecordingSender sender = new RecordingSender();
+    AVAckAggregator aggregator = new AVAckAggregator("peer", sender);
+    aggregator.add("conv", "m1", false);
+    Assert.assertEquals(1, sender.getPackets().size());
+    ConversationAckPacket packet = (ConversationAckPacket) sender.getPackets().get(0);
+    Assert.assertEquals("conv", packet.getConversationId());
+    Assert.assertEquals("m1", packet.getMessageId());
+    Assert.assertEquals(0, aggregator.getPendingCount());
+  }
+
+  @Test
+  public void testBatchPerConversation() {
+    RecordingSender sender = new RecordingSender();
+    AVAckAggregator aggregator = new AVAckAggregator("peer", sender);
+    aggregator.add("conv1", "m1", true);
+    aggregator.add("conv2", "m2", true);
+    aggregator.add("conv1", "m3", true);
+    aggregator.add(null, "m4", true);
+    Assert.assertEquals(0, sender.getPackets().size());
+    Assert.assertEquals(4, aggregator.getPendingCount());
+
+    aggregator.add("conv1", "m5", false);
+    Assert.assertEquals(1, sender.getPackets().size());
+    ConversationAckPacket packet = (ConversationAckPacket) sender.getPackets().get(0);
+    Assert.assertEquals(Arrays.asList("m1", "m3", "m5"), packet.getMessageIds());
+
+    aggregator.flush();
+    List<CommandPacket> packets = sender.getPackets();
+    Assert.assertEquals(3, packets.size());
+    Assert.assertEquals(Arrays.asList("m2"),
+        Arrays.asList(((ConversationAckPacket) packets.get(1)).getMessageId()));
+    Assert.assertTrue(packets.get(2) instanceof SessionAckPacket);
+    Assert.assertEquals(0, aggregator.getPendingCount());
+  }
+
+  @Test
+  public void testFlushWhenBatchIsFull() {
+    RecordingSender sender = new RecordingSender();
+    AVAckAggregator aggregator = new AVAckAggregator("peer", sender);
+    for (int i = 0; i < AVAckAggregator.MAX_BATCH_SIZE; i++) {
+      aggregator.add("conv", "m" + i, true);
+    }
+    Assert.assertEquals(1, sender.getPackets().size());
+    Assert.assertEquals(AVAckAggregator.MAX_BATCH_SIZE,
+        ((ConversationAckPacket) sender.getPackets().get(0)).getMessageIds().size());
+  }
+
+  @Test
+  public void testFlushAfterWindow() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    AVAckAggregator aggregator = new AVAckAggregator("peer", sender);
+    aggregator.add("conv", "m1", true);
+    aggregator.add("conv", "m2", true);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sender.getPackets().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    Assert.assertEquals(1, sender.getPackets().size());
+    Assert.assertEquals(Arrays.asList("m1", "m2"),
+        ((ConversationAckPacket) sender.getPackets().get(0)).getMessageIds());
+  }
+
+  @Test
+  public void testKeepAcksWhilePaused() throws Exception {
+    RecordingSender sender = new RecordingSender();
+    AVAckAggregator aggregator = new AVAckAggregator("peer", sender);
+    aggregator.add("conv", "m1", true);
+    aggregator.pause();
+    aggregator.add("conv", "m2", false);
+    aggregator.flush();
+    Thread.sleep(AVAckAggregator.ACK_WINDOW * 2);
+    Assert.assertTrue(sender.getPackets().isEmpty());
+    Assert.assertEquals(2, aggregator.getPendingCount());
+
+    aggregator.resume();
+    Assert.assertEquals(1, sender.getPackets().size());
+    Assert.assertEquals(Arrays.asList("m1", "m2"),
+        ((ConversationAckPacket) sender.getPackets().get(0)).getMessageIds());
+    Assert.assertEquals(0, aggregator.getPendingCount());
+  }
+}
@@ -0,0 +1,150 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVCommandDispatcherTest {
+
+  @Test
+  public void testOrderPerKey() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    AVCommandDispatcher dispatcher = new AVCommandDispatcher(executor);
+    final int peers = 4;
+    final int commands = 200;
+    final List<List<Integer>> results = new ArrayList<List<Integer>>();
+    final CountDownLatch latch = new CountDownLatch(peers * commands);
+    for (int p = 0; p < peers; p++) {
+      results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+    }
+    for (int i = 0; i < commands; i++) {
+      for (int p = 0; p < peers; p++) {
+        final List<Integer> result = results.get(p);
+        final int value = i;
+        dispatcher.dispatch("peer" + p, "direct", new Runnable() {
+          @Override
+          public void run() {
+            result.add(value);
+            latch.countDown();
+          }
+        });
+      }
+    }
+    Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    for (List<Integer> result : results) {
+      Assert.assertEquals(commands, result.size());
+      for (int i = 0; i < commands; i++) {
+        Assert.assertEquals(i, result.get(i).intValue());
+      }
+    }
+    executor.shutdown();
+    // latch 在指令执行完之前就放行了，等耗时记录完成之后再检查
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(commands * peers,
+        dispatcher.handlerSnapshots().get("direct").getCount());
+  }
+
+  @Test
+  public void testSlowPeerDoesNotBlockOthers() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    AVCommandDispatcher dispatcher = new AVCommandDispatcher(executor);
+    final CountDownLatch slowStarted = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch fastDone = new CountDownLatch(1);
+    dispatcher.dispatch("slow", "conv", new Runnable() {
+      @Override
+      public void run() {
+        slowStarted.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    dispatcher.dispatch("slow", "conv", new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    Assert.assertTrue(slowStarted.await(10, TimeUnit.SECONDS));
+    dispatcher.dispatch("fast", "direct", new Runnable() {
+      @Override
+      public void run() {
+        fastDone.countDown();
+      }
+    });
+    Assert.assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(2, dispatcher.queueDepths().get("slow").intValue());
+
+    release.countDown();
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(dispatcher.queueDepths().isEmpty());
+  }
+
+  @Test
+  public void testExceptionDoesNotStopQueue() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    AVCommandDispatcher dispatcher = new AVCommandDispatcher(executor);
+    final CountDownLatch done = new CountDownLatch(1);
+    dispatcher.dispatch("peer", "ack", new Runnable() {
+      @Override
+      public void run() {
+        throw new IllegalStateException("test");
+      }
+    });
+    dispatcher.dispatch("peer", "ack", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, dispatcher.handlerSnapshots().get("ack").getErrorCount());
+  }
+
+  @Test
+  public void testErrorDoesNotStopQueue() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    AVCommandDispatcher dispatcher = new AVCommandDispatcher(executor);
+    final CountDownLatch done = new CountDownLatch(2);
+    dispatcher.dispatch("peer", "ack", new Runnable() {
+      @Override
+      public void run() {
+        throw new StackOverflowError("test");
+      }
+    });
+    dispatcher.dispatch("peer", "ack", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    Thread.sleep(50);
+    dispatcher.dispatch("peer", "ack", new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(dispatcher.queueDepths().isEmpty());
+  }
+}
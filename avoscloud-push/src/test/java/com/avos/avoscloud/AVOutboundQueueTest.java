@@ -0,0 +1,231 @@
+package com.avos.avoscloud;
+
+import com.avos.avospush.session.CommandPacket;
+import com.avos.avospush.session.SessionAckPacket;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVOutboundQueueTest {
+
+  private ScheduledExecutorService executor;
+  private RecordingSink sink;
+  private RecordingListener listener;
+
+  static class RecordingSink implements AVOutboundQueue.Sink {
+    volatile boolean open = true;
+    volatile boolean busy = false;
+    volatile boolean failWrites = false;
+    final List<ByteBuffer> writes = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public boolean isBusy() {
+      return busy;
+    }
+
+    @Override
+    public void write(ByteBuffer frames) {
+      if (failWrites) {
+        throw new IllegalStateException("closed");
+      }
+      writes.add(frames);
+    }
+  }
+
+  static class RecordingListener implements AVOutboundQueue.Listener {
+    final List<Boolean> congestion = Collections.synchronizedList(new ArrayList<Boolean>());
+    final List<CommandPacket> dropped =
+        Collections.synchronizedList(new ArrayList<CommandPacket>());
+
+    @Override
+    public void onCongestionChanged(boolean congested) {
+      congestion.add(congested);
+    }
+
+    @Override
+    public void onPacketDropped(CommandPacket packet) {
+      dropped.add(packet);
+    }
+  }
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    sink = new RecordingSink();
+    listener = new RecordingListener();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private static SessionAckPacket packet(String messageId, int size) {
+    SessionAckPacket packet = new SessionAckPacket();
+    packet.setPeerId("peer");
+    char[] padding = new char[size];
+    Arrays.fill(padding, 'x');
+    packet.setMessageId(messageId + new String(padding));
+    return packet;
+  }
+
+  /**
+   * 按 RFC 6455 解出所有的帧
+   */
+  private static List<Messages.GenericCommand> decodeFrames(ByteBuffer buffer) throws Exception {
+    List<Messages.GenericCommand> commands = new ArrayList<Messages.GenericCommand>();
+    while (buffer.hasRemaining()) {
+      Assert.assertEquals(0x82, buffer.get() & 0xFF);
+      int second = buffer.get() & 0xFF;
+      Assert.assertTrue((second & 0x80) != 0);
+      long length = second & 0x7F;
+      if (length == 126) {
+        length = buffer.getShort() & 0xFFFF;
+      } else if (length == 127) {
+        length = buffer.getLong();
+      }
+      byte[] mask = new byte[4];
+      buffer.get(mask);
+      byte[] payload = new byte[(int) length];
+      buffer.get(payload);
+      for (int i = 0; i < payload.length; i++) {
+        payload[i] ^= mask[i % 4];
+      }
+      commands.add(Messages.GenericCommand.parseFrom(payload));
+    }
+    return commands;
+  }
+
+  private void waitUntilDrained(AVOutboundQueue queue) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testFramesAreCoalescedWhileBusy() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 1000, 64 * 1024);
+    sink.busy = true;
+    for (int i = 0; i < 20; i++) {
+      Assert.assertTrue(queue.offer(packet("m" + i, i == 3 ? 300 : 0)));
+    }
+    Thread.sleep(50);
+    Assert.assertTrue(sink.writes.isEmpty());
+    sink.busy = false;
+    waitUntilDrained(queue);
+
+    Assert.assertEquals(1, sink.writes.size());
+    List<Messages.GenericCommand> commands = decodeFrames(sink.writes.get(0));
+    Assert.assertEquals(20, commands.size());
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals("peer", commands.get(i).getPeerId());
+      Assert.assertTrue(commands.get(i).getAckMessage().getIds(0).startsWith("m" + i));
+    }
+  }
+
+  @Test
+  public void testBatchBudget() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 1000, 1024);
+    sink.busy = true;
+    for (int i = 0; i < 10; i++) {
+      queue.offer(packet("m" + i, 400));
+    }
+    sink.busy = false;
+    waitUntilDrained(queue);
+
+    int total = 0;
+    for (ByteBuffer write : sink.writes) {
+      Assert.assertTrue(write.remaining() < 1024 + 500);
+      total += decodeFrames(write).size();
+    }
+    Assert.assertEquals(10, total);
+    Assert.assertTrue(sink.writes.size() >= 4);
+  }
+
+  @Test
+  public void testBackpressure() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 8, 64 * 1024);
+    sink.busy = true;
+    for (int i = 0; i < 8; i++) {
+      Assert.assertTrue(queue.offer(packet("m" + i, 0)));
+    }
+    Assert.assertFalse(queue.offer(packet("overflow", 0)));
+    Assert.assertEquals(Arrays.asList(true), listener.congestion);
+
+    sink.busy = false;
+    waitUntilDrained(queue);
+    Assert.assertEquals(Arrays.asList(true, false), listener.congestion);
+  }
+
+  @Test
+  public void testRejectWhenClosed() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 1000, 64 * 1024);
+    sink.busy = true;
+    queue.offer(packet("m1", 0));
+    queue.offer(packet("m2", 0));
+    sink.open = false;
+    Assert.assertFalse(queue.offer(packet("m3", 0)));
+    queue.clear();
+    Assert.assertEquals(2, listener.dropped.size());
+    Assert.assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testClosedBeforeDrain() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 8, 64 * 1024);
+    sink.busy = true;
+    for (int i = 0; i < 4; i++) {
+      Assert.assertTrue(queue.offer(packet("m" + i, 0)));
+    }
+    sink.open = false;
+    waitUntilDrained(queue);
+
+    Assert.assertTrue(sink.writes.isEmpty());
+    Assert.assertEquals(4, listener.dropped.size());
+    Assert.assertEquals(Arrays.asList(true, false), listener.congestion);
+    Assert.assertEquals(0, queue.size());
+  }
+
+  @Test
+  public void testFailedWriteDropsBatch() throws Exception {
+    AVOutboundQueue queue = new AVOutboundQueue(sink, listener, executor, 1000, 64 * 1024);
+    sink.busy = true;
+    sink.failWrites = true;
+    for (int i = 0; i < 5; i++) {
+      queue.offer(packet("m" + i, 0));
+    }
+    sink.busy = false;
+    waitUntilDrained(queue);
+
+    Assert.assertTrue(sink.writes.isEmpty());
+    Assert.assertEquals(5, listener.dropped.size());
+    Assert.assertEquals(0, queue.size());
+  }
+}
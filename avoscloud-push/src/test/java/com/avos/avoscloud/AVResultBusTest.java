@@ -0,0 +1,133 @@
+package com.avos.avoscloud;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVResultBusTest {
+
+  private static class RecordingReceiver implements AVResultBus.Receiver<String> {
+    final List<String> results = new ArrayList<String>();
+    final CountDownLatch timeoutLatch = new CountDownLatch(1);
+
+    @Override
+    public synchronized void onResult(String result) {
+      results.add(result);
+    }
+
+    @Override
+    public void onTimeout() {
+      timeoutLatch.countDown();
+    }
+  }
+
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private ScheduledThreadPoolExecutor timer;
+  private AVResultBus<String> bus;
+
+  @Before
+  public void setup() {
+    timer = new ScheduledThreadPoolExecutor(1);
+    bus = new AVResultBus<String>(DIRECT_EXECUTOR, timer);
+  }
+
+  @After
+  public void tearDown() {
+    timer.shutdownNow();
+  }
+
+  @Test
+  public void testDeliverToRegisteredReceiver() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    Future<String> future = bus.register("send1", receiver, 10000);
+    Assert.assertFalse(future.isDone());
+
+    Assert.assertTrue(bus.deliver("send1", "ok"));
+    Assert.assertEquals("ok", future.get(1, TimeUnit.SECONDS));
+    Assert.assertEquals(1, receiver.results.size());
+    Assert.assertEquals(0, bus.size());
+
+    // 同一个结果不会重复投递
+    Assert.assertFalse(bus.deliver("send1", "again"));
+    Assert.assertEquals(1, receiver.results.size());
+  }
+
+  @Test
+  public void testDeliverWithoutReceiver() {
+    Assert.assertFalse(bus.deliver("unknown", "ok"));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    Future<String> future = bus.register("send2", receiver, 50);
+    Assert.assertTrue(receiver.timeoutLatch.await(2, TimeUnit.SECONDS));
+    Assert.assertEquals(0, bus.size());
+    try {
+      future.get();
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    Assert.assertFalse(bus.deliver("send2", "late"));
+    Assert.assertTrue(receiver.results.isEmpty());
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    Future<String> future = bus.register("send3", receiver, 10000);
+    Assert.assertTrue(future.cancel(false));
+    Assert.assertTrue(future.isCancelled());
+    Assert.assertFalse(bus.deliver("send3", "ok"));
+    Assert.assertTrue(receiver.results.isEmpty());
+    try {
+      future.get();
+      Assert.fail();
+    } catch (CancellationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testWaitingForResult() throws Exception {
+    RecordingReceiver receiver = new RecordingReceiver();
+    Future<String> future = bus.register("send4", receiver, 0);
+    try {
+      future.get(10, TimeUnit.MILLISECONDS);
+      Assert.fail();
+    } catch (TimeoutException e) {
+      // expected
+    }
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        bus.deliver("send4", "done");
+      }
+    }, 20, TimeUnit.MILLISECONDS);
+    Assert.assertEquals("done", future.get(2, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,119 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class HeartBeatPolicyTest {
+
+  static class FakeClock extends AVClock {
+    long now = 1000000;
+
+    @Override
+    long currentTimeMillis() {
+      return now;
+    }
+  }
+
+  static class RecordingPolicy extends HeartBeatPolicy {
+    int pings = 0;
+    int timeouts = 0;
+
+    RecordingPolicy(AVClock clock) {
+      super(clock);
+    }
+
+    @Override
+    public void onTimeOut() {
+      timeouts++;
+    }
+
+    @Override
+    public void sendPing() {
+      pings++;
+    }
+  }
+
+  @Test
+  public void testIntervalGrowsWhilePongsAreHealthy() {
+    FakeClock clock = new FakeClock();
+    RecordingPolicy policy = new RecordingPolicy(clock);
+    policy.onPong();
+    long interval = policy.getHeartBeatInterval();
+    Assert.assertEquals(HeartBeatPolicy.DEFAULT_HEART_BEAT_INTERVAL, interval);
+    for (int i = 0; i < 100; i++) {
+      clock.now += interval;
+      interval = policy.checkHealth();
+      clock.now += 50;
+      policy.onPong();
+    }
+    Assert.assertEquals(HeartBeatPolicy.MAX_HEART_BEAT_INTERVAL, interval);
+    Assert.assertEquals(100, policy.pings);
+    Assert.assertEquals(0, policy.timeouts);
+  }
+
+  @Test
+  public void testIntervalShrinksOnTimeout() {
+    FakeClock clock = new FakeClock();
+    RecordingPolicy policy = new RecordingPolicy(clock);
+    policy.onPong();
+    clock.now += HeartBeatPolicy.DEFAULT_HEART_BEAT_INTERVAL * 2 + 1;
+    Assert.assertEquals(0, policy.checkHealth());
+    Assert.assertEquals(1, policy.timeouts);
+    Assert.assertEquals(HeartBeatPolicy.DEFAULT_HEART_BEAT_INTERVAL / 2,
+        policy.getHeartBeatInterval());
+
+    for (int i = 0; i < 5; i++) {
+      clock.now += HeartBeatPolicy.MAX_HEART_BEAT_INTERVAL * 2;
+      policy.checkHealth();
+    }
+    Assert.assertEquals(HeartBeatPolicy.MIN_HEART_BEAT_INTERVAL, policy.getHeartBeatInterval());
+  }
+
+  @Test
+  public void testMissingPongDoesNotGrow() {
+    FakeClock clock = new FakeClock();
+    RecordingPolicy policy = new RecordingPolicy(clock);
+    policy.onPong();
+    // 7 次检查共 315s，还没有超过两个心跳
+    for (int i = 0; i < 7; i++) {
+      clock.now += HeartBeatPolicy.DEFAULT_HEART_BEAT_INTERVAL / 4;
+      policy.checkHealth();
+    }
+    Assert.assertEquals(0, policy.timeouts);
+    Assert.assertEquals(HeartBeatPolicy.DEFAULT_HEART_BEAT_INTERVAL,
+        policy.getHeartBeatInterval());
+  }
+
+  @Test
+  public void testReconnectBackoff() {
+    AVReconnectBackoff backoff = new AVReconnectBackoff(1000, 60000, new Random(7));
+    long ceiling = 1000;
+    for (int i = 0; i < 30; i++) {
+      long delay = backoff.nextDelay();
+      Assert.assertTrue(delay >= 0);
+      Assert.assertTrue(delay <= ceiling);
+      ceiling = Math.min(60000, ceiling * 2);
+    }
+    Assert.assertEquals(30, backoff.getAttempts());
+    backoff.reset();
+    Assert.assertTrue(backoff.nextDelay() <= 1000);
+  }
+
+  @Test
+  public void testReconnectBackoffIsJittered() {
+    AVReconnectBackoff first = new AVReconnectBackoff(1000, 60000, new Random(1));
+    AVReconnectBackoff second = new AVReconnectBackoff(1000, 60000, new Random(2));
+    boolean differs = false;
+    for (int i = 0; i < 10; i++) {
+      differs |= first.nextDelay() != second.nextDelay();
+    }
+    Assert.assertTrue(differs);
+  }
+}
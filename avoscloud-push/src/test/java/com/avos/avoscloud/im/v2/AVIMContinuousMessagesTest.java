@@ -0,0 +1,105 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.AVOSCloud;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.TestConfig;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 连续消息的写入和分页读取
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMContinuousMessagesTest {
+  private static final String CLIENT_ID = "continuousMessagesClient";
+  private static final String CONVERSATION_ID = "continuousMessagesConversation";
+  private static final int MESSAGE_COUNT = 1000;
+  private static final int PAGE_SIZE = 100;
+
+  private AVIMMessageStorage storage;
+
+  @Before
+  public void setup() {
+    AVOSCloud.initialize(RuntimeEnvironment.application, TestConfig.TEST_APP_ID, TestConfig.TEST_APP_KEY);
+    storage = AVIMMessageStorage.getInstance(CLIENT_ID);
+    storage.deleteClientData();
+  }
+
+  @After
+  public void tearDown() {
+    storage.deleteClientData();
+  }
+
+  @Test
+  public void testInsertAndPageThroughConversation() {
+    List<AVIMMessage> messages = createMessages(MESSAGE_COUNT, 0);
+
+    storage.insertContinuousMessages(messages, CONVERSATION_ID);
+    Assert.assertEquals(MESSAGE_COUNT, storage.getMessageCount(CONVERSATION_ID));
+
+    final List<AVIMMessage> result = new ArrayList<AVIMMessage>();
+    String msgId = null;
+    long timestamp = 0;
+    for (int i = 0; i < MESSAGE_COUNT / PAGE_SIZE; i++) {
+      final List<AVIMMessage> page = new ArrayList<AVIMMessage>();
+      storage.getMessages(msgId, timestamp, PAGE_SIZE, CONVERSATION_ID,
+          new AVIMMessageStorage.StorageQueryCallback() {
+            @Override
+            public void done(List<AVIMMessage> messages, List<Boolean> breakpoints) {
+              page.addAll(messages);
+            }
+          });
+      Assert.assertEquals(PAGE_SIZE, page.size());
+      AVIMMessage last = page.get(page.size() - 1);
+      msgId = last.getMessageId();
+      timestamp = last.getTimestamp();
+      result.addAll(page);
+    }
+    Assert.assertEquals(MESSAGE_COUNT, result.size());
+    Assert.assertEquals(messages.get(MESSAGE_COUNT - 1).getMessageId(), result.get(0).getMessageId());
+    Assert.assertEquals(messages.get(0).getMessageId(), result.get(MESSAGE_COUNT - 1).getMessageId());
+  }
+
+  @Test
+  public void testUpsertKeepsNewerContent() {
+    List<AVIMMessage> messages = createMessages(MESSAGE_COUNT, 0);
+    storage.insertContinuousMessages(messages, CONVERSATION_ID);
+
+    List<AVIMMessage> patched = createMessages(MESSAGE_COUNT, 1);
+    for (AVIMMessage message : patched) {
+      message.setContent("patched");
+    }
+    storage.insertContinuousMessages(patched, CONVERSATION_ID);
+    Assert.assertEquals(MESSAGE_COUNT, storage.getMessageCount(CONVERSATION_ID));
+    Assert.assertEquals("patched", storage.getLatestMessage(CONVERSATION_ID).getContent());
+
+    // updateAt 更旧的内容不会覆盖本地的版本
+    storage.insertContinuousMessages(messages, CONVERSATION_ID);
+    Assert.assertEquals("patched", storage.getLatestMessage(CONVERSATION_ID).getContent());
+  }
+
+  private static List<AVIMMessage> createMessages(int count, long updateAt) {
+    List<AVIMMessage> messages = new ArrayList<AVIMMessage>(count);
+    long baseTimestamp = 1500000000000L;
+    for (int i = 0; i < count; i++) {
+      AVIMMessage message = new AVIMMessage(CONVERSATION_ID, "peer" + (i % 10),
+          baseTimestamp + i, 0L, 0L);
+      message.setMessageId(String.format("message%05d", i));
+      message.setContent("{\"_lctype\":-1,\"_lctext\":\"message " + i + "\"}");
+      message.setUpdateAt(updateAt);
+      messages.add(message);
+    }
+    return messages;
+  }
+}
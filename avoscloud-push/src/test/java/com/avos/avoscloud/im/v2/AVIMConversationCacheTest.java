@@ -0,0 +1,63 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.BuildConfig;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMConversationCacheTest {
+
+  private AVIMClient client;
+
+  @Before
+  public void setup() {
+    client = AVIMClient.getInstance("cacheTestClient");
+  }
+
+  @Test
+  public void testCapacityIsBounded() {
+    AVIMConversationCache cache = new AVIMConversationCache(2);
+    cache.put("c1", new AVIMConversation(client, "c1"));
+    cache.put("c2", new AVIMConversation(client, "c2"));
+    cache.put("c3", new AVIMConversation(client, "c3"));
+    Assert.assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testEvictedConversationKeepsIdentityWhileReferenced() {
+    AVIMConversationCache cache = new AVIMConversationCache(1);
+    AVIMConversation first = new AVIMConversation(client, "c1");
+    cache.put("c1", first);
+    cache.put("c2", new AVIMConversation(client, "c2"));
+    Assert.assertEquals(1, cache.size());
+
+    Assert.assertSame(first, cache.get("c1"));
+    Assert.assertSame(first, cache.putIfAbsent("c1", new AVIMConversation(client, "c1")));
+  }
+
+  @Test
+  public void testStoredIds() {
+    AVIMConversationCache cache = new AVIMConversationCache(4);
+    cache.loadStoredIds(Arrays.asList("c1"));
+    Assert.assertTrue(cache.isStored("c1"));
+    Assert.assertNull(cache.get("c1"));
+
+    Assert.assertFalse(cache.isStored("c2"));
+    cache.put("c2", new AVIMConversation(client, "c2"));
+    Assert.assertTrue(cache.isStored("c2"));
+
+    cache.remove("c1");
+    Assert.assertFalse(cache.isStored("c1"));
+    cache.clear();
+    Assert.assertEquals(0, cache.size());
+    Assert.assertFalse(cache.isStored("c2"));
+  }
+}
@@ -0,0 +1,85 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.AVOSCloud;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.TestConfig;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMConversationQueryCacheTest {
+  private static final String CLIENT_ID = "queryCacheClient";
+  private static final String QUERY_KEY = "queryKey";
+
+  private AVIMClient client;
+  private AVIMMessageStorage storage;
+
+  @Before
+  public void setup() {
+    AVOSCloud.initialize(RuntimeEnvironment.application, TestConfig.TEST_APP_ID, TestConfig.TEST_APP_KEY);
+    client = AVIMClient.getInstance(CLIENT_ID);
+    storage = AVIMMessageStorage.getInstance(CLIENT_ID);
+    storage.deleteClientData();
+  }
+
+  @After
+  public void tearDown() {
+    storage.deleteClientData();
+  }
+
+  @Test
+  public void testResultKeepsOrder() {
+    storage.cacheConversationQueryResult(QUERY_KEY, Arrays.asList(
+        new AVIMConversation(client, "c2"), new AVIMConversation(client, "c1"),
+        new AVIMConversation(client, "c3")));
+
+    List<AVIMConversation> result = storage.getCachedConversationQueryResult(QUERY_KEY, 60000);
+    Assert.assertEquals(3, result.size());
+    Assert.assertEquals("c2", result.get(0).getConversationId());
+    Assert.assertEquals("c1", result.get(1).getConversationId());
+    Assert.assertEquals("c3", result.get(2).getConversationId());
+
+    Assert.assertNull(storage.getCachedConversationQueryResult("otherKey", 60000));
+  }
+
+  @Test
+  public void testDeletedConversationInvalidatesResult() {
+    storage.cacheConversationQueryResult(QUERY_KEY, Arrays.asList(
+        new AVIMConversation(client, "c1"), new AVIMConversation(client, "c2")));
+    storage.deleteConversation("c1");
+    Assert.assertNull(storage.getCachedConversationQueryResult(QUERY_KEY, 60000));
+  }
+
+  @Test
+  public void testLocalChangeInvalidatesResult() {
+    storage.cacheConversationQueryResult(QUERY_KEY, Arrays.asList(
+        new AVIMConversation(client, "c1")));
+    storage.insertConversations(Arrays.asList(new AVIMConversation(client, "c4")));
+    Assert.assertNull(storage.getCachedConversationQueryResult(QUERY_KEY, 60000));
+  }
+
+  @Test
+  public void testEmptyResultIsCached() {
+    Assert.assertNull(storage.getCachedConversationQueryResult(QUERY_KEY, 60000));
+    storage.cacheConversationQueryResult(QUERY_KEY, new ArrayList<AVIMConversation>());
+
+    List<AVIMConversation> result = storage.getCachedConversationQueryResult(QUERY_KEY, 60000);
+    Assert.assertNotNull(result);
+    Assert.assertTrue(result.isEmpty());
+
+    storage.insertConversations(Arrays.asList(new AVIMConversation(client, "c1")));
+    Assert.assertNull(storage.getCachedConversationQueryResult(QUERY_KEY, 60000));
+  }
+}
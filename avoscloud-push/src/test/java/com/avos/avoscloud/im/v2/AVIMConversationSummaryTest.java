@@ -0,0 +1,146 @@
+package com.avos.avoscloud.im.v2;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.avos.avoscloud.AVOSCloud;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.TestConfig;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMConversationSummaryTest {
+  private static final String CLIENT_ID = "summaryClient";
+
+  private AVIMMessageStorage storage;
+
+  @Before
+  public void setup() {
+    AVOSCloud.initialize(RuntimeEnvironment.application, TestConfig.TEST_APP_ID, TestConfig.TEST_APP_KEY);
+    storage = AVIMMessageStorage.getInstance(CLIENT_ID);
+    storage.deleteClientData();
+  }
+
+  @After
+  public void tearDown() {
+    storage.deleteClientData();
+  }
+
+  @Test
+  public void testSummariesFollowMessagesAndUnreadCount() {
+    storage.insertConversations(
+        Arrays.asList(new AVIMConversation(AVIMClient.getInstance(CLIENT_ID), "c2")));
+    storage.insertMessage(createMessage("c1", "m1", 100), false);
+    storage.insertMessage(createMessage("c1", "m2", 200), false);
+    storage.insertMessage(createMessage("c2", "m3", 150), false);
+    storage.updateConversationUreadCount("c2", 5);
+
+    Map<String, AVIMMessageStorage.ConversationSummary> summaries =
+        storage.getConversationSummaries(Arrays.asList("c1", "c2", "c3"));
+    Assert.assertEquals(2, summaries.size());
+    Assert.assertEquals("m2", summaries.get("c1").lastMessage.getMessageId());
+    Assert.assertEquals(0, summaries.get("c1").unreadCount);
+    Assert.assertEquals("m3", summaries.get("c2").lastMessage.getMessageId());
+    Assert.assertEquals(5, summaries.get("c2").unreadCount);
+
+    storage.deleteMessages(Arrays.asList(createMessage("c1", "m2", 200)), "c1");
+    summaries = storage.getConversationSummaries(Arrays.asList("c1"));
+    Assert.assertEquals("m1", summaries.get("c1").lastMessage.getMessageId());
+
+    storage.deleteConversationData("c2");
+    summaries = storage.getConversationSummaries(Arrays.asList("c2"));
+    Assert.assertTrue(summaries.isEmpty());
+  }
+
+  @Test
+  public void testReadClearsUnreadCount() {
+    AVIMConversation conversation = new AVIMConversation(AVIMClient.getInstance(CLIENT_ID), "c1");
+    storage.insertConversations(Arrays.asList(conversation));
+    storage.insertMessage(createMessage("c1", "m1", 100), false);
+    conversation.increaseUnreadCount(3);
+    Assert.assertEquals(3, storage.getConversation("c1").getUnreadMessagesCount());
+
+    conversation.read();
+    Assert.assertEquals(0, conversation.getUnreadMessagesCount());
+    Assert.assertEquals(0, storage.getConversation("c1").getUnreadMessagesCount());
+    Assert.assertEquals(0,
+        storage.getConversationSummaries(Arrays.asList("c1")).get("c1").unreadCount);
+  }
+
+  @Test
+  public void testUpgradeFillsSummaries() {
+    String clientId = "summaryUpgradeClient";
+    RuntimeEnvironment.application.deleteDatabase(AVIMMessageStorage.DB_NAME_PREFIX + clientId);
+    SQLiteDatabase db = RuntimeEnvironment.application.openOrCreateDatabase(
+        AVIMMessageStorage.DB_NAME_PREFIX + clientId, 0, null);
+    db.execSQL(AVIMMessageStorage.DBHelper.MESSAGE_CREATE_SQL);
+    db.execSQL(AVIMMessageStorage.DBHelper.MESSAGE_UNIQUE_INDEX_SQL);
+    db.execSQL(AVIMMessageStorage.DBHelper.CONVERSATION_CREATE_SQL);
+    db.execSQL(AVIMMessageStorage.DBHelper.CONVERSATION_QUERY_CREATE_SQL);
+    db.execSQL(AVIMMessageStorage.DBHelper.CONVERSATION_QUERY_INDEX_SQL);
+    insertMessageRow(db, "c1", "m1", 100);
+    insertMessageRow(db, "c1", "m2", 200);
+    insertMessageRow(db, "c2", "m3", 150);
+    insertConversationRow(db, "c2", 4);
+    insertConversationRow(db, "c3", 7);
+    db.setVersion(8);
+    db.close();
+
+    AVIMMessageStorage upgraded = AVIMMessageStorage.getInstance(clientId);
+    try {
+      Map<String, AVIMMessageStorage.ConversationSummary> summaries =
+          upgraded.getConversationSummaries(Arrays.asList("c1", "c2", "c3"));
+      Assert.assertEquals(3, summaries.size());
+      Assert.assertEquals("m2", summaries.get("c1").lastMessage.getMessageId());
+      Assert.assertEquals(0, summaries.get("c1").unreadCount);
+      Assert.assertEquals("m3", summaries.get("c2").lastMessage.getMessageId());
+      Assert.assertEquals(4, summaries.get("c2").unreadCount);
+      Assert.assertNull(summaries.get("c3").lastMessage);
+      Assert.assertEquals(7, summaries.get("c3").unreadCount);
+    } finally {
+      upgraded.deleteClientData();
+    }
+  }
+
+  private static void insertMessageRow(SQLiteDatabase db, String conversationId,
+      String messageId, long timestamp) {
+    ContentValues values = new ContentValues();
+    values.put(AVIMMessageStorage.COLUMN_CONVERSATION_ID, conversationId);
+    values.put(AVIMMessageStorage.COLUMN_MESSAGE_ID, messageId);
+    values.put(AVIMMessageStorage.COLUMN_TIMESTAMP, timestamp);
+    values.put(AVIMMessageStorage.COLUMN_FROM_PEER_ID, "from");
+    values.put(AVIMMessageStorage.COLUMN_PAYLOAD, ("content " + messageId).getBytes());
+    values.put(AVIMMessageStorage.COLUMN_STATUS,
+        AVIMMessage.AVIMMessageStatus.AVIMMessageStatusNone.getStatusCode());
+    db.insert(AVIMMessageStorage.MESSAGE_TABLE, null, values);
+  }
+
+  private static void insertConversationRow(SQLiteDatabase db, String conversationId,
+      int unreadCount) {
+    ContentValues values = new ContentValues();
+    values.put(AVIMMessageStorage.COLUMN_CONVERSATION_ID, conversationId);
+    values.put(AVIMMessageStorage.COLUMN_EXPIREAT, System.currentTimeMillis() + 60 * 60 * 1000);
+    values.put(AVIMMessageStorage.COLUMN_UNREAD_COUNT, unreadCount);
+    db.insert(AVIMMessageStorage.CONVERSATION_TABLE, null, values);
+  }
+
+  private static AVIMMessage createMessage(String conversationId, String messageId,
+      long timestamp) {
+    AVIMMessage message = new AVIMMessage(conversationId, "from", timestamp, 0L, 0L);
+    message.setMessageId(messageId);
+    message.setContent("content " + messageId);
+    return message;
+  }
+}
@@ -0,0 +1,96 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.BuildConfig;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMConversationUpdateBufferTest {
+
+  private static class RecordingWriter implements AVIMConversationUpdateBuffer.Writer {
+    final List<List<AVIMConversationUpdateBuffer.Update>> batches =
+        new ArrayList<List<AVIMConversationUpdateBuffer.Update>>();
+
+    @Override
+    public synchronized void write(Collection<AVIMConversationUpdateBuffer.Update> updates) {
+      batches.add(new ArrayList<AVIMConversationUpdateBuffer.Update>(updates));
+    }
+  }
+
+  @Test
+  public void testUpdatesAreMerged() {
+    RecordingWriter writer = new RecordingWriter();
+    AVIMConversationUpdateBuffer buffer = new AVIMConversationUpdateBuffer(writer);
+    buffer.updateUnreadCount("c1", 1);
+    buffer.updateUnreadCount("c1", 2);
+    buffer.updateLastMessageAt("c1", 100L);
+    buffer.updateTimes("c2", 10L, 20L);
+    Assert.assertEquals(2, buffer.getPendingCount());
+
+    buffer.flush();
+    Assert.assertEquals(0, buffer.getPendingCount());
+    Assert.assertEquals(1, writer.batches.size());
+    List<AVIMConversationUpdateBuffer.Update> batch = writer.batches.get(0);
+    Assert.assertEquals(2, batch.size());
+
+    AVIMConversationUpdateBuffer.Update first = batch.get(0);
+    Assert.assertEquals("c1", first.conversationId);
+    Assert.assertEquals(Long.valueOf(2), first.unreadCount);
+    Assert.assertEquals(Long.valueOf(100L), first.lastMessageAt);
+    Assert.assertNull(first.readAt);
+
+    AVIMConversationUpdateBuffer.Update second = batch.get(1);
+    Assert.assertEquals(Long.valueOf(10L), second.readAt);
+    Assert.assertEquals(Long.valueOf(20L), second.deliveredAt);
+    Assert.assertNull(second.unreadCount);
+
+    // 没有待写入的更新时不会调用 writer
+    buffer.flush();
+    Assert.assertEquals(1, writer.batches.size());
+  }
+
+  @Test
+  public void testFlushAfterWindow() throws Exception {
+    RecordingWriter writer = new RecordingWriter();
+    AVIMConversationUpdateBuffer buffer = new AVIMConversationUpdateBuffer(writer);
+    buffer.updateUnreadCount("c1", 3);
+    Assert.assertTrue(writer.batches.isEmpty());
+    Thread.sleep(AVIMConversationUpdateBuffer.FLUSH_WINDOW * 3);
+    synchronized (writer) {
+      Assert.assertEquals(1, writer.batches.size());
+    }
+    Assert.assertEquals(0, buffer.getPendingCount());
+  }
+
+  @Test
+  public void testFlushWhenFull() {
+    RecordingWriter writer = new RecordingWriter();
+    AVIMConversationUpdateBuffer buffer = new AVIMConversationUpdateBuffer(writer);
+    for (int i = 0; i < AVIMConversationUpdateBuffer.MAX_PENDING; i++) {
+      buffer.updateUnreadCount("c" + i, i);
+    }
+    Assert.assertEquals(1, writer.batches.size());
+    Assert.assertEquals(AVIMConversationUpdateBuffer.MAX_PENDING, writer.batches.get(0).size());
+  }
+
+  @Test
+  public void testDiscard() {
+    RecordingWriter writer = new RecordingWriter();
+    AVIMConversationUpdateBuffer buffer = new AVIMConversationUpdateBuffer(writer);
+    buffer.updateUnreadCount("c1", 1);
+    buffer.updateUnreadCount("c2", 1);
+    buffer.discard("c1");
+    buffer.flush();
+    Assert.assertEquals(1, writer.batches.get(0).size());
+    Assert.assertEquals("c2", writer.batches.get(0).get(0).conversationId);
+  }
+}
@@ -0,0 +1,127 @@
+package com.avos.avoscloud.im.v2;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import com.avos.avoscloud.AVGeoPoint;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.im.v2.messages.AVIMLocationMessage;
+import com.avos.avoscloud.im.v2.messages.AVIMTextMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMMessageFieldCodecTest {
+
+  @AVIMMessageType(type = 123)
+  public static class CounterMessage extends AVIMTypedMessage {
+    @AVIMMessageField(name = "count")
+    long count;
+    @AVIMMessageField(name = "title")
+    String title;
+    @AVIMMessageField(name = "tags")
+    List<String> tags;
+
+    public long getCount() {
+      return count;
+    }
+
+    public void setCount(long count) {
+      this.count = count;
+    }
+
+    public String getTitle() {
+      return title;
+    }
+
+    public void setTitle(String title) {
+      this.title = title;
+    }
+
+    public List<String> getTags() {
+      return tags;
+    }
+
+    public void setTags(List<String> tags) {
+      this.tags = tags;
+    }
+  }
+
+  @Test
+  public void testCodecIsCached() {
+    AVIMMessageFieldCodec codec = AVIMTypedMessage.getFieldCodec(CounterMessage.class);
+    Assert.assertNotNull(codec);
+    Assert.assertSame(codec, AVIMTypedMessage.getFieldCodec(CounterMessage.class));
+  }
+
+  @Test
+  public void testTextMessageRoundTrip() {
+    AVIMTextMessage message = new AVIMTextMessage();
+    message.setText("hello \"world\"");
+    Map<String, Object> attrs = new HashMap<String, Object>();
+    attrs.put("key", "value");
+    message.setAttrs(attrs);
+
+    JSONObject json = JSON.parseObject(message.getContent());
+    Assert.assertEquals(-1, json.getIntValue("_lctype"));
+    Assert.assertEquals("hello \"world\"", json.getString("_lctext"));
+    Assert.assertEquals("value", json.getJSONObject("_lcattrs").getString("key"));
+
+    AVIMTextMessage decoded = new AVIMTextMessage();
+    decoded.setContent(message.getContent());
+    Assert.assertEquals("hello \"world\"", decoded.getText());
+    Assert.assertEquals("value", decoded.getAttrs().get("key"));
+  }
+
+  @Test
+  public void testNullFieldsAreOmitted() {
+    AVIMTextMessage message = new AVIMTextMessage();
+    Assert.assertEquals("{\"_lctype\":-1}", message.getContent());
+  }
+
+  @Test
+  public void testDecodeConvertsFieldTypes() {
+    CounterMessage message = new CounterMessage();
+    message.setContent("{\"_lctype\":123,\"count\":42,\"title\":\"t\",\"tags\":[\"a\",\"b\"],\"unknown\":{\"x\":1}}");
+    Assert.assertEquals(42L, message.getCount());
+    Assert.assertEquals("t", message.getTitle());
+    Assert.assertEquals(2, message.getTags().size());
+    Assert.assertEquals("b", message.getTags().get(1));
+
+    JSONObject json = JSON.parseObject(message.getContent());
+    Assert.assertEquals(123, json.getIntValue("_lctype"));
+    Assert.assertEquals(42L, json.getLongValue("count"));
+    Assert.assertFalse(json.containsKey("unknown"));
+  }
+
+  @Test
+  public void testMissingFieldsAreReset() {
+    CounterMessage message = new CounterMessage();
+    message.setCount(7);
+    message.setTitle("old");
+    message.setContent("{\"_lctype\":123}");
+    Assert.assertNull(message.getTitle());
+    Assert.assertEquals(7L, message.getCount());
+  }
+
+  @Test
+  public void testNestedObjectDecoded() {
+    AVIMLocationMessage message = new AVIMLocationMessage();
+    message.setLocation(new AVGeoPoint(30.5, 120.25));
+    message.setText("here");
+
+    AVIMLocationMessage decoded = new AVIMLocationMessage();
+    decoded.setContent(message.getContent());
+    Assert.assertEquals(30.5, decoded.getLocation().getLatitude(), 0.0001);
+    Assert.assertEquals(120.25, decoded.getLocation().getLongitude(), 0.0001);
+    Assert.assertEquals("here", decoded.getText());
+  }
+}
@@ -0,0 +1,121 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.AVException;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.im.v2.callback.AVIMMessagesPrefetchCallback;
+import com.avos.avoscloud.im.v2.callback.AVIMMessagesQueryCallback;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMMessagePrefetcherTest {
+
+  private static class RecordingFetcher implements AVIMMessagePrefetcher.Fetcher {
+    final Map<String, AVIMMessagesQueryCallback> running =
+        new LinkedHashMap<String, AVIMMessagesQueryCallback>();
+    final List<String> fetched = new ArrayList<String>();
+
+    @Override
+    public void fetch(String conversationId, int limit, AVIMMessagesQueryCallback callback) {
+      fetched.add(conversationId);
+      running.put(conversationId, callback);
+    }
+
+    void reply(String conversationId, List<AVIMMessage> messages, AVException e) {
+      running.remove(conversationId).done(messages, AVIMException.wrapperAVException(e));
+    }
+  }
+
+  private static class RecordingCallback extends AVIMMessagesPrefetchCallback {
+    final List<String> prefetched = new ArrayList<String>();
+    Map<String, List<AVIMMessage>> result;
+    AVIMException error;
+    int doneCount = 0;
+
+    @Override
+    protected boolean mustRunOnUIThread() {
+      return false;
+    }
+
+    @Override
+    public void onConversationPrefetched(String conversationId, List<AVIMMessage> messages,
+        AVIMException e) {
+      prefetched.add(conversationId);
+    }
+
+    @Override
+    public void done(Map<String, List<AVIMMessage>> messages, AVIMException e) {
+      result = messages;
+      error = e;
+      doneCount++;
+    }
+  }
+
+  private boolean cacheEnabled;
+
+  @Before
+  public void setup() {
+    cacheEnabled = AVIMClient.messageQueryCacheEnabled;
+    AVIMClient.messageQueryCacheEnabled = false;
+  }
+
+  @After
+  public void tearDown() {
+    AVIMClient.messageQueryCacheEnabled = cacheEnabled;
+  }
+
+  @Test
+  public void testConcurrencyIsCapped() {
+    RecordingFetcher fetcher = new RecordingFetcher();
+    RecordingCallback callback = new RecordingCallback();
+    new AVIMMessagePrefetcher(null, Arrays.asList("c1", "c2", "c3", "c2"), 20, 2, callback,
+        fetcher).start();
+    Assert.assertEquals(Arrays.asList("c1", "c2"), fetcher.fetched);
+
+    fetcher.reply("c2", Arrays.asList(createMessage("c2", "m2", 2), createMessage("c2", "m1", 1)),
+        null);
+    Assert.assertEquals(Arrays.asList("c1", "c2", "c3"), fetcher.fetched);
+    // 单个对话返回后立即回调，不等其他对话
+    Assert.assertEquals(Arrays.asList("c2"), callback.prefetched);
+    Assert.assertEquals(0, callback.doneCount);
+
+    fetcher.reply("c3", null, new AVException(AVException.TIMEOUT, "timeout"));
+    fetcher.reply("c1", new ArrayList<AVIMMessage>(), null);
+    Assert.assertEquals(1, callback.doneCount);
+    Assert.assertEquals(Arrays.asList("c2", "c3", "c1"), callback.prefetched);
+    Assert.assertEquals(2, callback.result.size());
+    Assert.assertEquals("m1", callback.result.get("c2").get(0).getMessageId());
+    Assert.assertFalse(callback.result.containsKey("c3"));
+    Assert.assertNotNull(callback.error);
+  }
+
+  @Test
+  public void testEmptyConversationList() {
+    RecordingFetcher fetcher = new RecordingFetcher();
+    RecordingCallback callback = new RecordingCallback();
+    new AVIMMessagePrefetcher(null, new ArrayList<String>(), 20, 2, callback, fetcher).start();
+    Assert.assertTrue(fetcher.fetched.isEmpty());
+    Assert.assertEquals(1, callback.doneCount);
+    Assert.assertNull(callback.error);
+  }
+
+  private static AVIMMessage createMessage(String conversationId, String messageId,
+      long timestamp) {
+    AVIMMessage message = new AVIMMessage(conversationId, "from", timestamp, 0L, 0L);
+    message.setMessageId(messageId);
+    return message;
+  }
+}
@@ -0,0 +1,117 @@
+package com.avos.avoscloud.im.v2;
+
+import com.avos.avoscloud.AVException;
+import com.avos.avoscloud.BuildConfig;
+import com.avos.avoscloud.SaveCallback;
+import com.avos.avoscloud.im.v2.messages.AVIMFileMessage;
+import com.avos.avoscloud.im.v2.messages.AVIMFileMessageAccessor;
+import com.avos.avoscloud.im.v2.messages.AVIMLocationMessage;
+import com.avos.avoscloud.im.v2.messages.AVIMTextMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class AVIMTypedMessageLazyDecodingTest {
+
+  @Test
+  public void testGetMessageType() {
+    Assert.assertEquals(-1, AVIMMessageManager.getMessageType("{\"_lctype\":-1,\"_lctext\":\"hi\"}"));
+    Assert.assertEquals(-5, AVIMMessageManager.getMessageType(" { \"_lctext\" : \"hi\" , \"_lctype\" : -5 } "));
+    Assert.assertEquals(-2, AVIMMessageManager.getMessageType("{\"_lctype\":\"-2\"}"));
+    Assert.assertEquals(2, AVIMMessageManager.getMessageType(
+        "{\"_lcattrs\":{\"_lctype\":3,\"list\":[{\"_lctype\":4}]},\"_lctype\":2}"));
+  }
+
+  @Test
+  public void testGetMessageTypeIgnoresNonTypeContent() {
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("hello"));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType(""));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("{\"_lctext\":\"\\\"_lctype\\\":5\"}"));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("{\"_lcattrs\":{\"_lctype\":3}}"));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("{\"_lctypes\":3}"));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("{\"_lctype\":\"text\"}"));
+    Assert.assertEquals(0, AVIMMessageManager.getMessageType("{\"_lctext\":\"unterminated"));
+  }
+
+  @Test
+  public void testTextMessageDecodedOnAccess() {
+    String content = "{\"_lctype\":-1,\"_lctext\":\"hello\",\"_lcattrs\":{\"key\":\"value\"}}";
+    AVIMMessage message = parse(content);
+    Assert.assertTrue(message instanceof AVIMTextMessage);
+    AVIMTextMessage textMessage = (AVIMTextMessage) message;
+    Assert.assertFalse(isContentDecoded(textMessage));
+    Assert.assertEquals(content, textMessage.getContent());
+    Assert.assertEquals("msgId", textMessage.getMessageId());
+
+    Assert.assertEquals("hello", textMessage.getText());
+    Assert.assertTrue(isContentDecoded(textMessage));
+    Assert.assertEquals("value", textMessage.getAttrs().get("key"));
+  }
+
+  @Test
+  public void testSetterBeforeDecodeKeepsOtherFields() {
+    AVIMTextMessage textMessage = (AVIMTextMessage) parse(
+        "{\"_lctype\":-1,\"_lctext\":\"hello\",\"_lcattrs\":{\"key\":\"value\"}}");
+    textMessage.setText("changed");
+    Assert.assertEquals("changed", textMessage.getText());
+    Assert.assertEquals("value", textMessage.getAttrs().get("key"));
+    Assert.assertTrue(textMessage.getContent().contains("changed"));
+  }
+
+  @Test
+  public void testFailedDecodeIsNotRetried() {
+    AVIMTextMessage textMessage = (AVIMTextMessage) parse(
+        "{\"_lctype\":-1,\"_lctext\":\"hello\",\"_lcattrs\":{");
+    Assert.assertEquals("hello", textMessage.getText());
+    Assert.assertTrue(isContentDecoded(textMessage));
+    textMessage.setText("changed");
+    Assert.assertEquals("changed", textMessage.getText());
+    Assert.assertTrue(textMessage.getContent().contains("changed"));
+  }
+
+  @Test
+  public void testLocationMessageDecodedOnAccess() {
+    AVIMLocationMessage locationMessage = (AVIMLocationMessage) parse(
+        "{\"_lctype\":-5,\"_lcloc\":{\"latitude\":30.5,\"longitude\":120.25}}");
+    Assert.assertFalse(isContentDecoded(locationMessage));
+    Assert.assertEquals(30.5, locationMessage.getLocation().getLatitude(), 0.0001);
+    Assert.assertEquals(120.25, locationMessage.getLocation().getLongitude(), 0.0001);
+  }
+
+  @Test
+  public void testResendLazilyDecodedFileMessage() {
+    AVIMFileMessage fileMessage = (AVIMFileMessage) parse(
+        "{\"_lctype\":-6,\"_lcfile\":{\"objId\":\"fileId\",\"url\":\"http://a.b/c.txt\","
+            + "\"metaData\":{\"size\":12}}}");
+    Assert.assertFalse(isContentDecoded(fileMessage));
+    final AVException[] result = new AVException[1];
+    final boolean[] done = new boolean[1];
+    AVIMFileMessageAccessor.upload(fileMessage, new SaveCallback() {
+      @Override
+      public void done(AVException e) {
+        done[0] = true;
+        result[0] = e;
+      }
+    });
+    Assert.assertTrue(done[0]);
+    Assert.assertNull(result[0]);
+    Assert.assertEquals("fileId", fileMessage.getFile().get("objId"));
+    Assert.assertEquals(12L, fileMessage.getSize());
+  }
+
+  private static boolean isContentDecoded(AVIMTypedMessage message) {
+    return message.isContentDecoded();
+  }
+
+  private static AVIMMessage parse(String content) {
+    AVIMMessage message = new AVIMMessage("conversationId", "from", 1000L, 0L, 0L);
+    message.setMessageId("msgId");
+    message.setContent(content);
+    return AVIMMessageManager.parseTypedMessage(message);
+  }
+}
@@ -0,0 +1,115 @@
+package com.avos.avospush.session;
+
+import com.avos.avoscloud.BuildConfig;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class MessageQueueLogTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  public static class Item {
+    private String id;
+
+    public Item() {
+    }
+
+    Item(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public void setId(String id) {
+      this.id = id;
+    }
+  }
+
+  private static String add(long seq, String id) {
+    return MessageQueueLog.addRecord(seq, "{\"id\":\"" + id + "\"}");
+  }
+
+  @Test
+  public void testReplay() {
+    File file = new File(folder.getRoot(), "queue/test.log");
+    MessageQueueLog log = new MessageQueueLog(file);
+    log.append(Arrays.asList(add(1, "a"), add(2, "b"), MessageQueueLog.removeRecord(1)));
+    log.append(Arrays.asList(add(3, "c")));
+
+    LinkedHashMap<Long, Item> entries = new MessageQueueLog(file).replay(Item.class);
+    Assert.assertEquals(Arrays.asList(2L, 3L), new ArrayList<Long>(entries.keySet()));
+    Assert.assertEquals("b", entries.get(2L).getId());
+    Assert.assertEquals("c", entries.get(3L).getId());
+
+    log.append(Arrays.asList(MessageQueueLog.clearRecord(), add(4, "d")));
+    MessageQueueLog replayed = new MessageQueueLog(file);
+    entries = replayed.replay(Item.class);
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals("d", entries.get(4L).getId());
+    Assert.assertEquals(6, replayed.getRecordCount());
+    Assert.assertFalse(replayed.isCorrupted());
+  }
+
+  @Test
+  public void testCompaction() {
+    File file = new File(folder.getRoot(), "compact.log");
+    MessageQueueLog log = new MessageQueueLog(file);
+    List<String> records = new ArrayList<String>();
+    for (int i = 1; i <= MessageQueueLog.COMPACT_THRESHOLD; i++) {
+      records.add(add(i, "item" + i));
+      records.add(MessageQueueLog.removeRecord(i));
+    }
+    records.add(add(1000, "last"));
+    log.append(records);
+    Assert.assertTrue(log.needsCompaction(1));
+
+    log.rewrite(Arrays.asList(add(1000, "last")));
+    Assert.assertFalse(log.needsCompaction(1));
+    Assert.assertEquals(1, log.getRecordCount());
+    Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+    LinkedHashMap<Long, Item> entries = new MessageQueueLog(file).replay(Item.class);
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals("last", entries.get(1000L).getId());
+  }
+
+  @Test
+  public void testTornRecord() throws Exception {
+    File file = new File(folder.getRoot(), "torn.log");
+    MessageQueueLog log = new MessageQueueLog(file);
+    log.append(Arrays.asList(add(1, "a"), add(2, "b")));
+    FileOutputStream outputStream = new FileOutputStream(file, true);
+    outputStream.write("A 3 {\"id\":\"c".getBytes("UTF-8"));
+    outputStream.close();
+
+    MessageQueueLog replayed = new MessageQueueLog(file);
+    LinkedHashMap<Long, Item> entries = replayed.replay(Item.class);
+    Assert.assertTrue(replayed.isCorrupted());
+    Assert.assertEquals(Arrays.asList(1L, 2L), new ArrayList<Long>(entries.keySet()));
+
+    replayed.rewrite(Arrays.asList(add(1, "a"), add(2, "b")));
+    replayed.append(Arrays.asList(add(4, "d")));
+    MessageQueueLog repaired = new MessageQueueLog(file);
+    entries = repaired.replay(Item.class);
+    Assert.assertFalse(repaired.isCorrupted());
+    Assert.assertEquals(Arrays.asList(1L, 2L, 4L), new ArrayList<Long>(entries.keySet()));
+  }
+}
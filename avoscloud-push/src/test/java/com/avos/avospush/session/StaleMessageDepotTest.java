@@ -0,0 +1,73 @@
+package com.avos.avospush.session;
+
+import com.avos.avoscloud.BuildConfig;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, manifest = Config.NONE, sdk = 21)
+public class StaleMessageDepotTest {
+
+  @Test
+  public void testDuplicateIsRejected() {
+    LinkedList<String> stored = new LinkedList<String>();
+    StaleMessageDepot depot = new StaleMessageDepot(stored, 3);
+    Assert.assertTrue(depot.putStableMessage("m1"));
+    Assert.assertFalse(depot.putStableMessage("m1"));
+    Assert.assertTrue(depot.putStableMessage(""));
+    Assert.assertTrue(depot.putStableMessage(""));
+    Assert.assertEquals(Arrays.asList("m1"), stored);
+  }
+
+  @Test
+  public void testOldestIdIsEvicted() {
+    LinkedList<String> stored = new LinkedList<String>();
+    StaleMessageDepot depot = new StaleMessageDepot(stored, 3);
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertTrue(depot.putStableMessage("m" + i));
+    }
+    Assert.assertEquals(3, depot.size());
+    Assert.assertEquals(Arrays.asList("m3", "m4", "m5"), stored);
+    Assert.assertFalse(depot.putStableMessage("m3"));
+    Assert.assertTrue(depot.putStableMessage("m2"));
+    Assert.assertEquals(Arrays.asList("m4", "m5", "m2"), stored);
+    Assert.assertTrue(depot.putStableMessage("m3"));
+    Assert.assertFalse(depot.putStableMessage("m2"));
+  }
+
+  @Test
+  public void testReloadFromStoredIds() {
+    LinkedList<String> stored = new LinkedList<String>();
+    StaleMessageDepot depot = new StaleMessageDepot(stored, 4);
+    for (int i = 1; i <= 4; i++) {
+      depot.putStableMessage("m" + i);
+    }
+
+    // 容量变小之后只保留最近的 id
+    StaleMessageDepot reloaded = new StaleMessageDepot(stored, 2);
+    Assert.assertEquals(2, reloaded.size());
+    Assert.assertEquals(Arrays.asList("m3", "m4"), new ArrayList<String>(stored));
+    Assert.assertFalse(reloaded.putStableMessage("m4"));
+    Assert.assertTrue(reloaded.putStableMessage("m1"));
+    Assert.assertTrue(reloaded.putStableMessage("m5"));
+    Assert.assertEquals(Arrays.asList("m1", "m5"), new ArrayList<String>(stored));
+    Assert.assertTrue(reloaded.putStableMessage("m4"));
+  }
+
+  @Test
+  public void testReloadDropsDuplicateStoredIds() {
+    LinkedList<String> stored = new LinkedList<String>(Arrays.asList("m1", "m2", "m1", "m3"));
+    StaleMessageDepot depot = new StaleMessageDepot(stored, 10);
+    Assert.assertEquals(3, depot.size());
+    Assert.assertEquals(Arrays.asList("m1", "m2", "m3"), new ArrayList<String>(stored));
+    Assert.assertFalse(depot.putStableMessage("m2"));
+  }
+}
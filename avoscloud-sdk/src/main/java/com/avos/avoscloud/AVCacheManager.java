@@ -1,6 +1,7 @@
 package com.avos.avoscloud;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * User: summer Date: 13-4-11 Time: PM2:38
@@ -8,14 +9,29 @@ import java.io.File;
 public class AVCacheManager {
   private static AVCacheManager instance = null;
 
-  private static File keyValueCacheDir() {
-    File dir = new File(AVPersistenceUtils.getCacheDir(), "PaasKeyValueCache");
-    dir.mkdirs();
-    return dir;
-  }
+  private static final int DEFAULT_MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+  private static final AVMemoryLruCache memoryCache = new AVMemoryLruCache(DEFAULT_MEMORY_CACHE_SIZE);
+
+  private static final long DEFAULT_DISK_CACHE_SIZE = 10 * 1024 * 1024;
+  private static long diskCacheMaxSize = DEFAULT_DISK_CACHE_SIZE;
+  private static AVDiskLruCache diskCache = null;
 
-  private static File getCacheFile(String fileName) {
-    return new File(keyValueCacheDir(), fileName);
+  /**
+   * 懒加载磁盘缓存，第一次打开时会把旧版本 PaasKeyValueCache 目录下的缓存迁移过来
+   *
+   * @return 打开失败时返回 null
+   */
+  private static synchronized AVDiskLruCache diskCache() {
+    if (diskCache == null) {
+      File cacheDir = AVPersistenceUtils.getCacheDir();
+      try {
+        diskCache = AVDiskLruCache.open(new File(cacheDir, "PaasDiskLruCache"),
+            new File(cacheDir, "PaasKeyValueCache"), diskCacheMaxSize);
+      } catch (IOException e) {
+        LogUtil.log.e("failed to open disk cache", e);
+      }
+    }
+    return diskCache;
   }
 
   private AVCacheManager() {
@@ -35,13 +51,76 @@ public class AVCacheManager {
     return AVUtils.md5(key);
   }
 
+  private static String memoryCacheKey(String key, String ts) {
+    if (!AVUtils.isBlankString(ts)) {
+      return key + ts;
+    }
+    return key;
+  }
+
+  /**
+   * 设置内存缓存的最大字节数，传入 0 则关闭内存缓存
+   *
+   * @param maxSizeInBytes
+   */
+  public static void setMemoryCacheMaxSize(int maxSizeInBytes) {
+    memoryCache.setMaxSize(Math.max(0, maxSizeInBytes));
+  }
+
+  public static int getMemoryCacheMaxSize() {
+    return memoryCache.maxSize();
+  }
+
+  public static int getMemoryCacheSize() {
+    return memoryCache.size();
+  }
+
+  public static long getMemoryCacheHitCount() {
+    return memoryCache.hitCount();
+  }
+
+  public static long getMemoryCacheMissCount() {
+    return memoryCache.missCount();
+  }
+
+  public static long getMemoryCacheEvictionCount() {
+    return memoryCache.evictionCount();
+  }
+
+  /**
+   * 设置磁盘缓存的最大字节数，超出后按照 LRU 淘汰
+   *
+   * @param maxSizeInBytes
+   */
+  public static synchronized void setDiskCacheMaxSize(long maxSizeInBytes) {
+    if (maxSizeInBytes <= 0) {
+      throw new IllegalArgumentException("maxSizeInBytes should be positive");
+    }
+    diskCacheMaxSize = maxSizeInBytes;
+    if (diskCache != null) {
+      diskCache.setMaxSize(maxSizeInBytes);
+    }
+  }
+
+  public static synchronized long getDiskCacheMaxSize() {
+    return diskCacheMaxSize;
+  }
+
+  public static long getDiskCacheSize() {
+    AVDiskLruCache cache = diskCache();
+    return cache == null ? 0 : cache.size();
+  }
+
   public boolean hasCache(String key) {
     return hasCache(key, null);
   }
 
   public boolean hasCache(String key, String ts) {
-    File file = getCacheFile(key, ts);
-    return file.exists();
+    if (memoryCache.contains(memoryCacheKey(key, ts))) {
+      return true;
+    }
+    AVDiskLruCache cache = diskCache();
+    return cache != null && cache.contains(fileCacheKey(key, ts));
   }
 
   /**
@@ -53,62 +132,65 @@ public class AVCacheManager {
    * @return
    */
   public boolean hasValidCache(String key, String ts, long maxAgeInMilliseconds) {
-    File file = getCacheFile(key, ts);
-    return file.exists() && (maxAgeInMilliseconds <= 0 || (System.currentTimeMillis() - file.lastModified() < maxAgeInMilliseconds));
-  }
-
-  private File getCacheFile(String key, String ts) {
-    File file = getCacheFile(fileCacheKey(key, ts));
-    return file;
+    AVMemoryLruCache.Entry entry = memoryCache.peek(memoryCacheKey(key, ts));
+    if (entry != null && (maxAgeInMilliseconds <= 0
+        || System.currentTimeMillis() - entry.savedAt < maxAgeInMilliseconds)) {
+      return true;
+    }
+    AVDiskLruCache cache = diskCache();
+    if (cache == null) {
+      return false;
+    }
+    long savedAt = cache.getSavedAt(fileCacheKey(key, ts));
+    return savedAt >= 0 && (maxAgeInMilliseconds <= 0 || (System.currentTimeMillis() - savedAt < maxAgeInMilliseconds));
   }
 
   public void get(String key, long maxAgeInMilliseconds, String ts,
                   GenericObjectCallback getCallback) {
-    File file = getCacheFile(key, ts);
-    if (!file.exists()
-        || ((maxAgeInMilliseconds > 0) && (System.currentTimeMillis() - file.lastModified() > maxAgeInMilliseconds))) {
+    String memoryKey = memoryCacheKey(key, ts);
+    String cachedContent = memoryCache.get(memoryKey, maxAgeInMilliseconds);
+    if (cachedContent != null) {
+      getCallback.onSuccess(cachedContent, null);
+      return;
+    }
+    AVDiskLruCache cache = diskCache();
+    AVDiskLruCache.Snapshot snapshot = cache == null ? null : cache.get(fileCacheKey(key, ts));
+    if (snapshot == null
+        || ((maxAgeInMilliseconds > 0) && (System.currentTimeMillis() - snapshot.savedAt > maxAgeInMilliseconds))) {
       getCallback
           .onFailure(AVErrorUtils.createException(AVException.CACHE_MISS,
               AVException.cacheMissingErrorString), null);
     } else {
-      String content = AVPersistenceUtils.readContentFromFile(file);
-      getCallback.onSuccess(content, null);
+      memoryCache.put(memoryKey, snapshot.content, snapshot.savedAt);
+      getCallback.onSuccess(snapshot.content, null);
     }
   }
 
   public void delete(String key) {
-    File file = getCacheFile(AVUtils.md5(key));
-    String absolutePath = file.getAbsolutePath();
-    if (file.exists()) {
-      if (!file.delete()) {
-        // If we can't delete file,write empty content to the file.
-        AVPersistenceUtils.saveContentToFile("{}", file);
-      } else {
-        AVPersistenceUtils.removeLock(absolutePath);
-      }
-    }
+    remove(key, null);
   }
 
   public boolean save(String key, String content, String lastModifyTs) {
-    File cacheFile = getCacheFile(key, lastModifyTs);
-    return AVPersistenceUtils.saveContentToFile(content, cacheFile);
+    AVDiskLruCache cache = diskCache();
+    boolean saved = cache != null && cache.put(fileCacheKey(key, lastModifyTs), content);
+    if (saved) {
+      memoryCache.put(memoryCacheKey(key, lastModifyTs), content, System.currentTimeMillis());
+    } else {
+      memoryCache.remove(memoryCacheKey(key, lastModifyTs));
+    }
+    return saved;
   }
 
   public void remove(String key, String ts) {
-    File cacheFile = getCacheFile(key, ts);
-    String absolutePath = cacheFile.getAbsolutePath();
-    if (cacheFile.exists()) {
-      if (!cacheFile.delete()) {
-        // If we can't delete file,write empty content to the file.
-        AVPersistenceUtils.saveContentToFile("{}", cacheFile);
-      } else {
-        AVPersistenceUtils.removeLock(absolutePath);
-      }
+    memoryCache.remove(memoryCacheKey(key, ts));
+    AVDiskLruCache cache = diskCache();
+    if (cache != null) {
+      cache.remove(fileCacheKey(key, ts));
     }
   }
 
   public boolean haveCache(String key) {
-    return getCacheFile(AVUtils.md5(key)).exists();
+    return hasCache(key, null);
   }
 
   public static boolean clearAllCache() {
@@ -120,24 +202,19 @@ public class AVCacheManager {
   }
 
   public static boolean clearCacheMoreThanDays(int numberOfDays) {
-    File keyValueCacheDir = keyValueCacheDir();
-    if (keyValueCacheDir != null && keyValueCacheDir.listFiles() != null) {
-      for (File file : keyValueCacheDir.listFiles()) {
-        if (System.currentTimeMillis() - file.lastModified() > numberOfDays * 24L * 3600L * 1000L) {
-          if (file.exists()) {
-            String path = file.getAbsolutePath();
-            if (!file.delete()) {
-              return false;
-            } else {
-              AVPersistenceUtils.removeLock(path);
-            }
-          }
-        }
-      }
+    long expireTimestamp = System.currentTimeMillis() - numberOfDays * 24L * 3600L * 1000L;
+    if (numberOfDays < 0) {
+      memoryCache.clear();
+      expireTimestamp = Long.MAX_VALUE;
     } else {
+      memoryCache.removeOlderThan(expireTimestamp);
+    }
+    AVDiskLruCache cache = diskCache();
+    if (cache == null) {
       LogUtil.avlog.d("Cache Directory Failure");
+      return false;
     }
-    return true;
+    return cache.removeOlderThan(expireTimestamp);
   }
 
   public static boolean clearFileCacheMoreThanDays(int numberOfDays) {
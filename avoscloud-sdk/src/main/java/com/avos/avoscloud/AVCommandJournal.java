@@ -0,0 +1,551 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * saveEventually/deleteEventually 请求的追加写日志
+ *
+ * 所有请求都以一行 JSON 的形式追加到当前的 segment 文件中，每条请求有一个递增的序列号。请求发送成功后追加一条
+ * ack 记录。打开时按序列号回放所有 segment，没有 ack 的请求即为待发送的请求。
+ *
+ * <pre>
+ *   {"op":"add","seq":1,"method":"post","relativePath":"batch/save","paramString":"...","_internalId":"..."}
+ *   {"op":"ack","seq":1}
+ * </pre>
+ *
+ * segment 超过 MAX_SEGMENT_SIZE 后会新建一个。最旧的 segment 中的请求都 ack 之后会被删除；如果只剩少量没有 ack 的请求，
+ * 会把它们重新追加到当前 segment 之后删除旧文件。ack 记录只会出现在对应的 add 记录所在或者更新的 segment 中，
+ * 所以总是从最旧的 segment 开始删除就不会让已经 ack 的请求重新出现。
+ *
+ * 追加写会马上写入文件，fsync 则合并在 SYNC_DELAY_MILLIS 之内统一执行一次。
+ *
+ * 回放前合并同一个对象上的请求时，会用同样的 seq 重新写一条 add 记录，并在 merged 字段中带上被合并掉的请求，
+ * 这样替换内容和 ack 被合并的请求在一行中原子地完成：
+ *
+ * <pre>
+ *   {"op":"add","seq":1,"method":"post","relativePath":"batch/save","paramString":"...","merged":[3,5]}
+ * </pre>
+ */
+class AVCommandJournal {
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final long MAX_SEGMENT_SIZE = 128 * 1024;
+  private static final long SYNC_DELAY_MILLIS = 200;
+  private static final String OP_ADD = "add";
+  private static final String OP_ACK = "ack";
+
+  private static AVCommandJournal instance;
+  private static ScheduledExecutorService syncExecutor;
+
+  static class Command {
+    final long seq;
+    final String method;
+    final String relativePath;
+    final String paramString;
+    final String objectId;
+    final String internalId;
+
+    Command(long seq, String method, String relativePath, String paramString, String objectId,
+            String internalId) {
+      this.seq = seq;
+      this.method = method;
+      this.relativePath = relativePath;
+      this.paramString = paramString;
+      this.objectId = objectId;
+      this.internalId = internalId;
+    }
+
+    /**
+     * 与旧版本一个请求一个文件时的文件名规则相同，key 相同的请求后一个会覆盖前一个
+     */
+    String dedupKey() {
+      return AVUtils.getArchiveRequestFileName(objectId, internalId, method, relativePath,
+          paramString);
+    }
+  }
+
+  private static class Segment {
+    final long id;
+    final File file;
+    int addCount;
+    int liveCount;
+
+    Segment(long id, File file) {
+      this.id = id;
+      this.file = file;
+    }
+  }
+
+  private final File directory;
+  private final TreeMap<Long, Command> pendingCommands = new TreeMap<Long, Command>();
+  private final Map<Long, Segment> commandSegments = new HashMap<Long, Segment>();
+  private final Map<String, Long> dedupIndex = new HashMap<String, Long>();
+  private final Set<Long> inflightCommands = new HashSet<Long>();
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+  private Segment activeSegment;
+  private FileOutputStream activeStream;
+  private long activeSize;
+  private long nextSeq = 1;
+  private boolean syncScheduled = false;
+
+  AVCommandJournal(File directory) {
+    this.directory = directory;
+  }
+
+  static synchronized AVCommandJournal sharedInstance() {
+    if (instance == null) {
+      File cacheDir = AVPersistenceUtils.getCacheDir();
+      instance = new AVCommandJournal(new File(cacheDir, "CommandJournal"));
+      instance.open(new File(cacheDir, "CommandCache"));
+    }
+    return instance;
+  }
+
+  private static synchronized ScheduledExecutorService syncExecutor() {
+    if (syncExecutor == null) {
+      syncExecutor = Executors.newScheduledThreadPool(1);
+    }
+    return syncExecutor;
+  }
+
+  /**
+   * 回放已有的 segment，并把旧版本 CommandCache 目录里的请求导入进来
+   *
+   * @param legacyDirectory 旧版本一个请求一个文件的目录，可以为 null
+   */
+  synchronized void open(File legacyDirectory) {
+    directory.mkdirs();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+          continue;
+        }
+        try {
+          long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          segments.put(id, new Segment(id, file));
+        } catch (NumberFormatException e) {
+          LogUtil.avlog.d("ignore unknown file in command journal: " + name);
+        }
+      }
+    }
+    Set<Long> acked = new HashSet<Long>();
+    for (Segment segment : segments.values()) {
+      readSegment(segment, acked);
+    }
+    for (Long seq : acked) {
+      Command command = pendingCommands.remove(seq);
+      if (command != null) {
+        commandSegments.remove(seq).liveCount--;
+      }
+    }
+    for (Command command : pendingCommands.values()) {
+      dedupIndex.put(command.dedupKey(), command.seq);
+    }
+    if (!segments.isEmpty()) {
+      activeSegment = segments.lastEntry().getValue();
+      try {
+        truncateTornTail(activeSegment.file);
+        activeSize = activeSegment.file.length();
+        activeStream = new FileOutputStream(activeSegment.file, true);
+      } catch (IOException e) {
+        LogUtil.log.e("failed to open command journal segment", e);
+        activeSegment = null;
+      }
+    }
+    if (legacyDirectory != null && legacyDirectory.isDirectory()) {
+      importLegacyCommands(legacyDirectory);
+    }
+    compact();
+  }
+
+  private void readSegment(Segment segment, Set<Long> acked) {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(segment.file), "UTF-8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        JSONObject record;
+        try {
+          record = JSON.parseObject(line);
+        } catch (Exception e) {
+          // 进程在写入一行的中途被杀掉了
+          continue;
+        }
+        if (record == null || !record.containsKey("seq")) {
+          continue;
+        }
+        long seq = record.getLongValue("seq");
+        nextSeq = Math.max(nextSeq, seq + 1);
+        if (OP_ACK.equals(record.getString("op"))) {
+          acked.add(seq);
+        } else if (OP_ADD.equals(record.getString("op"))) {
+          if (record.containsKey("merged")) {
+            for (Object mergedSeq : record.getJSONArray("merged")) {
+              acked.add(((Number) mergedSeq).longValue());
+            }
+          }
+          Segment previous = commandSegments.get(seq);
+          if (previous != null) {
+            // 压缩时被搬到了新的 segment 中
+            previous.liveCount--;
+          }
+          pendingCommands.put(seq, new Command(seq, record.getString("method"),
+              record.getString("relativePath"), record.getString("paramString"),
+              record.getString("objectId"), record.getString("_internalId")));
+          commandSegments.put(seq, segment);
+          segment.addCount++;
+          segment.liveCount++;
+        }
+      }
+    } catch (IOException e) {
+      LogUtil.log.e("failed to read command journal segment " + segment.file, e);
+    } finally {
+      AVPersistenceUtils.closeQuietly(reader);
+    }
+  }
+
+  /**
+   * 进程在写入一行的中途被杀掉时，去掉文件末尾不完整的一行，避免之后追加的记录接在它后面被一起丢弃
+   */
+  private static void truncateTornTail(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      long end = length;
+      while (end > 0) {
+        raf.seek(end - 1);
+        if (raf.read() == '\n') {
+          break;
+        }
+        end--;
+      }
+      if (end < length) {
+        LogUtil.avlog.d("drop torn record at the end of " + file.getName());
+        raf.setLength(end);
+      }
+    } finally {
+      AVPersistenceUtils.closeQuietly(raf);
+    }
+  }
+
+  private void importLegacyCommands(File legacyDirectory) {
+    File[] files = legacyDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File f, File s) {
+        long diff = f.lastModified() - s.lastModified();
+        return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
+      try {
+        Map<String, String> fileMap =
+            AVUtils.getFromJSON(AVPersistenceUtils.readContentFromFile(file), Map.class);
+        if (fileMap != null && fileMap.get("method") != null) {
+          append(fileMap.get("method"), fileMap.get("relativePath"), fileMap.get("paramString"),
+              fileMap.get("objectId"), fileMap.get("_internalId"));
+        }
+      } catch (Exception e) {
+        LogUtil.avlog.e("failed to import archived request " + file.getName());
+      }
+      if (file.delete()) {
+        AVPersistenceUtils.removeLock(file.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * 追加一个请求，与它 key 相同的还没有发出的请求会被替换掉
+   *
+   * @return 新的请求
+   */
+  synchronized Command append(String method, String relativePath, String paramString,
+                              String objectId, String internalId) {
+    Command command =
+        new Command(nextSeq++, method, relativePath, paramString, objectId, internalId);
+    Segment segment = writeRecord(addRecord(command, null));
+    pendingCommands.put(command.seq, command);
+    if (segment != null) {
+      commandSegments.put(command.seq, segment);
+      segment.addCount++;
+      segment.liveCount++;
+    }
+
+    String key = command.dedupKey();
+    Long supersededSeq = dedupIndex.put(key, command.seq);
+    if (supersededSeq != null && !inflightCommands.contains(supersededSeq)) {
+      ack(supersededSeq);
+    }
+    scheduleSync();
+    return command;
+  }
+
+  /**
+   * 把 mergedSeqs 对应的请求合并到 seq 对应的请求中，新的请求体为 paramString
+   *
+   * @return 合并后的请求，seq 不变；seq 对应的请求已经不在待发送列表时返回 null
+   */
+  synchronized Command merge(long seq, String paramString, List<Long> mergedSeqs) {
+    Command target = pendingCommands.get(seq);
+    if (target == null) {
+      return null;
+    }
+    Command merged = new Command(seq, target.method, target.relativePath, paramString,
+        target.objectId, target.internalId);
+    Segment segment = writeRecord(addRecord(merged, mergedSeqs));
+    if (segment == null) {
+      return null;
+    }
+    Segment previous = commandSegments.put(seq, segment);
+    if (previous != null) {
+      previous.liveCount--;
+    }
+    segment.addCount++;
+    segment.liveCount++;
+    pendingCommands.put(seq, merged);
+    Long indexedTarget = dedupIndex.get(target.dedupKey());
+    if (indexedTarget != null && indexedTarget.longValue() == seq) {
+      dedupIndex.remove(target.dedupKey());
+    }
+    for (Long mergedSeq : mergedSeqs) {
+      inflightCommands.remove(mergedSeq);
+      Command command = pendingCommands.remove(mergedSeq);
+      if (command == null) {
+        continue;
+      }
+      Long indexedSeq = dedupIndex.get(command.dedupKey());
+      if (indexedSeq != null && indexedSeq.longValue() == mergedSeq.longValue()) {
+        dedupIndex.remove(command.dedupKey());
+      }
+      Segment mergedSegment = commandSegments.remove(mergedSeq);
+      if (mergedSegment != null) {
+        mergedSegment.liveCount--;
+      }
+    }
+    scheduleSync();
+    compact();
+    return merged;
+  }
+
+  /**
+   * 标记请求已经发送成功
+   */
+  synchronized void ack(long seq) {
+    inflightCommands.remove(seq);
+    Command command = pendingCommands.remove(seq);
+    if (command == null) {
+      return;
+    }
+    Long indexedSeq = dedupIndex.get(command.dedupKey());
+    if (indexedSeq != null && indexedSeq == seq) {
+      dedupIndex.remove(command.dedupKey());
+    }
+    Map<String, Object> record = new LinkedHashMap<String, Object>();
+    record.put("op", OP_ACK);
+    record.put("seq", seq);
+    writeRecord(record);
+    Segment segment = commandSegments.remove(seq);
+    if (segment != null) {
+      segment.liveCount--;
+    }
+    compact();
+  }
+
+  /**
+   * 标记请求正在发送，避免重复发送
+   *
+   * @return 请求已经在发送或者已经完成时返回 false
+   */
+  synchronized boolean beginSend(long seq) {
+    return pendingCommands.containsKey(seq) && inflightCommands.add(seq);
+  }
+
+  /**
+   * 请求发送失败，之后可以再次发送
+   */
+  synchronized void endSend(long seq) {
+    inflightCommands.remove(seq);
+  }
+
+  /**
+   * 取出所有待发送的请求，并标记为正在发送
+   *
+   * @return 按序列号排序的请求
+   */
+  synchronized List<Command> beginSendPending() {
+    List<Command> result = new ArrayList<Command>();
+    for (Command command : pendingCommands.values()) {
+      if (inflightCommands.add(command.seq)) {
+        result.add(command);
+      }
+    }
+    return result;
+  }
+
+  synchronized int pendingCount() {
+    return pendingCommands.size();
+  }
+
+  synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  private static Map<String, Object> addRecord(Command command, List<Long> mergedSeqs) {
+    Map<String, Object> record = new LinkedHashMap<String, Object>();
+    record.put("op", OP_ADD);
+    record.put("seq", command.seq);
+    record.put("method", command.method);
+    record.put("relativePath", command.relativePath);
+    record.put("paramString", command.paramString);
+    record.put("objectId", command.objectId);
+    record.put("_internalId", command.internalId);
+    if (mergedSeqs != null && !mergedSeqs.isEmpty()) {
+      record.put("merged", mergedSeqs);
+    }
+    return record;
+  }
+
+  private Segment writeRecord(Map<String, Object> record) {
+    try {
+      if (activeSegment == null || activeSize >= MAX_SEGMENT_SIZE) {
+        rollSegment();
+      }
+      byte[] data = (JSON.toJSONString(record) + "\n").getBytes("UTF-8");
+      activeStream.write(data);
+      activeSize += data.length;
+      return activeSegment;
+    } catch (IOException e) {
+      LogUtil.log.e("failed to write command journal", e);
+      return null;
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    if (activeStream != null) {
+      activeStream.getFD().sync();
+      AVPersistenceUtils.closeQuietly(activeStream);
+    }
+    long id = nextSeq;
+    while (segments.containsKey(id)) {
+      id++;
+    }
+    Segment segment = new Segment(id, new File(directory, String.format("%019d%s", id, SEGMENT_SUFFIX)));
+    activeStream = new FileOutputStream(segment.file, true);
+    activeSegment = segment;
+    activeSize = 0;
+    segments.put(id, segment);
+  }
+
+  /**
+   * 从最旧的 segment 开始删除已经没有待发送请求的文件；只剩少量待发送请求时，把它们搬到当前 segment 中
+   */
+  private void compact() {
+    while (!segments.isEmpty()) {
+      Segment oldest = segments.firstEntry().getValue();
+      if (oldest == activeSegment) {
+        if (oldest.liveCount == 0 && activeSize >= MAX_SEGMENT_SIZE) {
+          closeActiveSegment();
+          deleteSegment(oldest);
+        }
+        return;
+      }
+      if (oldest.liveCount > 0 && oldest.liveCount * 4 > oldest.addCount) {
+        return;
+      }
+      if (oldest.liveCount > 0) {
+        List<Command> liveCommands = new ArrayList<Command>();
+        for (Command command : pendingCommands.values()) {
+          if (commandSegments.get(command.seq) == oldest) {
+            liveCommands.add(command);
+          }
+        }
+        for (Command command : liveCommands) {
+          Segment segment = writeRecord(addRecord(command, null));
+          if (segment == null) {
+            return;
+          }
+          commandSegments.put(command.seq, segment);
+          segment.addCount++;
+          segment.liveCount++;
+        }
+        syncActiveSegment();
+      }
+      deleteSegment(oldest);
+    }
+  }
+
+  private void deleteSegment(Segment segment) {
+    segments.remove(segment.id);
+    if (segment.file.exists() && !segment.file.delete()) {
+      LogUtil.avlog.e("failed to delete command journal segment " + segment.file);
+    }
+  }
+
+  private void closeActiveSegment() {
+    AVPersistenceUtils.closeQuietly(activeStream);
+    activeStream = null;
+    activeSegment = null;
+    activeSize = 0;
+  }
+
+  private void scheduleSync() {
+    if (syncScheduled) {
+      return;
+    }
+    syncScheduled = true;
+    syncExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (AVCommandJournal.this) {
+          syncScheduled = false;
+          syncActiveSegment();
+        }
+      }
+    }, SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void syncActiveSegment() {
+    if (activeStream == null) {
+      return;
+    }
+    try {
+      activeStream.getFD().sync();
+    } catch (IOException e) {
+      LogUtil.log.d(e.toString());
+    }
+  }
+
+  synchronized void close() {
+    syncActiveSegment();
+    closeActiveSegment();
+  }
+}
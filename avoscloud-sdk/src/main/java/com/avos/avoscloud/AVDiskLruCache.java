@@ -0,0 +1,515 @@
+package com.avos.avoscloud;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 带日志（journal）并按字节数限制大小的磁盘 LRU 缓存
+ *
+ * 每个 key 对应目录下的一个文件，所有的增删改都会追加到 journal 中，打开时通过回放 journal 重建索引，
+ * 因此查询、淘汰都不需要扫描目录。
+ *
+ * journal 的格式如下：
+ *
+ * <pre>
+ *   com.avos.avoscloud.AVDiskLruCache
+ *   1
+ *
+ *   DIRTY 335c4c6028171cfddfbaae1a9c313c52
+ *   CLEAN 335c4c6028171cfddfbaae1a9c313c52 2342 1491539012000
+ *   READ 335c4c6028171cfddfbaae1a9c313c52
+ *   REMOVE 335c4c6028171cfddfbaae1a9c313c52
+ * </pre>
+ *
+ * 写入时先写 DIRTY 记录，内容写入 key.tmp 后 rename 成正式文件，再写入包含大小和写入时间的 CLEAN 记录。
+ * 没有以 CLEAN 或者 REMOVE 结束的 DIRTY 记录会在下次打开时被清理掉。
+ */
+class AVDiskLruCache {
+  static final String JOURNAL_FILE = "journal";
+  static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  static final String MAGIC = "com.avos.avoscloud.AVDiskLruCache";
+  static final String VERSION = "1";
+
+  private static final String CLEAN = "CLEAN";
+  private static final String DIRTY = "DIRTY";
+  private static final String REMOVE = "REMOVE";
+  private static final String READ = "READ";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+  private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+  private static final String ENCODING = "UTF-8";
+
+  static class Snapshot {
+    final String content;
+    final long savedAt;
+
+    Snapshot(String content, long savedAt) {
+      this.content = content;
+      this.savedAt = savedAt;
+    }
+  }
+
+  private static class Entry {
+    final String key;
+    long length;
+    long savedAt;
+    boolean readable;
+
+    Entry(String key) {
+      this.key = key;
+    }
+  }
+
+  private final File directory;
+  private final File journalFile;
+  private final File journalFileTmp;
+  private long maxSize;
+  private long size = 0;
+  private int redundantOpCount;
+  private Writer journalWriter;
+  private final LinkedHashMap<String, Entry> lruEntries =
+      new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+  private AVDiskLruCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE);
+    this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * 打开缓存目录，journal 不存在时会新建；如果 legacyDirectory 中有旧版本一个 key 一个文件的缓存，
+   * 会把这些文件移动到新的目录中并写入 journal，之后删除旧目录。
+   *
+   * @param directory       缓存目录
+   * @param legacyDirectory 旧版本的缓存目录，可以为 null
+   * @param maxSize         缓存最多占用的字节数
+   * @return
+   * @throws IOException
+   */
+  static AVDiskLruCache open(File directory, File legacyDirectory, long maxSize) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    AVDiskLruCache cache = new AVDiskLruCache(directory, maxSize);
+    if (cache.journalFile.exists()) {
+      try {
+        cache.readJournal();
+        cache.processJournal();
+        cache.journalWriter = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), ENCODING));
+      } catch (IOException e) {
+        LogUtil.log.w("disk cache " + directory + " is corrupt: " + e.getMessage() + ", removing");
+        cache.deleteContents();
+        cache = new AVDiskLruCache(directory, maxSize);
+      }
+    }
+    if (cache.journalWriter == null) {
+      directory.mkdirs();
+      cache.rebuildJournal();
+    }
+    if (legacyDirectory != null && legacyDirectory.isDirectory()) {
+      cache.migrateFrom(legacyDirectory);
+    }
+    return cache;
+  }
+
+  private void readJournal() throws IOException {
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journalFile), ENCODING));
+    try {
+      String magic = reader.readLine();
+      String version = reader.readLine();
+      String blank = reader.readLine();
+      if (!MAGIC.equals(magic) || !VERSION.equals(version) || !"".equals(blank)) {
+        throw new IOException("unexpected journal header: [" + magic + ", " + version + "]");
+      }
+      int lineCount = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        readJournalLine(line);
+        lineCount++;
+      }
+      redundantOpCount = lineCount - lruEntries.size();
+    } finally {
+      AVPersistenceUtils.closeQuietly(reader);
+    }
+  }
+
+  private void readJournalLine(String line) throws IOException {
+    String[] parts = line.split(" ");
+    if (parts.length < 2) {
+      throw new IOException("unexpected journal line: " + line);
+    }
+    String key = parts[1];
+    if (REMOVE.equals(parts[0]) && parts.length == 2) {
+      lruEntries.remove(key);
+      return;
+    }
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+    if (CLEAN.equals(parts[0]) && parts.length == 4) {
+      try {
+        entry.length = Long.parseLong(parts[2]);
+        entry.savedAt = Long.parseLong(parts[3]);
+      } catch (NumberFormatException e) {
+        throw new IOException("unexpected journal line: " + line);
+      }
+      entry.readable = true;
+    } else if (DIRTY.equals(parts[0]) && parts.length == 2) {
+      entry.readable = false;
+    } else if (READ.equals(parts[0]) && parts.length == 2) {
+      // LinkedHashMap 的 get 已经更新了访问顺序
+    } else {
+      throw new IOException("unexpected journal line: " + line);
+    }
+  }
+
+  /**
+   * 计算缓存大小，并清理掉没有完成写入的条目
+   */
+  private void processJournal() {
+    deleteIfExists(journalFileTmp);
+    Iterator<Entry> it = lruEntries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.readable) {
+        size += entry.length;
+      } else {
+        deleteIfExists(getEntryFile(entry.key));
+        deleteIfExists(getTempFile(entry.key));
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * 用当前的索引重写 journal，去掉冗余的记录
+   */
+  private synchronized void rebuildJournal() throws IOException {
+    if (journalWriter != null) {
+      journalWriter.close();
+    }
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journalFileTmp), ENCODING));
+    try {
+      writer.write(MAGIC);
+      writer.write("\n");
+      writer.write(VERSION);
+      writer.write("\n");
+      writer.write("\n");
+      for (Entry entry : lruEntries.values()) {
+        writer.write(CLEAN + ' ' + entry.key + ' ' + entry.length + ' ' + entry.savedAt + '\n');
+      }
+    } finally {
+      writer.close();
+    }
+    if (!journalFileTmp.renameTo(journalFile)) {
+      throw new IOException("failed to rename " + journalFileTmp + " to " + journalFile);
+    }
+    redundantOpCount = 0;
+    journalWriter = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journalFile, true), ENCODING));
+  }
+
+  private void migrateFrom(File legacyDirectory) {
+    File[] files = legacyDirectory.listFiles();
+    if (files != null) {
+      // 按修改时间排序，使得最近写入的缓存在 LRU 中最后被淘汰
+      Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File f, File s) {
+          long diff = f.lastModified() - s.lastModified();
+          return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+      });
+      for (File file : files) {
+        String key = file.getName();
+        if (file.isFile() && LEGAL_KEY_PATTERN.matcher(key).matches()) {
+          long savedAt = file.lastModified();
+          long length = file.length();
+          File target = getEntryFile(key);
+          if (file.renameTo(target)) {
+            synchronized (this) {
+              Entry entry = lruEntries.get(key);
+              if (entry != null && entry.readable) {
+                size -= entry.length;
+              }
+              if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+              }
+              entry.readable = true;
+              entry.length = length;
+              entry.savedAt = savedAt;
+              size += length;
+              writeJournalLine(CLEAN + ' ' + key + ' ' + length + ' ' + savedAt);
+            }
+          }
+        }
+        deleteIfExists(file);
+      }
+    }
+    if (!legacyDirectory.delete()) {
+      LogUtil.avlog.d("failed to delete legacy cache directory " + legacyDirectory);
+    }
+    synchronized (this) {
+      flushJournal();
+      trimToSize();
+    }
+  }
+
+  synchronized boolean contains(String key) {
+    Entry entry = lruEntries.get(key);
+    return entry != null && entry.readable;
+  }
+
+  /**
+   * @param key
+   * @return 缓存的写入时间，不存在则返回 -1
+   */
+  synchronized long getSavedAt(String key) {
+    Entry entry = lruEntries.get(key);
+    if (entry == null || !entry.readable) {
+      return -1;
+    }
+    return entry.savedAt;
+  }
+
+  synchronized Snapshot get(String key) {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = lruEntries.get(key);
+    if (entry == null || !entry.readable) {
+      return null;
+    }
+    byte[] data = AVPersistenceUtils.readContentBytesFromFile(getEntryFile(key));
+    if (data == null) {
+      // 文件被外部删除了，比如系统清理了 cache 目录
+      removeEntry(entry);
+      return null;
+    }
+    redundantOpCount++;
+    writeJournalLine(READ + ' ' + key);
+    compactIfNeeded();
+    try {
+      return new Snapshot(new String(data, ENCODING), entry.savedAt);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  synchronized boolean put(String key, String content) {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+    writeJournalLine(DIRTY + ' ' + key);
+    flushJournal();
+
+    File tempFile = getTempFile(key);
+    File entryFile = getEntryFile(key);
+    boolean succeed = false;
+    FileOutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      out.write(content.getBytes(ENCODING));
+      out.close();
+      out = null;
+      deleteIfExists(entryFile);
+      succeed = tempFile.renameTo(entryFile);
+    } catch (IOException e) {
+      LogUtil.log.d(e.toString());
+    } finally {
+      AVPersistenceUtils.closeQuietly(out);
+    }
+
+    redundantOpCount++;
+    if (entry.readable) {
+      size -= entry.length;
+    }
+    if (succeed) {
+      entry.readable = true;
+      entry.length = entryFile.length();
+      entry.savedAt = System.currentTimeMillis();
+      size += entry.length;
+      writeJournalLine(CLEAN + ' ' + key + ' ' + entry.length + ' ' + entry.savedAt);
+    } else {
+      deleteIfExists(tempFile);
+      deleteIfExists(entryFile);
+      lruEntries.remove(key);
+      writeJournalLine(REMOVE + ' ' + key);
+    }
+    flushJournal();
+    trimToSize();
+    compactIfNeeded();
+    return succeed;
+  }
+
+  synchronized boolean remove(String key) {
+    checkNotClosed();
+    validateKey(key);
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      return false;
+    }
+    removeEntry(entry);
+    flushJournal();
+    compactIfNeeded();
+    return true;
+  }
+
+  /**
+   * 删除写入时间早于 timestamp 的条目，只读取内存里的索引，不扫描目录
+   *
+   * @param timestamp
+   * @return 文件都删除成功时返回 true
+   */
+  synchronized boolean removeOlderThan(long timestamp) {
+    checkNotClosed();
+    boolean succeed = true;
+    List<Entry> expired = new ArrayList<Entry>();
+    for (Entry entry : lruEntries.values()) {
+      if (entry.savedAt < timestamp) {
+        expired.add(entry);
+      }
+    }
+    for (Entry entry : expired) {
+      succeed &= removeEntry(entry);
+    }
+    flushJournal();
+    compactIfNeeded();
+    return succeed;
+  }
+
+  synchronized long size() {
+    return size;
+  }
+
+  synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  synchronized void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    trimToSize();
+  }
+
+  synchronized void close() {
+    if (journalWriter == null) {
+      return;
+    }
+    AVPersistenceUtils.closeQuietly(journalWriter);
+    journalWriter = null;
+  }
+
+  private boolean removeEntry(Entry entry) {
+    File file = getEntryFile(entry.key);
+    boolean deleted = !file.exists() || file.delete();
+    if (entry.readable) {
+      size -= entry.length;
+    }
+    lruEntries.remove(entry.key);
+    redundantOpCount++;
+    writeJournalLine(REMOVE + ' ' + entry.key);
+    return deleted;
+  }
+
+  /**
+   * 淘汰最久没有访问的条目，直到缓存大小不超过 maxSize
+   */
+  private void trimToSize() {
+    while (size > maxSize) {
+      Iterator<Entry> it = lruEntries.values().iterator();
+      if (!it.hasNext()) {
+        break;
+      }
+      removeEntry(it.next());
+    }
+    flushJournal();
+  }
+
+  private void compactIfNeeded() {
+    if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+        && redundantOpCount >= lruEntries.size()) {
+      try {
+        rebuildJournal();
+      } catch (IOException e) {
+        LogUtil.log.w("failed to rebuild disk cache journal: " + e.getMessage());
+      }
+    }
+  }
+
+  private void writeJournalLine(String line) {
+    try {
+      journalWriter.write(line);
+      journalWriter.write('\n');
+    } catch (IOException e) {
+      LogUtil.log.d(e.toString());
+    }
+  }
+
+  private void flushJournal() {
+    try {
+      journalWriter.flush();
+    } catch (IOException e) {
+      LogUtil.log.d(e.toString());
+    }
+  }
+
+  private void checkNotClosed() {
+    if (journalWriter == null) {
+      throw new IllegalStateException("cache is closed");
+    }
+  }
+
+  private void validateKey(String key) {
+    if (!LEGAL_KEY_PATTERN.matcher(key).matches()) {
+      throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,120}: \"" + key + "\"");
+    }
+  }
+
+  private File getEntryFile(String key) {
+    return new File(directory, key);
+  }
+
+  private File getTempFile(String key) {
+    return new File(directory, key + TEMP_SUFFIX);
+  }
+
+  private void deleteContents() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        deleteIfExists(file);
+      }
+    }
+  }
+
+  private static void deleteIfExists(File file) {
+    if (file.exists() && !file.delete()) {
+      LogUtil.avlog.d("failed to delete " + file);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.avos.avoscloud.ops.AVOp;
+import com.avos.avoscloud.ops.AddOp;
+import com.avos.avoscloud.ops.AddUniqueOp;
+import com.avos.avoscloud.ops.DeleteOp;
+import com.avos.avoscloud.ops.IncrementOp;
+import com.avos.avoscloud.ops.RemoveOp;
+import com.avos.avoscloud.ops.SetOp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 在回放 saveEventually/deleteEventually 请求之前，合并同一个对象上的请求
+ *
+ * <ul>
+ * <li>同一个对象上连续的更新请求按照 AVOp.merge 的规则合并成一个请求，合并结果是 CompoundOp 或者包含无法合并的操作时保持原样</li>
+ * <li>删除请求会取消掉同一个对象上之前所有还没有发送的更新请求</li>
+ * </ul>
+ *
+ * 同时更新多个对象的请求会作为屏障，它前后的请求不会被合并。
+ */
+class AVEventuallyCoalescer {
+  private static final int KIND_PUT = 1;
+  private static final int KIND_BATCH_SAVE_PUT = 2;
+  private static final String INTERNAL_ID = "__internalId";
+
+  private static class SaveCommand {
+    final AVCommandJournal.Command command;
+    final int kind;
+    final String objectKey;
+    final JSONObject request;
+    Map<String, Object> body;
+    final List<AVCommandJournal.Command> mergedCommands = new ArrayList<AVCommandJournal.Command>();
+
+    SaveCommand(AVCommandJournal.Command command, int kind, String objectKey, JSONObject request,
+                Map<String, Object> body) {
+      this.command = command;
+      this.kind = kind;
+      this.objectKey = objectKey;
+      this.request = request;
+      this.body = body;
+    }
+
+    String encode() {
+      if (kind == KIND_PUT) {
+        return JSON.toJSONString(body);
+      }
+      JSONObject newRequest = new JSONObject(new LinkedHashMap<String, Object>(request));
+      newRequest.put("body", body);
+      List<Object> requests = new ArrayList<Object>();
+      requests.add(newRequest);
+      Map<String, Object> params = new HashMap<String, Object>();
+      params.put("requests", requests);
+      return AVUtils.jsonStringFromMapWithNull(params);
+    }
+  }
+
+  private final String apiVersion;
+  private final AVCommandJournal journal;
+
+  AVEventuallyCoalescer(String apiVersion, AVCommandJournal journal) {
+    this.apiVersion = apiVersion;
+    this.journal = journal;
+  }
+
+  /**
+   * @param commands 按照序列号排序、并且已经标记为正在发送的请求
+   * @return 合并之后需要发送的请求，被合并或者取消的请求已经在日志中 ack
+   */
+  List<AVCommandJournal.Command> coalesce(List<AVCommandJournal.Command> commands) {
+    List<Object> result = new ArrayList<Object>(commands.size());
+    Map<String, SaveCommand> lastSaves = new HashMap<String, SaveCommand>();
+    for (AVCommandJournal.Command command : commands) {
+      String deleteKey = deleteObjectKey(command);
+      if (deleteKey != null) {
+        cancelSaves(result, deleteKey);
+        lastSaves.remove(deleteKey);
+        result.add(command);
+        continue;
+      }
+      SaveCommand save = parseSave(command);
+      if (save == null) {
+        Collection<String> touchedKeys = touchedObjectKeys(command);
+        if (touchedKeys == null) {
+          lastSaves.clear();
+        } else {
+          lastSaves.keySet().removeAll(touchedKeys);
+        }
+        result.add(command);
+        continue;
+      }
+      SaveCommand target = lastSaves.get(save.objectKey);
+      if (target != null && isCompatible(target, save)) {
+        Map<String, Object> mergedBody = mergeBody(target.body, save.body);
+        if (mergedBody != null) {
+          target.body = mergedBody;
+          target.mergedCommands.add(command);
+          continue;
+        }
+      }
+      lastSaves.put(save.objectKey, save);
+      result.add(save);
+    }
+
+    List<AVCommandJournal.Command> coalesced = new ArrayList<AVCommandJournal.Command>(result.size());
+    for (Object item : result) {
+      if (item instanceof SaveCommand) {
+        SaveCommand save = (SaveCommand) item;
+        if (save.mergedCommands.isEmpty()) {
+          coalesced.add(save.command);
+          continue;
+        }
+        List<Long> mergedSeqs = new ArrayList<Long>();
+        for (AVCommandJournal.Command mergedCommand : save.mergedCommands) {
+          mergedSeqs.add(mergedCommand.seq);
+        }
+        AVCommandJournal.Command merged = journal.merge(save.command.seq, save.encode(), mergedSeqs);
+        if (merged != null) {
+          coalesced.add(merged);
+        } else {
+          coalesced.add(save.command);
+          coalesced.addAll(save.mergedCommands);
+        }
+      } else {
+        coalesced.add((AVCommandJournal.Command) item);
+      }
+    }
+    return coalesced;
+  }
+
+  private void cancelSaves(List<Object> result, String objectKey) {
+    Iterator<Object> it = result.iterator();
+    while (it.hasNext()) {
+      Object item = it.next();
+      if (item instanceof SaveCommand && objectKey.equals(((SaveCommand) item).objectKey)) {
+        SaveCommand save = (SaveCommand) item;
+        journal.ack(save.command.seq);
+        for (AVCommandJournal.Command mergedCommand : save.mergedCommands) {
+          journal.ack(mergedCommand.seq);
+        }
+        it.remove();
+      }
+    }
+  }
+
+  private String stripVersion(String path) {
+    String prefix = "/" + apiVersion + "/";
+    if (path != null && path.startsWith(prefix)) {
+      return path.substring(prefix.length());
+    }
+    return null;
+  }
+
+  private static boolean isObjectPath(String relativePath) {
+    return relativePath != null && !relativePath.contains("?")
+        && relativePath.split("/").length >= 3;
+  }
+
+  private String deleteObjectKey(AVCommandJournal.Command command) {
+    if ("delete".equalsIgnoreCase(command.method) && isObjectPath(command.relativePath)) {
+      return command.relativePath;
+    }
+    return null;
+  }
+
+  private SaveCommand parseSave(AVCommandJournal.Command command) {
+    try {
+      if ("put".equalsIgnoreCase(command.method) && isObjectPath(command.relativePath)) {
+        JSONObject body = JSON.parseObject(command.paramString);
+        return body == null ? null
+            : new SaveCommand(command, KIND_PUT, command.relativePath, null, body);
+      }
+      if ("post".equalsIgnoreCase(command.method) && "batch/save".equals(command.relativePath)) {
+        JSONArray requests = JSON.parseObject(command.paramString).getJSONArray("requests");
+        if (requests == null || requests.size() != 1) {
+          return null;
+        }
+        JSONObject request = requests.getJSONObject(0);
+        String objectKey = stripVersion(request.getString("path"));
+        JSONObject params = request.getJSONObject("params");
+        if (!"PUT".equalsIgnoreCase(request.getString("method")) || !isObjectPath(objectKey)
+            || (params != null && params.containsKey("where")) || request.getJSONObject("body") == null) {
+          return null;
+        }
+        return new SaveCommand(command, KIND_BATCH_SAVE_PUT, objectKey, request,
+            request.getJSONObject("body"));
+      }
+    } catch (Exception e) {
+      LogUtil.avlog.d("failed to parse archived request " + command.seq);
+    }
+    return null;
+  }
+
+  /**
+   * @return 请求可能修改的对象路径，无法解析时返回 null
+   */
+  private Collection<String> touchedObjectKeys(AVCommandJournal.Command command) {
+    List<String> keys = new ArrayList<String>();
+    if ("post".equalsIgnoreCase(command.method) && "batch/save".equals(command.relativePath)) {
+      try {
+        JSONArray requests = JSON.parseObject(command.paramString).getJSONArray("requests");
+        for (int i = 0; requests != null && i < requests.size(); i++) {
+          String objectKey = stripVersion(requests.getJSONObject(i).getString("path"));
+          if (objectKey == null) {
+            return null;
+          }
+          keys.add(objectKey);
+        }
+        return keys;
+      } catch (Exception e) {
+        return null;
+      }
+    }
+    if (command.relativePath != null) {
+      int queryIndex = command.relativePath.indexOf('?');
+      keys.add(queryIndex < 0 ? command.relativePath : command.relativePath.substring(0, queryIndex));
+    }
+    return keys;
+  }
+
+  private static boolean isCompatible(SaveCommand target, SaveCommand save) {
+    if (target.kind != save.kind) {
+      return false;
+    }
+    if (target.kind == KIND_PUT) {
+      return true;
+    }
+    JSONObject targetRequest = new JSONObject(new HashMap<String, Object>(target.request));
+    JSONObject saveRequest = new JSONObject(new HashMap<String, Object>(save.request));
+    targetRequest.remove("body");
+    saveRequest.remove("body");
+    return targetRequest.equals(saveRequest);
+  }
+
+  /**
+   * 按照 AVOp.merge 的规则把后一个请求的字段合并到前一个请求中
+   *
+   * @return 存在无法合并的字段时返回 null
+   */
+  static Map<String, Object> mergeBody(Map<String, Object> earlier, Map<String, Object> later) {
+    Map<String, Object> merged = new LinkedHashMap<String, Object>(earlier);
+    for (Map.Entry<String, Object> entry : later.entrySet()) {
+      String key = entry.getKey();
+      if (INTERNAL_ID.equals(key)) {
+        continue;
+      }
+      if (!merged.containsKey(key)) {
+        merged.put(key, entry.getValue());
+        continue;
+      }
+      AVOp earlierOp = decodeOp(key, merged.get(key));
+      AVOp laterOp = decodeOp(key, entry.getValue());
+      if (earlierOp == null || laterOp == null) {
+        return null;
+      }
+      try {
+        AVOp op = earlierOp.merge(laterOp);
+        if (op.type() == AVOp.OpType.Compound) {
+          return null;
+        }
+        merged.put(key, encodeOp(op));
+      } catch (RuntimeException e) {
+        return null;
+      }
+    }
+    return merged;
+  }
+
+  private static AVOp decodeOp(String key, Object value) {
+    if (!(value instanceof Map) || !((Map) value).containsKey("__op")) {
+      return new SetOp(key, value);
+    }
+    Map map = (Map) value;
+    String op = String.valueOf(map.get("__op"));
+    Object objects = map.get("objects");
+    if ("Increment".equals(op) && map.get("amount") instanceof Number) {
+      return new IncrementOp(key, (Number) map.get("amount"));
+    } else if ("Delete".equals(op)) {
+      return new DeleteOp(key);
+    } else if ("Add".equals(op) && objects instanceof Collection) {
+      return new AddOp(key, ((Collection) objects).toArray());
+    } else if ("AddUnique".equals(op) && objects instanceof Collection) {
+      return new AddUniqueOp(key, ((Collection) objects).toArray());
+    } else if ("Remove".equals(op) && objects instanceof Collection) {
+      return new RemoveOp(key, (Collection) objects);
+    }
+    // AddRelation、RemoveRelation 等操作不参与合并
+    return null;
+  }
+
+  private static Object encodeOp(AVOp op) {
+    if (op.type() == AVOp.OpType.Set) {
+      return op.getValues();
+    }
+    return op.encodeOp().get(op.key());
+  }
+}
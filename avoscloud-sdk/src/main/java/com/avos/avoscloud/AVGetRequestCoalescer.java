@@ -0,0 +1,161 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并相同的正在进行中的 GET 请求
+ *
+ * 相同 url、sessionToken、header 以及缓存策略的异步 GET 请求在第一个请求返回之前只会发出一次，
+ * 之后加入的调用者会在请求返回时通过各自的 GenericObjectCallback 收到同样的结果。
+ */
+class AVGetRequestCoalescer {
+
+  private final Map<String, SharedCallback> inflightRequests = new HashMap<String, SharedCallback>();
+  private final AtomicLong requestCount = new AtomicLong(0);
+  private final AtomicLong coalescedCount = new AtomicLong(0);
+
+  static String requestKey(String url, String sessionToken, AVQuery.CachePolicy policy,
+                           Map<String, String> header) {
+    StringBuilder builder = new StringBuilder(url);
+    builder.append('\n').append(sessionToken == null ? "" : sessionToken);
+    builder.append('\n').append(policy == null ? "" : policy.name());
+    if (header != null && !header.isEmpty()) {
+      for (Map.Entry<String, String> entry : new TreeMap<String, String>(header).entrySet()) {
+        builder.append('\n').append(entry.getKey()).append(':').append(entry.getValue());
+      }
+    }
+    return builder.toString();
+  }
+
+  /**
+   * 加入一个 GET 请求
+   *
+   * @param key      由 requestKey 生成
+   * @param callback 调用者的回调
+   * @return 如果当前没有相同的请求在进行，返回需要用来发出请求的回调；否则返回 null，表示已经合并到进行中的请求
+   */
+  GenericObjectCallback join(String key, GenericObjectCallback callback) {
+    requestCount.incrementAndGet();
+    synchronized (inflightRequests) {
+      SharedCallback shared = inflightRequests.get(key);
+      if (shared != null) {
+        shared.callbacks.add(callback);
+        coalescedCount.incrementAndGet();
+        return null;
+      }
+      shared = new SharedCallback(key, callback);
+      inflightRequests.put(key, shared);
+      return shared;
+    }
+  }
+
+  long getRequestCount() {
+    return requestCount.get();
+  }
+
+  long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  int getInflightCount() {
+    synchronized (inflightRequests) {
+      return inflightRequests.size();
+    }
+  }
+
+  private List<GenericObjectCallback> finish(SharedCallback shared) {
+    synchronized (inflightRequests) {
+      if (inflightRequests.get(shared.key) == shared) {
+        inflightRequests.remove(shared.key);
+      }
+      List<GenericObjectCallback> result = new ArrayList<GenericObjectCallback>(shared.callbacks);
+      shared.callbacks.clear();
+      return result;
+    }
+  }
+
+  private class SharedCallback extends GenericObjectCallback {
+    private final String key;
+    private final GenericObjectCallback leader;
+    private final List<GenericObjectCallback> callbacks = new ArrayList<GenericObjectCallback>();
+
+    SharedCallback(String key, GenericObjectCallback leader) {
+      this.key = key;
+      this.leader = leader;
+      this.callbacks.add(leader);
+    }
+
+    @Override
+    public void onSuccess(String content, AVException e) {
+      for (GenericObjectCallback callback : finish(this)) {
+        try {
+          callback.onSuccess(content, e);
+        } catch (RuntimeException exception) {
+          LogUtil.log.e("exception in coalesced request callback", exception);
+        }
+      }
+    }
+
+    @Override
+    public boolean isParsedResponseNeeded() {
+      return leader.isParsedResponseNeeded();
+    }
+
+    @Override
+    public void onParsedSuccess(Object result, AVException e) {
+      List<GenericObjectCallback> callbacks = finish(this);
+      if (callbacks.size() == 1) {
+        try {
+          callbacks.get(0).onParsedSuccess(result, e);
+        } catch (RuntimeException exception) {
+          LogUtil.log.e("exception in coalesced request callback", exception);
+        }
+        return;
+      }
+      // 解析后的结果是可变的，多个调用者时仍然各自使用字符串
+      String content = result == null ? null : JSON.toJSONString(result);
+      for (GenericObjectCallback callback : callbacks) {
+        try {
+          callback.onSuccess(content, e);
+        } catch (RuntimeException exception) {
+          LogUtil.log.e("exception in coalesced request callback", exception);
+        }
+      }
+    }
+
+    @Override
+    public void onFailure(int statusCode, Throwable error, String content) {
+      // 每个调用者按照自己的策略决定是否重试
+      for (GenericObjectCallback callback : finish(this)) {
+        try {
+          callback.onFailure(statusCode, error, content);
+        } catch (RuntimeException exception) {
+          LogUtil.log.e("exception in coalesced request callback", exception);
+        }
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable error, String content) {
+      for (GenericObjectCallback callback : finish(this)) {
+        try {
+          callback.onFailure(error, content);
+        } catch (RuntimeException exception) {
+          LogUtil.log.e("exception in coalesced request callback", exception);
+        }
+      }
+    }
+
+    @Override
+    public boolean isRequestStatisticNeed() {
+      return leader.isRequestStatisticNeed();
+    }
+  }
+}
@@ -100,6 +100,7 @@ public class AVHttpClient {
     public Response intercept(Interceptor.Chain chain) throws IOException {
       Request request = chain.request();
       long requestStartTime = System.currentTimeMillis();
+      long requestStartNanos = System.nanoTime();
       boolean requestStatistics = !AVUtils.isBlankString(request.header(PaasClient.REQUEST_STATIS_HEADER));
       try {
         Response response = chain.proceed(request);
@@ -109,8 +110,9 @@ public class AVHttpClient {
           RequestStatisticsUtil.getInstance().recordRequestTime(response.code(), false,
             timeInterval);
         }
-        return response;
+        return AVRequestMetrics.onResponse(request, response, requestStartNanos);
       } catch (IOException e) {
+        AVRequestMetrics.onFailure(request, requestStartNanos);
         if (requestStatistics) {
           long timeInterval = System.currentTimeMillis() - requestStartTime;
           RequestStatisticsUtil.getInstance()
@@ -0,0 +1,128 @@
+package com.avos.avoscloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的请求耗时直方图，单位毫秒
+ *
+ * 与 HdrHistogram 一样采用对数-线性分桶：16ms 以内每毫秒一个桶，之后每个 2 的幂次区间再均分成 8 个桶，
+ * 相对误差不超过 12.5%。记录只需要几次原子加，可以在线上一直开启。
+ */
+class AVLatencyHistogram {
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAX_EXPONENT = 30;
+  static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+  private final AtomicLong totalMillis = new AtomicLong();
+  private final AtomicLong maxMillis = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  static int bucketIndex(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return value < 0 ? 0 : (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return 桶内的最大值
+   */
+  static long bucketUpperBound(int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (SUB_BUCKETS + subBucket) * width + width - 1;
+  }
+
+  void recordLatency(long millis, boolean error) {
+    buckets.incrementAndGet(bucketIndex(millis));
+    count.incrementAndGet();
+    totalMillis.addAndGet(millis);
+    if (error) {
+      errorCount.incrementAndGet();
+    }
+    long max = maxMillis.get();
+    while (millis > max && !maxMillis.compareAndSet(max, millis)) {
+      max = maxMillis.get();
+    }
+  }
+
+  void recordBytes(long in, long out) {
+    if (in > 0) {
+      bytesIn.addAndGet(in);
+    }
+    if (out > 0) {
+      bytesOut.addAndGet(out);
+    }
+  }
+
+  long[] bucketCounts() {
+    long[] result = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      result[i] = buckets.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * @param counts   bucketCounts 的结果
+   * @param quantile 0 到 1 之间
+   */
+  static long valueAtQuantile(long[] counts, double quantile) {
+    long total = 0;
+    for (long bucketCount : counts) {
+      total += bucketCount;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return bucketUpperBound(i);
+      }
+    }
+    return bucketUpperBound(counts.length - 1);
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getErrorCount() {
+    return errorCount.get();
+  }
+
+  long getTotalMillis() {
+    return totalMillis.get();
+  }
+
+  long getMaxMillis() {
+    return maxMillis.get();
+  }
+
+  long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  long getBytesOut() {
+    return bytesOut.get();
+  }
+}
@@ -0,0 +1,145 @@
+package com.avos.avoscloud;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按照字节数限制大小的内存 LRU 缓存，作为 AVCacheManager 文件缓存前面的一层
+ *
+ * 每个条目记录写入时间，用于 maxAge 校验和按天清理
+ */
+class AVMemoryLruCache {
+
+  static class Entry {
+    final String content;
+    final long savedAt;
+    final int size;
+
+    Entry(String content, long savedAt, int size) {
+      this.content = content;
+      this.savedAt = savedAt;
+      this.size = size;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private int maxSize;
+  private int size;
+
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  AVMemoryLruCache(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * 估算条目占用的字节数，字符按 UTF-16 两个字节计算
+   */
+  static int sizeOf(String key, String content) {
+    return 2 * (key.length() + (content == null ? 0 : content.length()));
+  }
+
+  /**
+   * 获取未过期的缓存内容
+   *
+   * @param key
+   * @param maxAgeInMilliseconds 小于等于 0 表示不校验过期时间
+   * @return 没有命中或已经过期则返回 null
+   */
+  synchronized String get(String key, long maxAgeInMilliseconds) {
+    Entry entry = map.get(key);
+    if (entry != null && (maxAgeInMilliseconds <= 0
+        || System.currentTimeMillis() - entry.savedAt <= maxAgeInMilliseconds)) {
+      hitCount++;
+      return entry.content;
+    }
+    missCount++;
+    return null;
+  }
+
+  synchronized boolean contains(String key) {
+    return map.containsKey(key);
+  }
+
+  synchronized Entry peek(String key) {
+    return map.get(key);
+  }
+
+  synchronized void put(String key, String content, long savedAt) {
+    int entrySize = sizeOf(key, content);
+    Entry previous = map.remove(key);
+    if (previous != null) {
+      size -= previous.size;
+    }
+    if (entrySize > maxSize) {
+      return;
+    }
+    map.put(key, new Entry(content, savedAt, entrySize));
+    size += entrySize;
+    trimToSize(maxSize);
+  }
+
+  synchronized void remove(String key) {
+    Entry previous = map.remove(key);
+    if (previous != null) {
+      size -= previous.size;
+    }
+  }
+
+  /**
+   * 删除写入时间早于 timestamp 的条目
+   */
+  synchronized void removeOlderThan(long timestamp) {
+    Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (entry.savedAt < timestamp) {
+        size -= entry.size;
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    map.clear();
+    size = 0;
+  }
+
+  synchronized void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+    trimToSize(maxSize);
+  }
+
+  private void trimToSize(int targetSize) {
+    Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+    while (size > targetSize && it.hasNext()) {
+      Entry eldest = it.next().getValue();
+      size -= eldest.size;
+      it.remove();
+      evictionCount++;
+    }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized int maxSize() {
+    return maxSize;
+  }
+
+  synchronized long hitCount() {
+    return hitCount;
+  }
+
+  synchronized long missCount() {
+    return missCount;
+  }
+
+  synchronized long evictionCount() {
+    return evictionCount;
+  }
+}
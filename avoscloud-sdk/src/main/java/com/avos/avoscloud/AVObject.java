@@ -92,6 +92,28 @@ public class AVObject implements Parcelable {
       }
     }
 
+    @Override
+    public boolean isParsedResponseNeeded() {
+      return true;
+    }
+
+    @Override
+    public void onParsedSuccess(Object result, AVException e) {
+      AVException error = e;
+      AVObject object = AVObject.this;
+      if (result instanceof Map && !((Map) result).isEmpty()) {
+        AVUtils.copyPropertiesFromMapToAVObject((Map<String, Object>) result, object);
+        AVObject.this.isDataReady = true;
+        AVObject.this.onDataSynchronized();
+      } else {
+        object = null;
+        error = new AVException(AVException.OBJECT_NOT_FOUND, "The object is not Found");
+      }
+      if (internalCallback != null) {
+        internalCallback.internalDone(object, error);
+      }
+    }
+
     @Override
     public void onFailure(Throwable error, String content) {
       if (internalCallback != null) {
@@ -336,6 +358,8 @@ public class AVObject implements Parcelable {
     AVUtils.checkClassName(className);
     SUB_CLASSES_MAP.put(className, clazz);
     SUB_CLASSES_REVERSE_MAP.put(clazz, className);
+    // 提前建立字段索引，解析查询结果时不再需要反射遍历字段
+    AVUtils.getPropertyFields(clazz);
     ParserConfig.getGlobalInstance().putDeserializer(clazz, AVObjectDeserializer.instance);
     SerializeConfig.getGlobalInstance().put(clazz, AVObjectSerializer.instance);
   }
@@ -0,0 +1,351 @@
+package com.avos.avoscloud;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * 按接口统计请求耗时和流量
+ *
+ * 请求路径会归并成接口模板，比如 classes/Post/55a39634e4b0ed48f0c1845c 会记为
+ * classes/{className}/{objectId}，每个接口有一个独立的耗时直方图，可以通过 getSnapshots 获取
+ * p50/p95/p99 等数据，也可以通过 setListener 监听每一个请求。默认开启。
+ */
+public final class AVRequestMetrics {
+  static final String OTHER_ENDPOINT = "other";
+  private static final int MAX_ENDPOINTS = 64;
+
+  private static volatile boolean enabled = true;
+  private static volatile Listener listener;
+  private static final ConcurrentMap<String, AVLatencyHistogram> histograms =
+      new ConcurrentHashMap<String, AVLatencyHistogram>();
+
+  private AVRequestMetrics() {}
+
+  public interface Listener {
+    /**
+     * 在 OkHttp 的线程中回调，不要做耗时操作
+     *
+     * @param endpoint      接口模板
+     * @param statusCode    http status code，网络错误时为 0
+     * @param latencyMillis 从发出请求到收到响应头的时间
+     * @param bytesIn       响应体的字节数，无法获取时为 -1
+     * @param bytesOut      请求体的字节数
+     */
+    void onRequestFinished(String endpoint, int statusCode, long latencyMillis, long bytesIn,
+                           long bytesOut);
+  }
+
+  /**
+   * 某个接口的统计数据
+   */
+  public static class Snapshot {
+    private final String endpoint;
+    private final long count;
+    private final long errorCount;
+    private final long meanMillis;
+    private final long p50Millis;
+    private final long p95Millis;
+    private final long p99Millis;
+    private final long maxMillis;
+    private final long bytesIn;
+    private final long bytesOut;
+
+    Snapshot(String endpoint, AVLatencyHistogram histogram) {
+      this.endpoint = endpoint;
+      long[] counts = histogram.bucketCounts();
+      this.count = histogram.getCount();
+      this.errorCount = histogram.getErrorCount();
+      this.meanMillis = count == 0 ? 0 : histogram.getTotalMillis() / count;
+      this.p50Millis = AVLatencyHistogram.valueAtQuantile(counts, 0.5);
+      this.p95Millis = AVLatencyHistogram.valueAtQuantile(counts, 0.95);
+      this.p99Millis = AVLatencyHistogram.valueAtQuantile(counts, 0.99);
+      this.maxMillis = histogram.getMaxMillis();
+      this.bytesIn = histogram.getBytesIn();
+      this.bytesOut = histogram.getBytesOut();
+    }
+
+    public String getEndpoint() {
+      return endpoint;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * 网络错误以及 4xx、5xx 的请求数量
+     */
+    public long getErrorCount() {
+      return errorCount;
+    }
+
+    public long getMeanMillis() {
+      return meanMillis;
+    }
+
+    public long getP50Millis() {
+      return p50Millis;
+    }
+
+    public long getP95Millis() {
+      return p95Millis;
+    }
+
+    public long getP99Millis() {
+      return p99Millis;
+    }
+
+    public long getMaxMillis() {
+      return maxMillis;
+    }
+
+    public long getBytesIn() {
+      return bytesIn;
+    }
+
+    public long getBytesOut() {
+      return bytesOut;
+    }
+
+    @Override
+    public String toString() {
+      return endpoint + " count=" + count + " errors=" + errorCount + " mean=" + meanMillis
+          + "ms p50=" + p50Millis + "ms p95=" + p95Millis + "ms p99=" + p99Millis + "ms max="
+          + maxMillis + "ms in=" + bytesIn + "B out=" + bytesOut + "B";
+    }
+  }
+
+  public static void setEnabled(boolean isEnabled) {
+    enabled = isEnabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setListener(Listener metricsListener) {
+    listener = metricsListener;
+  }
+
+  /**
+   * @return 按接口模板排序的统计数据
+   */
+  public static Map<String, Snapshot> getSnapshots() {
+    Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+    for (Map.Entry<String, AVLatencyHistogram> entry : histograms.entrySet()) {
+      result.put(entry.getKey(), new Snapshot(entry.getKey(), entry.getValue()));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  public static Snapshot getSnapshot(String endpoint) {
+    AVLatencyHistogram histogram = histograms.get(endpoint);
+    return histogram == null ? null : new Snapshot(endpoint, histogram);
+  }
+
+  public static void reset() {
+    histograms.clear();
+  }
+
+  /**
+   * 把请求路径归并成接口模板
+   *
+   * @param path url 中的 path，比如 /1.1/classes/Post/55a39634e4b0ed48f0c1845c
+   */
+  static String endpointTemplate(String path) {
+    if (AVUtils.isBlankString(path)) {
+      return OTHER_ENDPOINT;
+    }
+    String[] segments = path.split("/");
+    StringBuilder builder = new StringBuilder();
+    int index = 0;
+    while (index < segments.length && (segments[index].length() == 0
+        || (index + 1 < segments.length && isVersionSegment(segments[index])))) {
+      index++;
+    }
+    if (index >= segments.length) {
+      return OTHER_ENDPOINT;
+    }
+    String resource = segments[index];
+    builder.append(resource);
+    for (int i = index + 1; i < segments.length; i++) {
+      String segment = segments[i];
+      if (segment.length() == 0) {
+        continue;
+      }
+      builder.append('/');
+      int position = i - index;
+      if ("classes".equals(resource) && position == 1) {
+        builder.append("{className}");
+      } else if (("functions".equals(resource) || "call".equals(resource)) && position == 1) {
+        builder.append("{name}");
+      } else if (containsDigit(segment)) {
+        builder.append("classes".equals(resource) && position == 2 ? "{objectId}" : "{id}");
+      } else {
+        builder.append(segment);
+      }
+    }
+    return builder.toString();
+  }
+
+  private static boolean isVersionSegment(String segment) {
+    return segment.length() > 0 && Character.isDigit(segment.charAt(0)) && segment.contains(".");
+  }
+
+  private static boolean containsDigit(String segment) {
+    for (int i = 0; i < segment.length(); i++) {
+      if (Character.isDigit(segment.charAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static AVLatencyHistogram histogram(String endpoint) {
+    AVLatencyHistogram histogram = histograms.get(endpoint);
+    if (histogram == null) {
+      String key = histograms.size() >= MAX_ENDPOINTS ? OTHER_ENDPOINT : endpoint;
+      histogram = new AVLatencyHistogram();
+      AVLatencyHistogram existing = histograms.putIfAbsent(key, histogram);
+      if (existing != null) {
+        histogram = existing;
+      }
+    }
+    return histogram;
+  }
+
+  private static long requestBytes(Request request) {
+    try {
+      return request.body() == null ? 0 : Math.max(0, request.body().contentLength());
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  static void record(String endpoint, int statusCode, long latencyMillis, long bytesIn,
+                     long bytesOut) {
+    AVLatencyHistogram histogram = histogram(endpoint);
+    histogram.recordLatency(Math.max(0, latencyMillis), statusCode == 0 || statusCode >= 400);
+    histogram.recordBytes(bytesIn, bytesOut);
+    Listener currentListener = listener;
+    if (currentListener != null) {
+      try {
+        currentListener.onRequestFinished(endpoint, statusCode, latencyMillis, bytesIn, bytesOut);
+      } catch (RuntimeException e) {
+        LogUtil.log.e("exception in request metrics listener", e);
+      }
+    }
+  }
+
+  /**
+   * 记录一个请求的结果，响应体长度未知时在读完响应体之后再记录
+   */
+  static Response onResponse(Request request, Response response, long startNanos) {
+    if (!enabled) {
+      return response;
+    }
+    final String endpoint = endpointTemplate(request.url().encodedPath());
+    final int statusCode = response.code();
+    final long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    final long bytesOut = requestBytes(request);
+    ResponseBody body = response.body();
+    long contentLength = body == null ? 0 : body.contentLength();
+    if (contentLength >= 0) {
+      record(endpoint, statusCode, latencyMillis, contentLength, bytesOut);
+      return response;
+    }
+    return response.newBuilder().body(new CountingResponseBody(body) {
+      @Override
+      void onFinished(long bytesRead) {
+        record(endpoint, statusCode, latencyMillis, bytesRead, bytesOut);
+      }
+    }).build();
+  }
+
+  static void onFailure(Request request, long startNanos) {
+    if (enabled) {
+      record(endpointTemplate(request.url().encodedPath()), 0,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), -1, requestBytes(request));
+    }
+  }
+
+  private abstract static class CountingResponseBody extends ResponseBody {
+    private final ResponseBody responseBody;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private BufferedSource bufferedSource;
+    private long totalBytesRead = 0L;
+
+    CountingResponseBody(ResponseBody responseBody) {
+      this.responseBody = responseBody;
+    }
+
+    abstract void onFinished(long bytesRead);
+
+    private void finish() {
+      if (finished.compareAndSet(false, true)) {
+        onFinished(totalBytesRead);
+      }
+    }
+
+    @Override
+    public MediaType contentType() {
+      return responseBody.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+      return responseBody.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() {
+      if (bufferedSource == null) {
+        bufferedSource = Okio.buffer(source(responseBody.source()));
+      }
+      return bufferedSource;
+    }
+
+    private Source source(Source source) {
+      return new ForwardingSource(source) {
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+          long bytesRead = super.read(sink, byteCount);
+          if (bytesRead == -1) {
+            finish();
+          } else {
+            totalBytesRead += bytesRead;
+          }
+          return bytesRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+          finish();
+          super.close();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+      finish();
+      responseBody.close();
+    }
+  }
+}
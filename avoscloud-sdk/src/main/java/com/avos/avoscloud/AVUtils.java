@@ -29,6 +29,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -66,6 +67,8 @@ public class AVUtils {
 
   private static Map<Class<?>, Field[]> fieldsMap = Collections
       .synchronizedMap(new WeakHashMap<Class<?>, Field[]>());
+  private static Map<Class<?>, Map<String, Field[]>> propertyFieldsMap = Collections
+      .synchronizedMap(new WeakHashMap<Class<?>, Map<String, Field[]>>());
 
   public static Field[] getAllFiels(Class<?> clazz) {
     if (clazz == null || clazz == Object.class) {
@@ -75,6 +78,7 @@ public class AVUtils {
     if (theResult != null) {
       return theResult;
     }
+    final Class<?> theClass = clazz;
     List<Field[]> fields = new ArrayList<Field[]>();
     int length = 0;
     while (clazz != null && clazz != Object.class) {
@@ -94,7 +98,30 @@ public class AVUtils {
         i += someFields.length;
       }
     }
-    fieldsMap.put(clazz, theResult);
+    fieldsMap.put(theClass, theResult);
+    return theResult;
+  }
+
+  /**
+   * 按照字段名索引的 getAllFiels 结果，同名的字段按照子类到父类的顺序排列
+   */
+  static Map<String, Field[]> getPropertyFields(Class<?> clazz) {
+    Map<String, Field[]> theResult = propertyFieldsMap.get(clazz);
+    if (theResult != null) {
+      return theResult;
+    }
+    theResult = new HashMap<String, Field[]>();
+    for (Field field : getAllFiels(clazz)) {
+      Field[] sameNameFields = theResult.get(field.getName());
+      if (sameNameFields == null) {
+        theResult.put(field.getName(), new Field[] {field});
+      } else {
+        Field[] newFields = Arrays.copyOf(sameNameFields, sameNameFields.length + 1);
+        newFields[sameNameFields.length] = field;
+        theResult.put(field.getName(), newFields);
+      }
+    }
+    propertyFieldsMap.put(clazz, theResult);
     return theResult;
   }
 
@@ -407,13 +434,7 @@ public class AVUtils {
   }
 
   public static boolean hasProperty(Class<?> clazz, String property) {
-    Field fields[] = getAllFiels(clazz);
-    for (Field f : fields) {
-      if (f.getName().equals(property)) {
-        return true;
-      }
-    }
-    return false;
+    return clazz != null && getPropertyFields(clazz).containsKey(property);
   }
 
   public static boolean checkAndSetValue(Class<?> clazz, Object parent, String property,
@@ -422,9 +443,12 @@ public class AVUtils {
       return false;
     }
     try {
-      Field fields[] = getAllFiels(clazz);
+      Field fields[] = getPropertyFields(clazz).get(property);
+      if (fields == null) {
+        return false;
+      }
       for (Field f : fields) {
-        if (f.getName().equals(property) && (f.getType().isInstance(value) || value == null)) {
+        if (f.getType().isInstance(value) || value == null) {
           f.set(parent, value);
           return true;
         }
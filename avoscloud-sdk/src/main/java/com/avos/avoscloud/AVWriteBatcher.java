@@ -0,0 +1,262 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把短时间内连续发出的对象写操作（PUT/POST/DELETE classes/...）合并成一个 /batch 请求
+ *
+ * 默认关闭，通过 PaasClient.enableWriteBatching 开启。同一时间最多只有一个 /batch 请求在进行，
+ * 期间加入的操作会在它返回后一起发出。一个 /batch 请求中每个对象最多只有一个操作，
+ * 同一个对象上的后续操作放到下一个请求中，所以操作顺序不依赖服务器执行 /batch 中各项的顺序。
+ */
+class AVWriteBatcher {
+  private static ScheduledExecutorService defaultFlushExecutor;
+
+  /**
+   * 发出 /batch 请求，测试时可以替换
+   */
+  interface BatchSender {
+    void postBatch(List<Object> requests, GenericObjectCallback callback);
+  }
+
+  private final String apiVersion;
+  private final BatchSender sender;
+  private final ScheduledExecutorService flushExecutor;
+  private final List<PendingOperation> pendingOperations = new ArrayList<PendingOperation>();
+  private boolean flushScheduled = false;
+  private boolean batchInflight = false;
+
+  private static class PendingOperation {
+    final Map<String, Object> item;
+    // POST 创建的是新对象，为 null
+    final String objectPath;
+    final GenericObjectCallback callback;
+
+    PendingOperation(Map<String, Object> item, String objectPath, GenericObjectCallback callback) {
+      this.item = item;
+      this.objectPath = objectPath;
+      this.callback = callback;
+    }
+  }
+
+  AVWriteBatcher(final PaasClient client) {
+    this(client.getApiVersion(), new BatchSender() {
+      @Override
+      public void postBatch(List<Object> requests, GenericObjectCallback callback) {
+        client.postBatchObject(requests, false, null, callback);
+      }
+    }, null);
+  }
+
+  /**
+   * @param flushExecutor 为 null 时使用共享的线程
+   */
+  AVWriteBatcher(String apiVersion, BatchSender sender, ScheduledExecutorService flushExecutor) {
+    this.apiVersion = apiVersion;
+    this.sender = sender;
+    this.flushExecutor = flushExecutor;
+  }
+
+  private ScheduledExecutorService flushExecutor() {
+    if (null != flushExecutor) {
+      return flushExecutor;
+    }
+    synchronized (AVWriteBatcher.class) {
+      if (defaultFlushExecutor == null) {
+        defaultFlushExecutor = Executors.newScheduledThreadPool(1);
+      }
+      return defaultFlushExecutor;
+    }
+  }
+
+  static boolean isBatchable(String relativePath, Map<String, String> header) {
+    return !AVUtils.isBlankString(relativePath) && relativePath.startsWith("classes/")
+        && !relativePath.contains("?") && (header == null || header.isEmpty());
+  }
+
+  /**
+   * 一个 /batch 请求中同一个 objectPath 最多只能出现一次
+   *
+   * @return POST 创建的是新对象，返回 null
+   */
+  static String objectPath(String method, String relativePath) {
+    return "POST".equalsIgnoreCase(method) ? null : relativePath;
+  }
+
+  /**
+   * 尝试把一个写操作加入到下一个 /batch 请求中
+   *
+   * @param method       PUT/POST/DELETE
+   * @param relativePath 相对路径，比如 classes/Post/55a39634e4b0ed48f0c1845c
+   * @param body         请求体，DELETE 为 null
+   * @param header       额外的 header，非空时不会合并
+   * @param callback
+   * @return 没有开启或者这个请求不能合并时返回 false，调用者需要自己发出请求
+   */
+  boolean offer(String method, String relativePath, String body, Map<String, String> header,
+                GenericObjectCallback callback) {
+    if (!PaasClient.isWriteBatchingEnabled() || !isBatchable(relativePath, header)) {
+      return false;
+    }
+    Object parsedBody = null;
+    if (body != null) {
+      try {
+        parsedBody = JSON.parseObject(body);
+      } catch (Exception e) {
+        return false;
+      }
+    }
+    Map<String, Object> item = new HashMap<String, Object>();
+    item.put("method", method);
+    item.put("path", String.format("/%s/%s", apiVersion, relativePath));
+    item.put("body", parsedBody);
+    PendingOperation operation =
+        new PendingOperation(item, objectPath(method, relativePath), callback);
+    synchronized (this) {
+      pendingOperations.add(operation);
+      if (pendingOperations.size() >= PaasClient.getWriteBatchMaxOperations()) {
+        if (!batchInflight) {
+          flushExecutor().execute(flushTask);
+        }
+      } else if (!flushScheduled && !batchInflight) {
+        flushScheduled = true;
+        flushExecutor().schedule(flushTask, PaasClient.getWriteBatchWindowMillis(),
+            TimeUnit.MILLISECONDS);
+      }
+    }
+    return true;
+  }
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flush();
+    }
+  };
+
+  void flush() {
+    final List<PendingOperation> operations;
+    synchronized (this) {
+      flushScheduled = false;
+      if (batchInflight || pendingOperations.isEmpty()) {
+        return;
+      }
+      int maxOperations = PaasClient.getWriteBatchMaxOperations();
+      operations = new ArrayList<PendingOperation>();
+      Set<String> batchedPaths = new HashSet<String>();
+      Iterator<PendingOperation> iterator = pendingOperations.iterator();
+      while (iterator.hasNext() && operations.size() < maxOperations) {
+        PendingOperation operation = iterator.next();
+        if (null != operation.objectPath && !batchedPaths.add(operation.objectPath)) {
+          // 这个对象已经有操作在这一批中，留到下一批
+          continue;
+        }
+        operations.add(operation);
+        iterator.remove();
+      }
+      batchInflight = true;
+    }
+    List<Object> requests = new ArrayList<Object>(operations.size());
+    for (PendingOperation operation : operations) {
+      requests.add(operation.item);
+    }
+    sender.postBatch(requests, new GenericObjectCallback() {
+      @Override
+      public void onSuccess(String content, AVException e) {
+        JSONArray results = null;
+        try {
+          results = JSON.parseArray(content);
+        } catch (Exception exception) {
+          LogUtil.log.e("failed to parse batch response", exception);
+        }
+        try {
+          for (int i = 0; i < operations.size(); i++) {
+            Object result = results != null && i < results.size() ? results.get(i) : null;
+            dispatchResult(operations.get(i).callback, result, content);
+          }
+        } finally {
+          onBatchFinished();
+        }
+      }
+
+      @Override
+      public void onFailure(int statusCode, Throwable error, String content) {
+        try {
+          for (PendingOperation operation : operations) {
+            if (operation.callback != null) {
+              operation.callback.onFailure(statusCode, error, content);
+            }
+          }
+        } finally {
+          onBatchFinished();
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable error, String content) {
+        try {
+          for (PendingOperation operation : operations) {
+            if (operation.callback != null) {
+              operation.callback.onFailure(error, content);
+            }
+          }
+        } finally {
+          onBatchFinished();
+        }
+      }
+    });
+  }
+
+  /**
+   * 不经过 /batch 直接发出的写请求（同步调用、带 header 或者查询参数的请求）发出之前调用，
+   * 让还在合并窗口中等待的操作先发出去，避免直接发出的请求跑到同一个对象之前的操作前面。
+   * 已经有 /batch 请求在进行时，等待的操作仍然在它返回之后才会发出。
+   */
+  void flushPending() {
+    synchronized (this) {
+      if (batchInflight || pendingOperations.isEmpty()) {
+        return;
+      }
+    }
+    flush();
+  }
+
+  private void dispatchResult(GenericObjectCallback callback, Object result, String batchContent) {
+    if (callback == null) {
+      return;
+    }
+    if (result instanceof JSONObject && ((JSONObject) result).containsKey("success")) {
+      callback.onSuccess(JSON.toJSONString(((JSONObject) result).get("success")), null);
+    } else if (result instanceof JSONObject && ((JSONObject) result).containsKey("error")) {
+      JSONObject error = ((JSONObject) result).getJSONObject("error");
+      String errorContent = JSON.toJSONString(error);
+      callback.onFailure(AVErrorUtils.createException(errorContent), errorContent);
+    } else {
+      callback.onFailure(new AVException(AVException.INVALID_JSON, "Unexpected batch response"),
+          batchContent);
+    }
+  }
+
+  private void onBatchFinished() {
+    synchronized (this) {
+      batchInflight = false;
+      if (!pendingOperations.isEmpty()) {
+        // 在上一个请求进行期间加入的操作立即发出
+        flushExecutor().execute(flushTask);
+      }
+    }
+  }
+}
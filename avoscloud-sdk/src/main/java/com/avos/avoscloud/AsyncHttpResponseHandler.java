@@ -1,5 +1,9 @@
 package com.avos.avoscloud;
 
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
+import com.alibaba.fastjson.parser.Feature;
+
 import org.apache.http.Header;
 import org.apache.http.message.BasicHeader;
 
@@ -9,6 +13,7 @@ import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.Headers;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 /**
  * Created by lbt05 on 9/17/15.
@@ -39,7 +44,19 @@ public abstract class AsyncHttpResponseHandler implements Callback {
 
   @Override
   public void onResponse(Call call, Response response) throws IOException {
-    this.onSuccess(response.code(), getHeaders(response.headers()), response.body().bytes());
+    ResponseBody body = response.body();
+    try {
+      this.onSuccess(response.code(), response.headers(), body);
+    } finally {
+      body.close();
+    }
+  }
+
+  /**
+   * 子类可以覆盖这个方法直接读取 OkHttp 的 header 和响应体，省掉 Header[] 和 byte[] 的转换
+   */
+  protected void onSuccess(int statusCode, Headers headers, ResponseBody body) throws IOException {
+    onSuccess(statusCode, getHeaders(headers), body.bytes());
   }
 
   public abstract void onSuccess(int statusCode, Header[] headers, byte[] body);
@@ -47,6 +64,51 @@ public abstract class AsyncHttpResponseHandler implements Callback {
   public abstract void onFailure(int statusCode, Header[] headers, byte[] responseBody,
       Throwable error);
 
+  /**
+   * 是否可以把响应直接解析后交给 callback，需要缓存或者检查 Last-Modified 的响应仍然需要字符串
+   */
+  protected boolean isParsedResponseAllowed(int statusCode, String contentType) {
+    return getCallback() != null && getCallback().isParsedResponseNeeded() && statusCode != 304
+        && PaasClient.isJSONResponse(contentType);
+  }
+
+  /**
+   * 直接从响应流中解析 JSON 并回调 onParsedSuccess，服务端返回错误时回调 onFailure
+   */
+  protected void handleParsedResponse(int statusCode, ResponseBody body) {
+    Object result;
+    JSONReader reader = new JSONReader(body.charStream());
+    try {
+      // 与 JSONHelper 一致，小数解析为 Double
+      reader.config(Feature.UseBigDecimal, false);
+      result = reader.readObject();
+      reader.close();
+    } catch (RuntimeException e) {
+      getCallback().onFailure(statusCode,
+          new AVException(AVException.INVALID_JSON, "Invalid response: " + e.getMessage()), null);
+      return;
+    }
+    if (AVOSCloud.isDebugLogEnabled()) {
+      LogUtil.avlog.d(String.valueOf(result));
+    }
+
+    int code = 0;
+    if (result instanceof JSONObject) {
+      try {
+        code = ((JSONObject) result).getIntValue("code");
+      } catch (RuntimeException e) {
+        code = 0;
+      }
+    }
+    if (code > 0) {
+      String content = result.toString();
+      getCallback().onFailure(AVErrorUtils.createException(code, content), content);
+      return;
+    }
+    getCallback().onParsedSuccess(result, null);
+    ArchiveRequestTaskController.schedule();
+  }
+
   static Header[] getHeaders(Headers headers) {
     if (headers != null && headers.size() > 0) {
       Header[] httpHeaders = new Header[headers.size()];
@@ -1,9 +1,24 @@
 package com.avos.avoscloud;
 
+import com.alibaba.fastjson.JSON;
 
 public abstract class GenericObjectCallback {
   public void onSuccess(String content, AVException e) {}
 
+  /**
+   * 返回 true 时，不需要缓存的 JSON 响应会直接从网络流中解析，通过 onParsedSuccess 回调，不再生成字符串
+   */
+  public boolean isParsedResponseNeeded() {
+    return false;
+  }
+
+  /**
+   * @param result 解析后的 JSONObject 或 JSONArray
+   */
+  public void onParsedSuccess(Object result, AVException e) {
+    onSuccess(result == null ? null : JSON.toJSONString(result), e);
+  }
+
   public void onFailure(int statusCode, Throwable error, String content) {
     if (isRetryNeeded(statusCode, error)) {
       if (AVOSCloud.showInternalDebugLog()) {
@@ -2,6 +2,11 @@ package com.avos.avoscloud;
 
 import org.apache.http.Header;
 
+import java.io.IOException;
+
+import okhttp3.Headers;
+import okhttp3.ResponseBody;
+
 public class GetHttpResponseHandler extends AsyncHttpResponseHandler {
 
 
@@ -54,10 +59,29 @@ public class GetHttpResponseHandler extends AsyncHttpResponseHandler {
   }
 
 
+  private boolean isCacheNeeded() {
+    return !AVUtils.isBlankString(absoluteURLString)
+        && (policy != AVQuery.CachePolicy.IGNORE_CACHE || PaasClient.isLastModifyEnabled());
+  }
+
+  @Override
+  protected void onSuccess(int statusCode, Headers headers, ResponseBody body) throws IOException {
+    String contentType = headers.get("Content-Type");
+    if (!isCacheNeeded() && isParsedResponseAllowed(statusCode, contentType)) {
+      handleParsedResponse(statusCode, body);
+      return;
+    }
+    handleSuccess(statusCode, headers.get("Last-Modified"), contentType, body.string());
+  }
+
   @Override
   public void onSuccess(int statusCode, Header[] headers, byte[] body) {
+    handleSuccess(statusCode, PaasClient.lastModifyFromHeaders(headers),
+        PaasClient.extractContentType(headers), AVUtils.stringFromBytes(body));
+  }
 
-    String content = AVUtils.stringFromBytes(body);
+  private void handleSuccess(int statusCode, String lastModify, String contentType,
+                             String content) {
     if (AVOSCloud.isDebugLogEnabled()) {
       LogUtil.avlog.d(content);
     }
@@ -65,12 +89,10 @@ public class GetHttpResponseHandler extends AsyncHttpResponseHandler {
       if (AVOSCloud.showInternalDebugLog()) {
         LogUtil.avlog.i("Last modify matched.");
       }
-      String lastModifiedValue = PaasClient.lastModifyFromHeaders(headers);
-      tryLastModifyCache(lastModifiedValue);
+      tryLastModifyCache(lastModify);
       return;
     }
 
-    String contentType = PaasClient.extractContentType(headers);
     if (AVUtils.checkResponseType(statusCode, content, contentType, getCallback())) return;
 
     int code = AVErrorUtils.errorCode(content);
@@ -87,7 +109,6 @@ public class GetHttpResponseHandler extends AsyncHttpResponseHandler {
 
     // if last modify is enabled, cache object.
     if (!AVUtils.isBlankString(absoluteURLString) && PaasClient.isLastModifyEnabled()) {
-      String lastModify = PaasClient.lastModifyFromHeaders(headers);
       if (AVCacheManager.sharedInstance().save(absoluteURLString, content, lastModify)) {
         PaasClient.updateLastModify(absoluteURLString, lastModify);
       }
@@ -4,18 +4,19 @@ import android.annotation.SuppressLint;
 import android.text.TextUtils;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
 import org.apache.http.Header;
 import org.apache.http.entity.ByteArrayEntity;
 
-import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -50,6 +51,14 @@ public class PaasClient {
   private static Map<String, String> lastModify = Collections
       .synchronizedMap(new WeakHashMap<String, String>());
 
+  private static boolean requestCoalescingEnabled = true;
+  private static final AVGetRequestCoalescer getRequestCoalescer = new AVGetRequestCoalescer();
+
+  private static boolean writeBatchingEnabled = false;
+  private static long writeBatchWindowMillis = 20;
+  private static int writeBatchMaxOperations = 50;
+  private final AVWriteBatcher writeBatcher;
+
   /**
    * 针对不同类型的 AVOSServices（存储、统计、云函数）返回不同的 PaasClient 实例
    * @return
@@ -108,6 +117,7 @@ public class PaasClient {
     apiVersion = "1.1";
     baseUrl = url;
     useUruluServer();
+    writeBatcher = new AVWriteBatcher(this);
   }
 
   private String signRequest() {
@@ -306,6 +316,16 @@ public class PaasClient {
     updateHeaderForPath(relativePath, parameters, myHeader);
 
     String url = buildUrl(relativePath, parameters);
+    if (!sync && callback != null && requestCoalescingEnabled) {
+      AVUser currAVUser = AVUser.getCurrentUser();
+      String requestKey = AVGetRequestCoalescer.requestKey(url,
+          currAVUser == null ? null : currAVUser.getSessionToken(), policy, myHeader);
+      callback = getRequestCoalescer.join(requestKey, callback);
+      if (callback == null) {
+        // 相同的请求正在进行中，等待它返回即可
+        return;
+      }
+    }
     AsyncHttpResponseHandler handler =
         createGetHandler(callback, policy, url);
     if (AVOSCloud.isDebugLogEnabled()) {
@@ -336,9 +356,14 @@ public class PaasClient {
                         String objectId, String _internalId) {
     try {
       if (isEventually) {
-        File archivedFile = archiveRequest("put", relativePath, object, objectId, _internalId);
-        handleArchivedRequest(archivedFile, sync, callback);
+        AVCommandJournal.Command command =
+            archiveRequest("put", relativePath, object, objectId, _internalId);
+        handleArchivedRequest(command, sync, callback);
       } else {
+        if (!sync && writeBatcher.offer("PUT", relativePath, object, header, callback)) {
+          return;
+        }
+        writeBatcher.flushPending();
         String url = buildUrl(relativePath);
         AsyncHttpResponseHandler handler = createPostHandler(callback);
         if (AVOSCloud.isDebugLogEnabled()) {
@@ -428,9 +453,9 @@ public class PaasClient {
       params.put("requests", list);
       String paramString = AVUtils.jsonStringFromMapWithNull(params);
       if (isEventually) {
-        File archivedFile =
+        AVCommandJournal.Command command =
             archiveRequest("post", batchSaveRelativeUrl(), paramString, objectId, _internalId);
-        handleArchivedRequest(archivedFile, sync, callback);
+        handleArchivedRequest(command, sync, callback);
       } else {
         String url = buildUrl(batchSaveRelativeUrl());
         if (AVOSCloud.isDebugLogEnabled()) {
@@ -468,9 +493,14 @@ public class PaasClient {
                          GenericObjectCallback callback, String objectId, String _internalId) {
     try {
       if (isEventually) {
-        File archivedFile = archiveRequest("post", relativePath, object, objectId, _internalId);
-        handleArchivedRequest(archivedFile, sync, callback);
+        AVCommandJournal.Command command =
+            archiveRequest("post", relativePath, object, objectId, _internalId);
+        handleArchivedRequest(command, sync, callback);
       } else {
+        if (!sync && writeBatcher.offer("POST", relativePath, object, headers, callback)) {
+          return;
+        }
+        writeBatcher.flushPending();
         String url = buildUrl(relativePath);
         if (AVOSCloud.isDebugLogEnabled()) {
           dumpHttpPostRequest(null, url, object);
@@ -496,9 +526,14 @@ public class PaasClient {
                            GenericObjectCallback callback, String objectId, String _internalId) {
     try {
       if (isEventually) {
-        File archivedFile = archiveRequest("delete", relativePath, null, objectId, _internalId);
-        handleArchivedRequest(archivedFile, sync, callback);
+        AVCommandJournal.Command command =
+            archiveRequest("delete", relativePath, null, objectId, _internalId);
+        handleArchivedRequest(command, sync, callback);
       } else {
+        if (!sync && writeBatcher.offer("DELETE", relativePath, null, null, callback)) {
+          return;
+        }
+        writeBatcher.flushPending();
         String url = buildUrl(relativePath);
         if (AVOSCloud.isDebugLogEnabled()) {
           dumpHttpDeleteRequest(null, url, null);
@@ -524,88 +559,77 @@ public class PaasClient {
   /*
    * type for archive: 1. post 2. delete
    */
-  private File archiveRequest(String method, String relativePath, String paramString,
-                              String objectId, String _internalId) {
-    File theArchivedFile =
-        new File(AVPersistenceUtils.getCommandCacheDir(), AVUtils.getArchiveRequestFileName(
-            objectId, _internalId, method, relativePath, paramString));
-
-    Map<String, String> fileMap = new HashMap<String, String>(3);
-    fileMap.put("method", method);
-    fileMap.put("relativePath", relativePath);
-    fileMap.put("paramString", paramString);
-    fileMap.put("objectId", objectId);
-    fileMap.put("_internalId", _internalId);
-
-    AVPersistenceUtils.saveContentToFile(AVUtils.toJSON(fileMap), theArchivedFile);
+  private AVCommandJournal.Command archiveRequest(String method, String relativePath,
+                                                 String paramString, String objectId,
+                                                 String _internalId) {
+    AVCommandJournal.Command command = AVCommandJournal.sharedInstance()
+        .append(method, relativePath, paramString, objectId, _internalId);
 
     if (AVOSCloud.showInternalDebugLog()) {
-      LogUtil.log.d(AVUtils.restfulServerData(fileMap) + "\n" + "did save to "
-          + theArchivedFile.getAbsolutePath());
+      LogUtil.log.d(method + " " + relativePath + " " + paramString + "\n"
+          + "did save to command journal with seq " + command.seq);
     }
-    return theArchivedFile;
-  }
-
-  private void handleArchivedRequest(File archivedFile, boolean sync) {
-    handleArchivedRequest(archivedFile, sync, null);
+    return command;
   }
 
-  private void handleArchivedRequest(final File archivedFile, boolean sync,
+  private void handleArchivedRequest(final AVCommandJournal.Command command, boolean sync,
                                      final GenericObjectCallback callback) {
-    try {
-      String archivedFileContent = AVPersistenceUtils.readContentFromFile(archivedFile);
-      Map<String, String> fileMap = null;
-
-      fileMap = AVUtils.getFromJSON(archivedFileContent, Map.class);
-      if (fileMap != null && !fileMap.isEmpty()) {
-        String method = fileMap.get("method");
-        String relativePath = fileMap.get("relativePath");
-        String paramString = fileMap.get("paramString");
-        String objectId = fileMap.get("objectId");
-        String _internalId = fileMap.get("_internalId");
-        GenericObjectCallback newCallback = new GenericObjectCallback() {
-          @Override
-          public void onSuccess(String content, AVException e) {
-            if (callback != null) {
-              callback.onSuccess(content, e);
-            }
-            try {
-              Map<String, String> objectMap = AVUtils.getFromJSON(content, Map.class);
-              for (String _internalId : objectMap.keySet()) {
-                if (internalObjectsForEventuallySave.get(_internalId) != null) {
-                  internalObjectsForEventuallySave.get(_internalId).getValue()
-                      .copyFromMap(objectMap);
-                  unregisterEvtuallyObject(internalObjectsForEventuallySave.get(_internalId)
-                      .getValue());
-                }
-              }
-            } catch (Exception e1) {
-              LogUtil.avlog.e("parse exception during archive request" + e.getMessage());
-            }
-            archivedFile.delete();
-            AVPersistenceUtils.removeLock(archivedFile.getAbsolutePath());
-          }
+    if (!AVCommandJournal.sharedInstance().beginSend(command.seq)) {
+      return;
+    }
+    sendArchivedRequest(command, sync, callback);
+  }
 
-          @Override
-          public void onFailure(Throwable error, String content) {
-            // handle retry
-            if (callback != null) callback.onFailure(error, content);
-            AVPersistenceUtils.removeLock(archivedFile.getAbsolutePath());
-          }
-        };
-        if (method == null) {
-          newCallback.onFailure(new AVRuntimeException("Null method."), null);
+  /**
+   * 发送一个已经标记为正在发送的请求，成功后 ack，失败则留在日志中等待下一次发送
+   */
+  private void sendArchivedRequest(final AVCommandJournal.Command command, boolean sync,
+                                   final GenericObjectCallback callback) {
+    GenericObjectCallback newCallback = new GenericObjectCallback() {
+      @Override
+      public void onSuccess(String content, AVException e) {
+        if (callback != null) {
+          callback.onSuccess(content, e);
         }
-        if ("post".equalsIgnoreCase(method)) {
-          postObject(relativePath, paramString, sync, newCallback);
-        } else if ("put".equalsIgnoreCase(method)) {
-          putObject(relativePath, paramString, sync, null, newCallback, objectId, _internalId);
-        } else if ("delete".equalsIgnoreCase(method)) {
-          deleteObject(relativePath, sync, newCallback, objectId, _internalId);
+        onArchivedRequestSuccess(content);
+        AVCommandJournal.sharedInstance().ack(command.seq);
+      }
+
+      @Override
+      public void onFailure(Throwable error, String content) {
+        // handle retry
+        if (callback != null) callback.onFailure(error, content);
+        AVCommandJournal.sharedInstance().endSend(command.seq);
+      }
+    };
+    String method = command.method;
+    if (method == null) {
+      newCallback.onFailure(new AVRuntimeException("Null method."), null);
+    } else if ("post".equalsIgnoreCase(method)) {
+      postObject(command.relativePath, command.paramString, sync, newCallback);
+    } else if ("put".equalsIgnoreCase(method)) {
+      putObject(command.relativePath, command.paramString, sync, null, newCallback,
+          command.objectId, command.internalId);
+    } else if ("delete".equalsIgnoreCase(method)) {
+      deleteObject(command.relativePath, sync, newCallback, command.objectId, command.internalId);
+    } else {
+      AVCommandJournal.sharedInstance().endSend(command.seq);
+    }
+  }
+
+  private void onArchivedRequestSuccess(String content) {
+    try {
+      Map<String, Object> objectMap = AVUtils.getFromJSON(content, Map.class);
+      for (String _internalId : objectMap.keySet()) {
+        if (internalObjectsForEventuallySave.get(_internalId) != null) {
+          internalObjectsForEventuallySave.get(_internalId).getValue()
+              .copyFromMap(objectMap);
+          unregisterEvtuallyObject(internalObjectsForEventuallySave.get(_internalId)
+              .getValue());
         }
       }
-    } catch (Exception e) {
-      return;
+    } catch (Exception e1) {
+      LogUtil.avlog.e("parse exception during archive request" + e1.getMessage());
     }
   }
 
@@ -613,19 +637,149 @@ public class PaasClient {
     handleAllArchivedRequest(false);
   }
 
+  /**
+   * 按照保存的顺序发送所有待发送的请求：先合并同一个对象上的请求，之后连续的 batch/save 请求合并成一个 batch/save，
+   * 连续的对象 PUT/POST/DELETE 请求合并成一个 /batch（与 AVWriteBatcher 一样，同一个对象的第二个请求开始一个新的 /batch），
+   * 其它请求单独发送
+   */
   protected void handleAllArchivedRequest(boolean sync) {
-    File commandCacheDir = AVPersistenceUtils.getCommandCacheDir();
-    File[] archivedRequests = commandCacheDir.listFiles();
-    if (archivedRequests != null && archivedRequests.length > 0) {
-      Arrays.sort(archivedRequests, fileModifiedDateComparator);
-      for (File file : archivedRequests) {
-        if (file.isFile()) {
-          handleArchivedRequest(file, sync);
-        } else if (AVOSCloud.showInternalDebugLog()) {
-          LogUtil.avlog.e(file.getAbsolutePath() + " is a dir");
+    AVCommandJournal journal = AVCommandJournal.sharedInstance();
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer(apiVersion, journal).coalesce(journal.beginSendPending());
+    List<AVCommandJournal.Command> group = new ArrayList<AVCommandJournal.Command>();
+    Set<String> groupObjectPaths = new HashSet<String>();
+    int groupType = ARCHIVED_GROUP_SINGLE;
+    for (AVCommandJournal.Command command : commands) {
+      int type = archivedGroupType(command);
+      String objectPath =
+          type == ARCHIVED_GROUP_BATCH ? AVWriteBatcher.objectPath(command.method,
+              command.relativePath) : null;
+      if (!group.isEmpty() && (type != groupType || group.size() >= MAX_ARCHIVED_GROUP_SIZE
+          || (objectPath != null && groupObjectPaths.contains(objectPath)))) {
+        sendArchivedGroup(groupType, group, sync);
+        group = new ArrayList<AVCommandJournal.Command>();
+        groupObjectPaths.clear();
+      }
+      groupType = type;
+      group.add(command);
+      if (objectPath != null) {
+        groupObjectPaths.add(objectPath);
+      }
+    }
+    if (!group.isEmpty()) {
+      sendArchivedGroup(groupType, group, sync);
+    }
+  }
+
+  private static final int ARCHIVED_GROUP_SINGLE = 0;
+  private static final int ARCHIVED_GROUP_BATCH_SAVE = 1;
+  private static final int ARCHIVED_GROUP_BATCH = 2;
+  private static final int MAX_ARCHIVED_GROUP_SIZE = 50;
+
+  private int archivedGroupType(AVCommandJournal.Command command) {
+    if ("post".equalsIgnoreCase(command.method)
+        && batchSaveRelativeUrl().equals(command.relativePath)) {
+      return ARCHIVED_GROUP_BATCH_SAVE;
+    }
+    if (command.method != null && AVWriteBatcher.isBatchable(command.relativePath, null)) {
+      return ARCHIVED_GROUP_BATCH;
+    }
+    return ARCHIVED_GROUP_SINGLE;
+  }
+
+  private void sendArchivedGroup(int groupType, final List<AVCommandJournal.Command> group,
+                                 final boolean sync) {
+    if (group.size() == 1 || groupType == ARCHIVED_GROUP_SINGLE) {
+      for (AVCommandJournal.Command command : group) {
+        sendArchivedRequest(command, sync, null);
+      }
+    } else if (groupType == ARCHIVED_GROUP_BATCH_SAVE) {
+      sendArchivedBatchSaveGroup(group, sync);
+    } else {
+      sendArchivedBatchGroup(group, sync);
+    }
+  }
+
+  /**
+   * 把多个 batch/save 请求的 requests 拼接成一个 batch/save 请求，失败时再逐个发送
+   */
+  private void sendArchivedBatchSaveGroup(final List<AVCommandJournal.Command> group,
+                                          final boolean sync) {
+    List<Object> requests = new ArrayList<Object>();
+    try {
+      for (AVCommandJournal.Command command : group) {
+        requests.addAll(JSON.parseObject(command.paramString).getJSONArray("requests"));
+      }
+    } catch (Exception e) {
+      for (AVCommandJournal.Command command : group) {
+        sendArchivedRequest(command, sync, null);
+      }
+      return;
+    }
+    postBatchSave(requests, sync, false, null, new GenericObjectCallback() {
+      @Override
+      public void onSuccess(String content, AVException e) {
+        onArchivedRequestSuccess(content);
+        for (AVCommandJournal.Command command : group) {
+          AVCommandJournal.sharedInstance().ack(command.seq);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable error, String content) {
+        for (AVCommandJournal.Command command : group) {
+          sendArchivedRequest(command, sync, null);
         }
       }
+    }, null, null);
+  }
+
+  /**
+   * 把多个对象的 PUT/POST/DELETE 请求合并成一个 /batch 请求，每个请求根据自己的结果 ack
+   */
+  private void sendArchivedBatchGroup(final List<AVCommandJournal.Command> group,
+                                      final boolean sync) {
+    List<Object> requests = new ArrayList<Object>();
+    try {
+      for (AVCommandJournal.Command command : group) {
+        Object body = command.paramString == null ? null : JSON.parseObject(command.paramString);
+        requests.add(batchItemMap(command.method.toUpperCase(),
+            String.format("/%s/%s", apiVersion, command.relativePath), body));
+      }
+    } catch (Exception e) {
+      for (AVCommandJournal.Command command : group) {
+        sendArchivedRequest(command, sync, null);
+      }
+      return;
     }
+    postBatchObject(requests, sync, null, new GenericObjectCallback() {
+      @Override
+      public void onSuccess(String content, AVException e) {
+        JSONArray results = null;
+        try {
+          results = JSON.parseArray(content);
+        } catch (Exception exception) {
+          LogUtil.avlog.e("parse exception during archive request" + exception.getMessage());
+        }
+        for (int i = 0; i < group.size(); i++) {
+          AVCommandJournal.Command command = group.get(i);
+          Object result = results != null && i < results.size() ? results.get(i) : null;
+          if (result instanceof JSONObject && ((JSONObject) result).containsKey("success")) {
+            onArchivedRequestSuccess(JSON.toJSONString(((JSONObject) result).get("success")));
+            AVCommandJournal.sharedInstance().ack(command.seq);
+          } else {
+            AVCommandJournal.sharedInstance().endSend(command.seq);
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable error, String content) {
+        for (AVCommandJournal.Command command : group) {
+          AVCommandJournal.sharedInstance().endSend(command.seq);
+        }
+      }
+    });
   }
 
   // ================================================================================
@@ -729,6 +883,9 @@ public class PaasClient {
   }
 
   static public String lastModifyFromHeaders(Header[] headers) {
+    if (headers == null) {
+      return null;
+    }
     for (Header h : headers) {
       if (h.getName().equalsIgnoreCase("Last-Modified")) {
         return h.getValue();
@@ -768,6 +925,65 @@ public class PaasClient {
     return false;
   }
 
+  /**
+   * 是否合并相同的正在进行中的异步 GET 请求，默认开启
+   *
+   * @param enabled
+   */
+  public static void setRequestCoalescingEnabled(boolean enabled) {
+    requestCoalescingEnabled = enabled;
+  }
+
+  public static boolean isRequestCoalescingEnabled() {
+    return requestCoalescingEnabled;
+  }
+
+  /**
+   * @return 经过合并逻辑的异步 GET 请求总数
+   */
+  public static long getCoalescableRequestCount() {
+    return getRequestCoalescer.getRequestCount();
+  }
+
+  /**
+   * @return 因为有相同请求正在进行而没有实际发出的 GET 请求数
+   */
+  public static long getCoalescedRequestCount() {
+    return getRequestCoalescer.getCoalescedCount();
+  }
+
+  /**
+   * 开启写操作合并：windowMillis 时间内或者累计 maxOperations 个的对象 PUT/POST/DELETE 请求会合并成一个 /batch 请求，
+   * 每个请求的结果仍然回调给各自的 callback。默认关闭
+   *
+   * @param windowMillis  合并的时间窗口，单位毫秒
+   * @param maxOperations 一个 /batch 请求最多包含的操作数
+   */
+  public static void enableWriteBatching(long windowMillis, int maxOperations) {
+    if (windowMillis < 0 || maxOperations <= 0) {
+      throw new IllegalArgumentException("invalid write batching options");
+    }
+    writeBatchWindowMillis = windowMillis;
+    writeBatchMaxOperations = maxOperations;
+    writeBatchingEnabled = true;
+  }
+
+  public static void disableWriteBatching() {
+    writeBatchingEnabled = false;
+  }
+
+  public static boolean isWriteBatchingEnabled() {
+    return writeBatchingEnabled;
+  }
+
+  static long getWriteBatchWindowMillis() {
+    return writeBatchWindowMillis;
+  }
+
+  static int getWriteBatchMaxOperations() {
+    return writeBatchMaxOperations;
+  }
+
   public static void removeLastModifyForUrl(final String absolutURLString) {
     lastModify.remove(absolutURLString);
   }
@@ -802,11 +1018,4 @@ public class PaasClient {
       }
     }
   }
-
-  private static Comparator<File> fileModifiedDateComparator = new Comparator<File>() {
-    @Override
-    public int compare(File f, File s) {
-      return (int) (f.lastModified() - s.lastModified());
-    }
-  };
 }
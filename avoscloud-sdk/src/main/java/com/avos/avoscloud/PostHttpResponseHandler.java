@@ -2,21 +2,38 @@ package com.avos.avoscloud;
 
 import org.apache.http.Header;
 
+import java.io.IOException;
+
+import okhttp3.Headers;
+import okhttp3.ResponseBody;
+
 class PostHttpResponseHandler extends AsyncHttpResponseHandler {
 
   PostHttpResponseHandler(GenericObjectCallback cb) {
     super(cb);
   }
 
+  @Override
+  protected void onSuccess(int statusCode, Headers headers, ResponseBody body) throws IOException {
+    String contentType = headers.get("Content-Type");
+    if (isParsedResponseAllowed(statusCode, contentType)) {
+      handleParsedResponse(statusCode, body);
+      return;
+    }
+    handleSuccess(statusCode, contentType, body.string());
+  }
+
   // put common json parsing here.
   @Override
   public void onSuccess(int statusCode, Header[] headers, byte[] body) {
+    handleSuccess(statusCode, PaasClient.extractContentType(headers),
+        AVUtils.stringFromBytes(body));
+  }
 
-    String content = AVUtils.stringFromBytes(body);
+  private void handleSuccess(int statusCode, String contentType, String content) {
     if (AVOSCloud.isDebugLogEnabled()) {
       LogUtil.avlog.d(content);
     }
-    String contentType = PaasClient.extractContentType(headers);
     if (AVUtils.checkResponseType(statusCode, content, contentType, getCallback())) return;
 
     int code = AVErrorUtils.errorCode(content);
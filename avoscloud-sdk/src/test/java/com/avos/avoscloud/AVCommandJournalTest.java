@@ -0,0 +1,153 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+public class AVCommandJournalTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File journalDir;
+
+  @Before
+  public void setUp() throws IOException {
+    journalDir = tempFolder.newFolder("journal");
+  }
+
+  private AVCommandJournal openJournal(File legacyDir) {
+    AVCommandJournal journal = new AVCommandJournal(journalDir);
+    journal.open(legacyDir);
+    return journal;
+  }
+
+  @Test
+  public void testReplayPendingInOrder() {
+    AVCommandJournal journal = openJournal(null);
+    AVCommandJournal.Command first = journal.append("put", "classes/Foo/1", "{\"a\":1}", "1", "i1");
+    AVCommandJournal.Command second = journal.append("delete", "classes/Foo/2", null, "2", "i2");
+    journal.append("put", "classes/Foo/3", "{\"a\":3}", "3", "i3");
+    journal.ack(first.seq);
+    journal.close();
+
+    AVCommandJournal reopened = openJournal(null);
+    List<AVCommandJournal.Command> pending = reopened.beginSendPending();
+    Assert.assertEquals(2, pending.size());
+    Assert.assertEquals(second.seq, pending.get(0).seq);
+    Assert.assertEquals("classes/Foo/3", pending.get(1).relativePath);
+    Assert.assertTrue(reopened.beginSendPending().isEmpty());
+
+    AVCommandJournal.Command next = reopened.append("put", "classes/Foo/4", "{}", "4", "i4");
+    Assert.assertTrue(next.seq > pending.get(1).seq);
+  }
+
+  @Test
+  public void testSupersedeSameKey() {
+    AVCommandJournal journal = openJournal(null);
+    journal.append("post", "batch/save", "{\"requests\":[1]}", null, "internal");
+    journal.append("post", "batch/save", "{\"requests\":[2]}", null, "internal");
+    List<AVCommandJournal.Command> pending = journal.beginSendPending();
+    Assert.assertEquals(1, pending.size());
+    Assert.assertEquals("{\"requests\":[2]}", pending.get(0).paramString);
+  }
+
+  @Test
+  public void testInflightCommandIsNotSentTwice() {
+    AVCommandJournal journal = openJournal(null);
+    AVCommandJournal.Command command = journal.append("delete", "classes/Foo/1", null, "1", "i1");
+    Assert.assertTrue(journal.beginSend(command.seq));
+    Assert.assertFalse(journal.beginSend(command.seq));
+    Assert.assertTrue(journal.beginSendPending().isEmpty());
+    journal.endSend(command.seq);
+    Assert.assertEquals(1, journal.beginSendPending().size());
+  }
+
+  @Test
+  public void testAckedSegmentsAreDeleted() {
+    AVCommandJournal journal = openJournal(null);
+    StringBuilder body = new StringBuilder("{\"data\":\"");
+    for (int i = 0; i < 4096; i++) {
+      body.append('x');
+    }
+    body.append("\"}");
+    for (int i = 0; i < 200; i++) {
+      AVCommandJournal.Command command =
+          journal.append("put", "classes/Foo/" + i, body.toString(), String.valueOf(i), "i" + i);
+      journal.ack(command.seq);
+    }
+    Assert.assertEquals(0, journal.pendingCount());
+    Assert.assertTrue(journal.segmentCount() <= 1);
+    journal.close();
+
+    AVCommandJournal reopened = openJournal(null);
+    Assert.assertEquals(0, reopened.pendingCount());
+  }
+
+  @Test
+  public void testLiveCommandsSurviveCompaction() {
+    AVCommandJournal journal = openJournal(null);
+    StringBuilder body = new StringBuilder("{\"data\":\"");
+    for (int i = 0; i < 4096; i++) {
+      body.append('x');
+    }
+    body.append("\"}");
+    AVCommandJournal.Command stuck = journal.append("put", "classes/Foo/stuck", "{}", "stuck", "s");
+    for (int i = 0; i < 200; i++) {
+      AVCommandJournal.Command command =
+          journal.append("put", "classes/Foo/" + i, body.toString(), String.valueOf(i), "i" + i);
+      journal.ack(command.seq);
+    }
+    journal.close();
+
+    AVCommandJournal reopened = openJournal(null);
+    List<AVCommandJournal.Command> pending = reopened.beginSendPending();
+    Assert.assertEquals(1, pending.size());
+    Assert.assertEquals(stuck.seq, pending.get(0).seq);
+    Assert.assertTrue(reopened.segmentCount() <= 2);
+  }
+
+  @Test
+  public void testAppendAfterTornTail() throws IOException {
+    AVCommandJournal journal = openJournal(null);
+    journal.append("put", "classes/Foo/1", "{}", "1", "i1");
+    journal.close();
+    File[] segments = journalDir.listFiles();
+    Assert.assertEquals(1, segments.length);
+    FileOutputStream out = new FileOutputStream(segments[0], true);
+    out.write("{\"op\":\"add\",\"seq\":2,\"meth".getBytes("UTF-8"));
+    out.close();
+
+    AVCommandJournal reopened = openJournal(null);
+    Assert.assertEquals(1, reopened.pendingCount());
+    reopened.append("put", "classes/Foo/3", "{}", "3", "i3");
+    reopened.close();
+
+    List<AVCommandJournal.Command> pending = openJournal(null).beginSendPending();
+    Assert.assertEquals(2, pending.size());
+    Assert.assertEquals("classes/Foo/3", pending.get(1).relativePath);
+  }
+
+  @Test
+  public void testImportLegacyCommandCache() throws IOException {
+    File legacyDir = tempFolder.newFolder("CommandCache");
+    File legacyFile = new File(legacyDir, "internal");
+    FileOutputStream out = new FileOutputStream(legacyFile);
+    out.write(("{\"method\":\"post\",\"relativePath\":\"batch/save\","
+        + "\"paramString\":\"{}\",\"_internalId\":\"internal\"}").getBytes("UTF-8"));
+    out.close();
+
+    AVCommandJournal journal = openJournal(legacyDir);
+    Assert.assertFalse(legacyFile.exists());
+    List<AVCommandJournal.Command> pending = journal.beginSendPending();
+    Assert.assertEquals(1, pending.size());
+    Assert.assertEquals("batch/save", pending.get(0).relativePath);
+  }
+}
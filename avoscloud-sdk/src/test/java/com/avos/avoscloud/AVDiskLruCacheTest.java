@@ -0,0 +1,104 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class AVDiskLruCacheTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = tempFolder.newFolder("cache");
+  }
+
+  @Test
+  public void testPutAndGet() throws IOException {
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, null, 1024);
+    Assert.assertTrue(cache.put("a1", "hello"));
+    AVDiskLruCache.Snapshot snapshot = cache.get("a1");
+    Assert.assertEquals("hello", snapshot.content);
+    Assert.assertTrue(cache.contains("a1"));
+    Assert.assertEquals(5, cache.size());
+    Assert.assertNull(cache.get("b2"));
+    Assert.assertFalse(new File(cacheDir, "a1.tmp").exists());
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() throws IOException {
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, null, 10);
+    cache.put("a", "1234");
+    cache.put("b", "1234");
+    cache.get("a");
+    cache.put("c", "1234");
+    Assert.assertTrue(cache.contains("a"));
+    Assert.assertFalse(cache.contains("b"));
+    Assert.assertTrue(cache.contains("c"));
+    Assert.assertFalse(new File(cacheDir, "b").exists());
+    Assert.assertEquals(8, cache.size());
+  }
+
+  @Test
+  public void testReopenReplaysJournal() throws IOException {
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, null, 1024);
+    cache.put("a", "value_a");
+    cache.put("b", "value_b");
+    cache.remove("a");
+    cache.close();
+
+    AVDiskLruCache reopened = AVDiskLruCache.open(cacheDir, null, 1024);
+    Assert.assertFalse(reopened.contains("a"));
+    Assert.assertEquals("value_b", reopened.get("b").content);
+    Assert.assertEquals(7, reopened.size());
+  }
+
+  @Test
+  public void testUnfinishedWriteIsDropped() throws IOException {
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, null, 1024);
+    cache.put("a", "value_a");
+    cache.close();
+    FileOutputStream out = new FileOutputStream(new File(cacheDir, AVDiskLruCache.JOURNAL_FILE), true);
+    out.write("DIRTY a\n".getBytes("UTF-8"));
+    out.close();
+
+    AVDiskLruCache reopened = AVDiskLruCache.open(cacheDir, null, 1024);
+    Assert.assertFalse(reopened.contains("a"));
+    Assert.assertFalse(new File(cacheDir, "a").exists());
+    Assert.assertEquals(0, reopened.size());
+  }
+
+  @Test
+  public void testRemoveOlderThan() throws IOException {
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, null, 1024);
+    cache.put("a", "value_a");
+    Assert.assertTrue(cache.removeOlderThan(System.currentTimeMillis() + 1));
+    Assert.assertFalse(cache.contains("a"));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testMigrateLegacyDirectory() throws IOException {
+    File legacyDir = tempFolder.newFolder("legacy");
+    FileOutputStream out = new FileOutputStream(new File(legacyDir, "0cc175b9c0f1b6a831c399e269772661"));
+    out.write("legacy".getBytes("UTF-8"));
+    out.close();
+
+    AVDiskLruCache cache = AVDiskLruCache.open(cacheDir, legacyDir, 1024);
+    Assert.assertFalse(legacyDir.exists());
+    Assert.assertEquals("legacy", cache.get("0cc175b9c0f1b6a831c399e269772661").content);
+    cache.close();
+
+    AVDiskLruCache reopened = AVDiskLruCache.open(cacheDir, null, 1024);
+    Assert.assertTrue(reopened.contains("0cc175b9c0f1b6a831c399e269772661"));
+  }
+}
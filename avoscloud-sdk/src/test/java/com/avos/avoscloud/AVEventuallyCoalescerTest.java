@@ -0,0 +1,119 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class AVEventuallyCoalescerTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File journalDir;
+
+  @Before
+  public void setUp() throws IOException {
+    journalDir = tempFolder.newFolder("journal");
+  }
+
+  private AVCommandJournal openJournal() {
+    AVCommandJournal journal = new AVCommandJournal(journalDir);
+    journal.open(null);
+    return journal;
+  }
+
+  private static String batchSavePut(String path, String body) {
+    return "{\"requests\":[{\"method\":\"PUT\",\"path\":\"/1.1/" + path + "\",\"body\":" + body
+        + "}]}";
+  }
+
+  @Test
+  public void testMergeIncrementsAndSets() {
+    AVCommandJournal journal = openJournal();
+    journal.append("put", "classes/Foo/1", "{\"n\":{\"__op\":\"Increment\",\"amount\":1}}", "1", "i1");
+    journal.append("put", "classes/Foo/1",
+        "{\"n\":{\"__op\":\"Increment\",\"amount\":2},\"title\":\"a\"}", "1", "i1");
+    journal.append("put", "classes/Foo/1", "{\"title\":\"b\"}", "1", "i1");
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer("1.1", journal).coalesce(journal.beginSendPending());
+
+    Assert.assertEquals(1, commands.size());
+    JSONObject body = JSON.parseObject(commands.get(0).paramString);
+    Assert.assertEquals(3, body.getJSONObject("n").getIntValue("amount"));
+    Assert.assertEquals("b", body.getString("title"));
+    Assert.assertEquals(1, journal.pendingCount());
+  }
+
+  @Test
+  public void testMergeBatchSaveRequests() {
+    AVCommandJournal journal = openJournal();
+    journal.append("post", "batch/save",
+        batchSavePut("classes/Foo/1", "{\"tags\":{\"__op\":\"Add\",\"objects\":[\"x\"]}}"), "1", "i1");
+    journal.append("post", "batch/save",
+        batchSavePut("classes/Foo/2", "{\"title\":\"other\"}"), "2", "i2");
+    journal.append("post", "batch/save",
+        batchSavePut("classes/Foo/1", "{\"tags\":{\"__op\":\"Add\",\"objects\":[\"y\"]}}"), "1", "i3");
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer("1.1", journal).coalesce(journal.beginSendPending());
+
+    Assert.assertEquals(2, commands.size());
+    JSONObject request =
+        JSON.parseObject(commands.get(0).paramString).getJSONArray("requests").getJSONObject(0);
+    Assert.assertEquals("/1.1/classes/Foo/1", request.getString("path"));
+    Assert.assertEquals(2,
+        request.getJSONObject("body").getJSONObject("tags").getJSONArray("objects").size());
+  }
+
+  @Test
+  public void testDeleteCancelsEarlierSaves() {
+    AVCommandJournal journal = openJournal();
+    journal.append("put", "classes/Foo/1", "{\"title\":\"a\"}", "1", "i1");
+    journal.append("put", "classes/Foo/2", "{\"title\":\"b\"}", "2", "i2");
+    AVCommandJournal.Command delete = journal.append("delete", "classes/Foo/1", null, "1", "i1");
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer("1.1", journal).coalesce(journal.beginSendPending());
+
+    Assert.assertEquals(2, commands.size());
+    Assert.assertEquals("classes/Foo/2", commands.get(0).relativePath);
+    Assert.assertEquals(delete.seq, commands.get(1).seq);
+    Assert.assertEquals(2, journal.pendingCount());
+  }
+
+  @Test
+  public void testUnsupportedOpsAreKept() {
+    AVCommandJournal journal = openJournal();
+    journal.append("put", "classes/Foo/1",
+        "{\"likes\":{\"__op\":\"AddRelation\",\"objects\":[]}}", "1", "i1");
+    journal.append("put", "classes/Foo/1",
+        "{\"likes\":{\"__op\":\"RemoveRelation\",\"objects\":[]}}", "1", "i1");
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer("1.1", journal).coalesce(journal.beginSendPending());
+    Assert.assertEquals(2, commands.size());
+  }
+
+  @Test
+  public void testMergeSurvivesReopen() {
+    AVCommandJournal journal = openJournal();
+    journal.append("put", "classes/Foo/1", "{\"n\":{\"__op\":\"Increment\",\"amount\":1}}", "1", "i1");
+    journal.append("put", "classes/Foo/1", "{\"n\":{\"__op\":\"Increment\",\"amount\":4}}", "1", "i1");
+    List<AVCommandJournal.Command> commands =
+        new AVEventuallyCoalescer("1.1", journal).coalesce(journal.beginSendPending());
+    journal.close();
+
+    AVCommandJournal reopened = openJournal();
+    List<AVCommandJournal.Command> pending = reopened.beginSendPending();
+    Assert.assertEquals(1, pending.size());
+    Assert.assertEquals(commands.get(0).seq, pending.get(0).seq);
+    Assert.assertEquals(5, JSON.parseObject(pending.get(0).paramString).getJSONObject("n")
+        .getIntValue("amount"));
+  }
+}
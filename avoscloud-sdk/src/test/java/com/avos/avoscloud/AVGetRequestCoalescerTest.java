@@ -0,0 +1,80 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class AVGetRequestCoalescerTest {
+
+  static class RecordCallback extends GenericObjectCallback {
+    String content;
+    Throwable error;
+
+    @Override
+    public void onSuccess(String content, AVException e) {
+      this.content = content;
+    }
+
+    @Override
+    public void onFailure(Throwable error, String content) {
+      this.error = error;
+    }
+  }
+
+  @Test
+  public void testIdenticalRequestsShareOneCall() {
+    AVGetRequestCoalescer coalescer = new AVGetRequestCoalescer();
+    String key = AVGetRequestCoalescer.requestKey("https://api/1.1/classes/Foo", "token",
+        AVQuery.CachePolicy.IGNORE_CACHE, null);
+    RecordCallback first = new RecordCallback();
+    RecordCallback second = new RecordCallback();
+
+    GenericObjectCallback shared = coalescer.join(key, first);
+    Assert.assertNotNull(shared);
+    Assert.assertNull(coalescer.join(key, second));
+    Assert.assertEquals(1, coalescer.getInflightCount());
+
+    shared.onSuccess("{}", null);
+    Assert.assertEquals("{}", first.content);
+    Assert.assertEquals("{}", second.content);
+    Assert.assertEquals(0, coalescer.getInflightCount());
+    Assert.assertEquals(2, coalescer.getRequestCount());
+    Assert.assertEquals(1, coalescer.getCoalescedCount());
+
+    Assert.assertNotNull(coalescer.join(key, new RecordCallback()));
+  }
+
+  @Test
+  public void testFailureIsDeliveredToEveryCaller() {
+    AVGetRequestCoalescer coalescer = new AVGetRequestCoalescer();
+    String key = AVGetRequestCoalescer.requestKey("url", null, AVQuery.CachePolicy.IGNORE_CACHE, null);
+    RecordCallback first = new RecordCallback();
+    RecordCallback second = new RecordCallback();
+    GenericObjectCallback shared = coalescer.join(key, first);
+    coalescer.join(key, second);
+
+    Exception error = new Exception("failed");
+    shared.onFailure(500, error, null);
+    Assert.assertSame(error, first.error);
+    Assert.assertSame(error, second.error);
+  }
+
+  @Test
+  public void testRequestKey() {
+    Map<String, String> header = new HashMap<String, String>();
+    header.put("If-Modified-Since", "ts");
+    String url = "url";
+    Assert.assertNotEquals(
+        AVGetRequestCoalescer.requestKey(url, "a", AVQuery.CachePolicy.IGNORE_CACHE, null),
+        AVGetRequestCoalescer.requestKey(url, "b", AVQuery.CachePolicy.IGNORE_CACHE, null));
+    Assert.assertNotEquals(
+        AVGetRequestCoalescer.requestKey(url, "a", AVQuery.CachePolicy.IGNORE_CACHE, null),
+        AVGetRequestCoalescer.requestKey(url, "a", AVQuery.CachePolicy.IGNORE_CACHE, header));
+    Assert.assertEquals(
+        AVGetRequestCoalescer.requestKey(url, "a", AVQuery.CachePolicy.IGNORE_CACHE, header),
+        AVGetRequestCoalescer.requestKey(url, "a", AVQuery.CachePolicy.IGNORE_CACHE,
+            new HashMap<String, String>(header)));
+  }
+}
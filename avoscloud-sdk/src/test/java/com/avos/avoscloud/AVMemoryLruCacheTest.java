@@ -0,0 +1,55 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AVMemoryLruCacheTest {
+
+  @Test
+  public void testEvictByBytes() {
+    String content = "0123456789";
+    int entrySize = AVMemoryLruCache.sizeOf("k1", content);
+    AVMemoryLruCache cache = new AVMemoryLruCache(entrySize * 2);
+    long now = System.currentTimeMillis();
+    cache.put("k1", content, now);
+    cache.put("k2", content, now);
+    Assert.assertNotNull(cache.get("k1", 0));
+    cache.put("k3", content, now);
+
+    Assert.assertNull(cache.get("k2", 0));
+    Assert.assertNotNull(cache.get("k1", 0));
+    Assert.assertNotNull(cache.get("k3", 0));
+    Assert.assertEquals(1, cache.evictionCount());
+    Assert.assertEquals(entrySize * 2, cache.size());
+  }
+
+  @Test
+  public void testMaxAgeAndCounters() {
+    AVMemoryLruCache cache = new AVMemoryLruCache(1024);
+    cache.put("old", "value", System.currentTimeMillis() - 10000);
+    Assert.assertNull(cache.get("old", 1000));
+    Assert.assertEquals("value", cache.get("old", 0));
+    Assert.assertEquals(1, cache.hitCount());
+    Assert.assertEquals(1, cache.missCount());
+  }
+
+  @Test
+  public void testRemoveOlderThan() {
+    AVMemoryLruCache cache = new AVMemoryLruCache(1024);
+    long now = System.currentTimeMillis();
+    cache.put("old", "value", now - 10000);
+    cache.put("new", "value", now);
+    cache.removeOlderThan(now - 1000);
+    Assert.assertFalse(cache.contains("old"));
+    Assert.assertTrue(cache.contains("new"));
+    Assert.assertEquals(AVMemoryLruCache.sizeOf("new", "value"), cache.size());
+  }
+
+  @Test
+  public void testOversizedEntryIsSkipped() {
+    AVMemoryLruCache cache = new AVMemoryLruCache(8);
+    cache.put("key", "a very long value", System.currentTimeMillis());
+    Assert.assertFalse(cache.contains("key"));
+    Assert.assertEquals(0, cache.size());
+  }
+}
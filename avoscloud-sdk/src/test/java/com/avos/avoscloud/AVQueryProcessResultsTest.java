@@ -0,0 +1,90 @@
+package com.avos.avoscloud;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+public class AVQueryProcessResultsTest {
+
+  @AVClassName("QueryPost")
+  public static class QueryPost extends AVObject {
+    String title;
+    Number score;
+    Object ratio;
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    AVOSCloud.applicationId = "query-test-app-id";
+    AVObject.registerSubclass(QueryPost.class);
+  }
+
+  private static String row(int i) {
+    return "{\"objectId\":\"obj" + i + "\",\"createdAt\":\"2017-08-01T06:15:27.211Z\","
+        + "\"updatedAt\":\"2017-08-02T06:15:27.211Z\",\"title\":\"post " + i + "\","
+        + "\"score\":" + i + ",\"ratio\":1.5,\"published\":true,\"_private\":\"x\","
+        + "\"author\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"u" + i + "\"},"
+        + "\"publishedAt\":{\"__type\":\"Date\",\"iso\":\"2017-08-03T06:15:27.211Z\"},"
+        + "\"location\":{\"__type\":\"GeoPoint\",\"latitude\":40,\"longitude\":-30},"
+        + "\"meta\":{\"views\":3,\"at\":{\"__type\":\"Date\",\"iso\":\"2017-08-03T06:15:27.211Z\"}},"
+        + "\"tags\":[\"a\",\"b\",[1,2]],"
+        + "\"comments\":[{\"__type\":\"Pointer\",\"className\":\"Comment\",\"objectId\":\"c" + i
+        + "\"},{\"text\":\"plain\"}]}";
+  }
+
+  private static String response(int count, String extra) {
+    StringBuilder builder = new StringBuilder("{\"results\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        builder.append(',');
+      }
+      builder.append(row(i));
+    }
+    builder.append(",{}]").append(extra).append('}');
+    return builder.toString();
+  }
+
+  @Test
+  public void testProcessResults() throws Exception {
+    List<AVObject> objects =
+        new AVQuery<AVObject>("Post").processResults(response(20, ",\"count\":20"));
+    Assert.assertEquals(20, objects.size());
+    AVObject post = objects.get(3);
+    Assert.assertEquals("Post", post.getClassName());
+    Assert.assertEquals("obj3", post.getObjectId());
+    Assert.assertEquals("post 3", post.get("title"));
+    Assert.assertFalse(post.keySet().contains("_private"));
+    Assert.assertEquals("u3", ((AVObject) post.get("author")).getObjectId());
+    Assert.assertTrue(post.get("publishedAt") instanceof Date);
+    Assert.assertEquals(40, ((AVGeoPoint) post.get("location")).getLatitude(), 0);
+    Assert.assertEquals(3, ((List) post.get("tags")).size());
+  }
+
+  @Test
+  public void testClassNameFromResponse() throws Exception {
+    String content = "{\"className\":\"Comment\",\"results\":[" + row(1) + "]}";
+    List<AVObject> objects = new AVQuery<AVObject>("Post").processResults(content);
+    Assert.assertEquals("Comment", objects.get(0).getClassName());
+  }
+
+  @Test
+  public void testDecodeSubclassFields() throws Exception {
+    String content = response(3, "");
+    List<QueryPost> posts =
+        new AVQuery<QueryPost>("QueryPost", QueryPost.class).processResults(content);
+    Assert.assertEquals(3, posts.size());
+    QueryPost post = posts.get(2);
+    Assert.assertEquals("post 2", post.title);
+    Assert.assertEquals(2, post.score.intValue());
+    Assert.assertEquals(1.5, ((Number) post.ratio).doubleValue(), 0);
+    Assert.assertEquals("post 2", post.get("title"));
+    Assert.assertTrue(AVUtils.hasProperty(QueryPost.class, "title"));
+    Assert.assertTrue(AVUtils.hasProperty(QueryPost.class, "objectId"));
+    Assert.assertFalse(AVUtils.hasProperty(QueryPost.class, "tags"));
+    Assert.assertFalse(AVUtils.checkAndSetValue(QueryPost.class, post, "title", 1));
+    Assert.assertEquals("post 2", post.title);
+  }
+}
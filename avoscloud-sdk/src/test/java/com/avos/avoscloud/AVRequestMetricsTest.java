@@ -0,0 +1,96 @@
+package com.avos.avoscloud;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+public class AVRequestMetricsTest {
+
+  @After
+  public void tearDown() {
+    AVRequestMetrics.setListener(null);
+    AVRequestMetrics.reset();
+  }
+
+  @Test
+  public void testBucketBounds() {
+    for (long value = 0; value < 100000; value += 7) {
+      int index = AVLatencyHistogram.bucketIndex(value);
+      long upper = AVLatencyHistogram.bucketUpperBound(index);
+      Assert.assertTrue(upper >= value);
+      Assert.assertTrue(upper - value <= Math.max(1, value / 8));
+    }
+    Assert.assertEquals(AVLatencyHistogram.BUCKET_COUNT - 1,
+        AVLatencyHistogram.bucketIndex(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    for (int i = 1; i <= 100; i++) {
+      AVRequestMetrics.record("classes/{className}", i == 100 ? 500 : 200, i * 10, 100, 10);
+    }
+    AVRequestMetrics.Snapshot snapshot = AVRequestMetrics.getSnapshot("classes/{className}");
+    Assert.assertEquals(100, snapshot.getCount());
+    Assert.assertEquals(1, snapshot.getErrorCount());
+    Assert.assertEquals(505, snapshot.getMeanMillis());
+    Assert.assertTrue(Math.abs(snapshot.getP50Millis() - 500) <= 500 / 8);
+    Assert.assertTrue(Math.abs(snapshot.getP95Millis() - 950) <= 950 / 8);
+    Assert.assertTrue(Math.abs(snapshot.getP99Millis() - 990) <= 990 / 8);
+    Assert.assertEquals(1000, snapshot.getMaxMillis());
+    Assert.assertEquals(10000, snapshot.getBytesIn());
+    Assert.assertEquals(1000, snapshot.getBytesOut());
+  }
+
+  @Test
+  public void testEndpointTemplate() {
+    Assert.assertEquals("classes/{className}",
+        AVRequestMetrics.endpointTemplate("/1.1/classes/Post"));
+    Assert.assertEquals("classes/{className}/{objectId}",
+        AVRequestMetrics.endpointTemplate("/1.1/classes/Post/55a39634e4b0ed48f0c1845c"));
+    Assert.assertEquals("batch/save", AVRequestMetrics.endpointTemplate("/1.1/batch/save"));
+    Assert.assertEquals("fileTokens", AVRequestMetrics.endpointTemplate("/1.1/fileTokens"));
+    Assert.assertEquals("stats/collect", AVRequestMetrics.endpointTemplate("/1.1/stats/collect"));
+    Assert.assertEquals("users/me", AVRequestMetrics.endpointTemplate("/1.1/users/me"));
+    Assert.assertEquals("users/{id}/friendship/{id}",
+        AVRequestMetrics.endpointTemplate("/1.1/users/55a39634e4b0/friendship/55a39634e4b1"));
+    Assert.assertEquals("functions/{name}",
+        AVRequestMetrics.endpointTemplate("/1.1/functions/hello"));
+  }
+
+  @Test
+  public void testUnknownLengthBodyIsCounted() throws IOException {
+    final AtomicLong reportedBytes = new AtomicLong(-2);
+    AVRequestMetrics.setListener(new AVRequestMetrics.Listener() {
+      @Override
+      public void onRequestFinished(String endpoint, int statusCode, long latencyMillis,
+                                    long bytesIn, long bytesOut) {
+        Assert.assertEquals("batch/save", endpoint);
+        Assert.assertEquals(3, bytesOut);
+        reportedBytes.set(bytesIn);
+      }
+    });
+    Request request = new Request.Builder().url("https://api.leancloud.cn/1.1/batch/save")
+        .post(RequestBody.create(MediaType.parse("application/json"), "{ }")).build();
+    Buffer buffer = new Buffer().writeUtf8("[{\"success\":{}}]");
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1)
+        .code(200).message("OK")
+        .body(ResponseBody.create(MediaType.parse("application/json"), -1, buffer)).build();
+
+    Response wrapped = AVRequestMetrics.onResponse(request, response, System.nanoTime());
+    Assert.assertEquals(-2, reportedBytes.get());
+    Assert.assertEquals("[{\"success\":{}}]", wrapped.body().string());
+    Assert.assertEquals(16, reportedBytes.get());
+    Assert.assertEquals(1, AVRequestMetrics.getSnapshots().get("batch/save").getCount());
+  }
+}
@@ -0,0 +1,228 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSON;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class AVWriteBatcherTest {
+
+  static class RecordingSender implements AVWriteBatcher.BatchSender {
+    final List<List<Object>> batches = Collections.synchronizedList(new ArrayList<List<Object>>());
+    final List<GenericObjectCallback> callbacks =
+        Collections.synchronizedList(new ArrayList<GenericObjectCallback>());
+
+    @Override
+    public void postBatch(List<Object> requests, GenericObjectCallback callback) {
+      batches.add(requests);
+      callbacks.add(callback);
+    }
+
+    String path(int batch, int index) {
+      return (String) ((Map) batches.get(batch).get(index)).get("path");
+    }
+  }
+
+  static class RecordCallback extends GenericObjectCallback {
+    String content;
+    Throwable error;
+    int statusCode;
+
+    @Override
+    public void onSuccess(String content, AVException e) {
+      this.content = content;
+    }
+
+    @Override
+    public void onFailure(int statusCode, Throwable error, String content) {
+      this.statusCode = statusCode;
+      this.error = error;
+    }
+
+    @Override
+    public void onFailure(Throwable error, String content) {
+      this.error = error;
+    }
+  }
+
+  private ScheduledExecutorService executor;
+  private RecordingSender sender;
+  private AVWriteBatcher batcher;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    sender = new RecordingSender();
+    batcher = new AVWriteBatcher("1.1", sender, executor);
+  }
+
+  @After
+  public void tearDown() {
+    PaasClient.disableWriteBatching();
+    executor.shutdownNow();
+  }
+
+  private void waitForBatches(int count) throws Exception {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sender.batches.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }).get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(count, sender.batches.size());
+  }
+
+  @Test
+  public void testDisabled() {
+    Assert.assertFalse(batcher.offer("PUT", "classes/Post/a", "{}", null, null));
+    PaasClient.enableWriteBatching(10, 10);
+    Assert.assertFalse(batcher.offer("PUT", "users/a", "{}", null, null));
+    Assert.assertFalse(batcher.offer("PUT", "classes/Post/a?fetchWhenSave=true", "{}", null, null));
+  }
+
+  @Test
+  public void testFlushAfterWindow() throws Exception {
+    PaasClient.enableWriteBatching(50, 10);
+    Assert.assertTrue(batcher.offer("PUT", "classes/Post/a", "{\"k\":1}", null, null));
+    Assert.assertTrue(batcher.offer("POST", "classes/Post", "{\"k\":2}", null, null));
+    Assert.assertTrue(batcher.offer("DELETE", "classes/Post/b", null, null, null));
+    Thread.sleep(10);
+    Assert.assertTrue(sender.batches.isEmpty());
+
+    waitForBatches(1);
+    Assert.assertEquals(3, sender.batches.get(0).size());
+    Assert.assertEquals("/1.1/classes/Post/a", sender.path(0, 0));
+    Assert.assertEquals("/1.1/classes/Post", sender.path(0, 1));
+    Assert.assertEquals("DELETE", ((Map) sender.batches.get(0).get(2)).get("method"));
+  }
+
+  @Test
+  public void testFlushAtMaxOperations() throws Exception {
+    PaasClient.enableWriteBatching(60000, 3);
+    for (int i = 0; i < 3; i++) {
+      batcher.offer("PUT", "classes/Post/o" + i, "{}", null, null);
+    }
+    waitForBatches(1);
+    Assert.assertEquals(3, sender.batches.get(0).size());
+  }
+
+  @Test
+  public void testResultsMappedToCallbacks() throws Exception {
+    PaasClient.enableWriteBatching(30, 10);
+    RecordCallback saved = new RecordCallback();
+    RecordCallback failed = new RecordCallback();
+    RecordCallback missing = new RecordCallback();
+    batcher.offer("PUT", "classes/Post/a", "{}", null, saved);
+    batcher.offer("PUT", "classes/Post/b", "{}", null, failed);
+    batcher.offer("PUT", "classes/Post/c", "{}", null, missing);
+    waitForBatches(1);
+
+    // 返回的结果比请求少
+    sender.callbacks.get(0).onSuccess("[{\"success\":{\"updatedAt\":\"now\"}},"
+        + "{\"error\":{\"code\":137,\"error\":\"duplicate\"}}]", null);
+    Assert.assertEquals("now", JSON.parseObject(saved.content).getString("updatedAt"));
+    Assert.assertEquals(137, ((AVException) failed.error).getCode());
+    Assert.assertEquals(AVException.INVALID_JSON, ((AVException) missing.error).getCode());
+  }
+
+  @Test
+  public void testUnparsableResponse() throws Exception {
+    PaasClient.enableWriteBatching(30, 10);
+    RecordCallback first = new RecordCallback();
+    RecordCallback second = new RecordCallback();
+    batcher.offer("PUT", "classes/Post/a", "{}", null, first);
+    batcher.offer("DELETE", "classes/Post/b", null, null, second);
+    waitForBatches(1);
+
+    sender.callbacks.get(0).onSuccess("<html>", null);
+    Assert.assertEquals(AVException.INVALID_JSON, ((AVException) first.error).getCode());
+    Assert.assertEquals(AVException.INVALID_JSON, ((AVException) second.error).getCode());
+  }
+
+  @Test
+  public void testRequestFailure() throws Exception {
+    PaasClient.enableWriteBatching(30, 10);
+    RecordCallback first = new RecordCallback();
+    RecordCallback second = new RecordCallback();
+    batcher.offer("PUT", "classes/Post/a", "{}", null, first);
+    batcher.offer("POST", "classes/Post", "{}", null, second);
+    waitForBatches(1);
+
+    Exception error = new Exception("timeout");
+    sender.callbacks.get(0).onFailure(502, error, null);
+    Assert.assertSame(error, first.error);
+    Assert.assertSame(error, second.error);
+    Assert.assertEquals(502, second.statusCode);
+  }
+
+  @Test
+  public void testOperationsDuringInflightBatchGoNext() throws Exception {
+    PaasClient.enableWriteBatching(0, 10);
+    batcher.offer("PUT", "classes/Post/a", "{}", null, null);
+    waitForBatches(1);
+
+    batcher.offer("PUT", "classes/Post/b", "{}", null, null);
+    batcher.offer("PUT", "classes/Post/c", "{}", null, null);
+    Thread.sleep(30);
+    Assert.assertEquals(1, sender.batches.size());
+
+    sender.callbacks.get(0).onSuccess("[{\"success\":{}}]", null);
+    waitForBatches(2);
+    Assert.assertEquals(2, sender.batches.get(1).size());
+    Assert.assertEquals("/1.1/classes/Post/b", sender.path(1, 0));
+    Assert.assertEquals("/1.1/classes/Post/c", sender.path(1, 1));
+  }
+
+  @Test
+  public void testOneOperationPerObjectInEachBatch() throws Exception {
+    PaasClient.enableWriteBatching(60000, 4);
+    batcher.offer("PUT", "classes/Post/a", "{\"v\":1}", null, null);
+    batcher.offer("POST", "classes/Post", "{}", null, null);
+    batcher.offer("PUT", "classes/Post/a", "{\"v\":2}", null, null);
+    batcher.offer("DELETE", "classes/Post/a", null, null, null);
+    waitForBatches(1);
+    Assert.assertEquals(2, sender.batches.get(0).size());
+    Assert.assertEquals("/1.1/classes/Post/a", sender.path(0, 0));
+    Assert.assertEquals("/1.1/classes/Post", sender.path(0, 1));
+
+    sender.callbacks.get(0).onSuccess("[{\"success\":{}},{\"success\":{}}]", null);
+    waitForBatches(2);
+    Assert.assertEquals(1, sender.batches.get(1).size());
+    Assert.assertEquals("PUT", ((Map) sender.batches.get(1).get(0)).get("method"));
+
+    sender.callbacks.get(1).onSuccess("[{\"success\":{}}]", null);
+    waitForBatches(3);
+    Assert.assertEquals("DELETE", ((Map) sender.batches.get(2).get(0)).get("method"));
+  }
+
+  @Test
+  public void testFlushPendingBeforeDirectRequest() throws Exception {
+    PaasClient.enableWriteBatching(60000, 10);
+    batcher.flushPending();
+    Assert.assertTrue(sender.batches.isEmpty());
+
+    batcher.offer("PUT", "classes/Post/a", "{}", null, null);
+    batcher.flushPending();
+    Assert.assertEquals(1, sender.batches.size());
+
+    // 上一个 /batch 还没有返回时不能提前发出
+    batcher.offer("PUT", "classes/Post/a", "{}", null, null);
+    batcher.flushPending();
+    Assert.assertEquals(1, sender.batches.size());
+    sender.callbacks.get(0).onSuccess("[{\"success\":{}}]", null);
+    waitForBatches(2);
+  }
+}
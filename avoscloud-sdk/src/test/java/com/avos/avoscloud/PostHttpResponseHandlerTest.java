@@ -0,0 +1,94 @@
+package com.avos.avoscloud;
+
+import com.alibaba.fastjson.JSONObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+public class PostHttpResponseHandlerTest {
+
+  private static class RecordingCallback extends GenericObjectCallback {
+    private final boolean parsed;
+    String content;
+    Object result;
+    Throwable error;
+
+    RecordingCallback(boolean parsed) {
+      this.parsed = parsed;
+    }
+
+    @Override
+    public boolean isParsedResponseNeeded() {
+      return parsed;
+    }
+
+    @Override
+    public void onSuccess(String content, AVException e) {
+      this.content = content;
+    }
+
+    @Override
+    public void onParsedSuccess(Object result, AVException e) {
+      this.result = result;
+    }
+
+    @Override
+    public void onFailure(Throwable error, String content) {
+      this.error = error;
+      this.content = content;
+    }
+  }
+
+  private static Response response(int code, String contentType, String body) {
+    return new Response.Builder()
+        .request(new Request.Builder().url("https://api.leancloud.cn/1.1/classes/Post").build())
+        .protocol(Protocol.HTTP_1_1).code(code).message("OK")
+        .header("Content-Type", contentType)
+        .body(ResponseBody.create(MediaType.parse(contentType), body)).build();
+  }
+
+  @Test
+  public void testParsedResponse() throws IOException {
+    RecordingCallback callback = new RecordingCallback(true);
+    new PostHttpResponseHandler(callback).onResponse(null,
+        response(200, "application/json;charset=utf-8", "{\"objectId\":\"1\",\"score\":1.5}"));
+    Assert.assertNull(callback.content);
+    Assert.assertTrue(callback.result instanceof JSONObject);
+    Assert.assertEquals("1", ((JSONObject) callback.result).getString("objectId"));
+    Assert.assertTrue(((JSONObject) callback.result).get("score") instanceof Double);
+  }
+
+  @Test
+  public void testStringResponse() throws IOException {
+    RecordingCallback callback = new RecordingCallback(false);
+    new PostHttpResponseHandler(callback).onResponse(null,
+        response(200, "application/json;charset=utf-8", "{\"objectId\":\"1\"}"));
+    Assert.assertNull(callback.result);
+    Assert.assertEquals("{\"objectId\":\"1\"}", callback.content);
+  }
+
+  @Test
+  public void testParsedErrorResponse() throws IOException {
+    RecordingCallback callback = new RecordingCallback(true);
+    new PostHttpResponseHandler(callback).onResponse(null,
+        response(404, "application/json;charset=utf-8", "{\"code\":101,\"error\":\"not found\"}"));
+    Assert.assertNull(callback.result);
+    Assert.assertEquals(101, ((AVException) callback.error).getCode());
+  }
+
+  @Test
+  public void testParsedResponseFallsBackForWrongContentType() throws IOException {
+    RecordingCallback callback = new RecordingCallback(true);
+    new PostHttpResponseHandler(callback).onResponse(null, response(200, "text/html", "<html>"));
+    Assert.assertNull(callback.result);
+    Assert.assertEquals(AVException.INVALID_JSON, ((AVException) callback.error).getCode());
+  }
+}